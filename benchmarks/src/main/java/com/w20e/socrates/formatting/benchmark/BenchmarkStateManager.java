@@ -0,0 +1,53 @@
+package com.w20e.socrates.formatting.benchmark;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.model.Model;
+import com.w20e.socrates.rendering.RenderConfig;
+import com.w20e.socrates.rendering.RenderState;
+import com.w20e.socrates.rendering.StateManager;
+
+/**
+ * Minimal state manager for single page renders.
+ */
+final class BenchmarkStateManager implements StateManager {
+
+	public RenderState current() {
+		return null;
+	}
+
+	public boolean hasNext() {
+		return true;
+	}
+
+	public boolean hasPrevious() {
+		return true;
+	}
+
+	public void init(Configuration config, RenderConfig cfg, Model m,
+			Instance i) {
+
+	}
+
+	public RenderState next() {
+		return null;
+	}
+
+	public RenderState previous() {
+		return null;
+	}
+
+	public boolean setState(RenderState state) {
+		return false;
+	}
+
+	public boolean setStateById(String stateId) {
+		return false;
+	}
+
+	@Override
+	public int getProgressPercentage() {
+		return 50;
+	}
+}
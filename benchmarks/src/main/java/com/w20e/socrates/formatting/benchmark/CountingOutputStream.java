@@ -0,0 +1,30 @@
+package com.w20e.socrates.formatting.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * Output stream that discards everything, but counts the bytes written so
+ * the JIT can't optimize the render away.
+ */
+final class CountingOutputStream extends OutputStream {
+
+	private long count;
+
+	@Override
+	public void write(final int b) {
+		this.count++;
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) {
+		this.count += len;
+	}
+
+	long getCount() {
+		return this.count;
+	}
+
+	void reset() {
+		this.count = 0;
+	}
+}
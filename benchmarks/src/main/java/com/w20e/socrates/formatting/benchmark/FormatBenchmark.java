@@ -0,0 +1,87 @@
+package com.w20e.socrates.formatting.benchmark;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.w20e.socrates.formatting.VelocityHTMLFormatter;
+import com.w20e.socrates.process.RunnerContextImpl;
+
+/**
+ * Measures a full page render through {@link VelocityHTMLFormatter#format}
+ * for generated questionnaires of different sizes, layouts and locales.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatBenchmark {
+
+	@Param({ "10", "100", "1000", "5000" })
+	public int controls;
+
+	@Param({ "FLAT", "NESTED", "VOCABULARY", "TEXT", "MIXED" })
+	public String shape;
+
+	@Param({ "en_GB", "de_DE" })
+	public String locale;
+
+	private VelocityHTMLFormatter formatter;
+
+	private QuestionnaireGenerator.Page page;
+
+	private RunnerContextImpl context;
+
+	private CountingOutputStream out;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+
+		XMLConfiguration cfg = new XMLConfiguration(getClass().getClassLoader()
+				.getResource("benchmark-config.xml"));
+
+		this.formatter = new VelocityHTMLFormatter();
+		this.formatter.init(cfg);
+
+		this.page = QuestionnaireGenerator.generate(this.controls,
+				QuestionnaireGenerator.Shape.valueOf(this.shape));
+
+		String[] parts = this.locale.split("_");
+
+		this.out = new CountingOutputStream();
+		this.context = new RunnerContextImpl(this.out, this.formatter,
+				new BenchmarkStateManager(), this.page.model,
+				this.page.instance, null);
+		this.context.setLocale(new Locale(parts[0], parts[1]));
+
+		// Fail in setup rather than measuring a broken render
+		format();
+		if (this.out.getCount() == 0) {
+			throw new IllegalStateException("Benchmark page rendered empty");
+		}
+	}
+
+	@Benchmark
+	public long format() throws Exception {
+
+		this.out.reset();
+		this.formatter.format(this.page.items, this.out, this.context);
+
+		return this.out.getCount();
+	}
+}
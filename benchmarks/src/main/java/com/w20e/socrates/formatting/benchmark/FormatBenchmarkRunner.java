@@ -0,0 +1,35 @@
+package com.w20e.socrates.formatting.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the formatter benchmarks with the gc profiler enabled, so every
+ * scenario reports its allocation rate next to throughput and average time.
+ * Regular JMH command line options (e.g. -p controls=1000) are honoured.
+ */
+public final class FormatBenchmarkRunner {
+
+	private FormatBenchmarkRunner() {
+		// main only
+	}
+
+	public static void main(final String[] args) throws Exception {
+
+		Options cmd = new CommandLineOptions(args);
+
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(cmd);
+
+		if (cmd.getIncludes().isEmpty()) {
+			builder.include(FormatBenchmark.class.getSimpleName());
+		}
+
+		builder.addProfiler(GCProfiler.class);
+
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,52 @@
+package com.w20e.socrates.formatting.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the message catalogs for the benchmark questionnaires. Every
+ * msgid the {@link QuestionnaireGenerator} can produce has a translation, so
+ * the formatter always takes the "found" path in the catalog.
+ */
+final class MessageCatalog {
+
+	static final String[] ENGLISH = { "Question", "Hint", "Alert", "Group",
+			"Option", "Text block %d: you answered ${%s}" };
+
+	static final String[] GERMAN = { "Frage", "Hinweis", "Warnung", "Gruppe",
+			"Auswahl", "Textblock %d: Sie haben ${%s} geantwortet" };
+
+	private MessageCatalog() {
+		// no instances
+	}
+
+	/**
+	 * Build the catalog contents for the given set of words.
+	 */
+	static Object[][] contents(final String[] words) {
+
+		List<Object[]> entries = new ArrayList<Object[]>();
+
+		for (int i = 0; i < QuestionnaireGenerator.MAX_CONTROLS; i++) {
+			entries.add(new Object[] { QuestionnaireGenerator.label(i),
+					words[0] + " " + i });
+			entries.add(new Object[] { QuestionnaireGenerator.hint(i),
+					words[1] + " " + i });
+			entries.add(new Object[] { QuestionnaireGenerator.text(i),
+					String.format(words[5], Integer.valueOf(i),
+							QuestionnaireGenerator.bind(i)) });
+		}
+
+		for (int i = 0; i < QuestionnaireGenerator.MAX_GROUPS; i++) {
+			entries.add(new Object[] { QuestionnaireGenerator.groupLabel(i),
+					words[3] + " " + i });
+		}
+
+		for (int i = 0; i < QuestionnaireGenerator.OPTIONS_PER_SELECT; i++) {
+			entries.add(new Object[] { QuestionnaireGenerator.option(i),
+					words[4] + " " + i });
+		}
+
+		return entries.toArray(new Object[entries.size()][]);
+	}
+}
@@ -0,0 +1,13 @@
+package com.w20e.socrates.formatting.benchmark;
+
+import java.util.ListResourceBundle;
+
+/**
+ * German catalog for the generated benchmark questionnaires.
+ */
+public class Messages_de_DE extends ListResourceBundle {
+
+	protected Object[][] getContents() {
+		return MessageCatalog.contents(MessageCatalog.GERMAN);
+	}
+}
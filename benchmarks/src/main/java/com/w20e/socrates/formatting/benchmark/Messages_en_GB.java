@@ -0,0 +1,13 @@
+package com.w20e.socrates.formatting.benchmark;
+
+import java.util.ListResourceBundle;
+
+/**
+ * English catalog for the generated benchmark questionnaires.
+ */
+public class Messages_en_GB extends ListResourceBundle {
+
+	protected Object[][] getContents() {
+		return MessageCatalog.contents(MessageCatalog.ENGLISH);
+	}
+}
@@ -0,0 +1,207 @@
+package com.w20e.socrates.formatting.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.ModelImpl;
+import com.w20e.socrates.model.NodeImpl;
+import com.w20e.socrates.rendering.ControlImpl;
+import com.w20e.socrates.rendering.FlowGroup;
+import com.w20e.socrates.rendering.Group;
+import com.w20e.socrates.rendering.Input;
+import com.w20e.socrates.rendering.Option;
+import com.w20e.socrates.rendering.Renderable;
+import com.w20e.socrates.rendering.Select;
+import com.w20e.socrates.rendering.TextBlock;
+import com.w20e.socrates.rendering.TranslatableImpl;
+
+/**
+ * Generates synthetic questionnaire pages for the benchmarks. A page consists
+ * of the renderables handed to the formatter, plus the model and instance they
+ * are bound to.
+ */
+final class QuestionnaireGenerator {
+
+	/**
+	 * Largest number of controls a page may have.
+	 */
+	static final int MAX_CONTROLS = 5000;
+
+	/**
+	 * Largest number of groups a page may have.
+	 */
+	static final int MAX_GROUPS = 1000;
+
+	/**
+	 * Number of options in each generated select.
+	 */
+	static final int OPTIONS_PER_SELECT = 500;
+
+	/**
+	 * Number of children per generated group.
+	 */
+	static final int GROUP_SIZE = 10;
+
+	/**
+	 * Nesting depth for nested groups.
+	 */
+	static final int GROUP_DEPTH = 3;
+
+	/**
+	 * Page layouts that can be generated.
+	 */
+	enum Shape {
+		/** Plain input controls only. */
+		FLAT,
+		/** Input controls in groups nested {@link #GROUP_DEPTH} deep. */
+		NESTED,
+		/** Every tenth control is a select with a large option list. */
+		VOCABULARY,
+		/** Every control is followed by a text block with a fill. */
+		TEXT,
+		/** All of the above. */
+		MIXED
+	}
+
+	/**
+	 * One generated page.
+	 */
+	static final class Page {
+
+		final List<Renderable> items = new ArrayList<Renderable>();
+
+		final ModelImpl model = new ModelImpl();
+
+		final InstanceImpl instance = new InstanceImpl();
+	}
+
+	private int groups;
+
+	private QuestionnaireGenerator() {
+		// use generate
+	}
+
+	/**
+	 * Generate a page with the given number of controls and layout.
+	 * 
+	 * @param controls
+	 *            number of controls, at most {@link #MAX_CONTROLS}
+	 * @param shape
+	 *            page layout
+	 * @return the page
+	 */
+	static Page generate(final int controls, final Shape shape) {
+
+		if (controls > MAX_CONTROLS) {
+			throw new IllegalArgumentException("At most " + MAX_CONTROLS
+					+ " controls supported");
+		}
+
+		return new QuestionnaireGenerator().build(controls, shape);
+	}
+
+	private Page build(final int controls, final Shape shape) {
+
+		Page page = new Page();
+		boolean nested = shape == Shape.NESTED || shape == Shape.MIXED;
+		boolean selects = shape == Shape.VOCABULARY || shape == Shape.MIXED;
+		boolean texts = shape == Shape.TEXT || shape == Shape.MIXED;
+
+		List<Renderable> flat = new ArrayList<Renderable>();
+
+		for (int i = 0; i < controls; i++) {
+
+			page.instance.addNode(new NodeImpl(bind(i), "value " + i));
+
+			ControlImpl control;
+
+			if (selects && i % 10 == 0) {
+				Select select = new Select(id(i));
+				for (int j = 0; j < OPTIONS_PER_SELECT; j++) {
+					select.addOption(new Option("opt" + j, option(j)));
+				}
+				control = select;
+			} else {
+				control = new Input(id(i));
+			}
+
+			control.setBind(bind(i));
+			control.setLabel(label(i));
+			control.setHint(new TranslatableImpl(hint(i)));
+
+			flat.add(control);
+
+			if (texts) {
+				TextBlock text = new TextBlock("t" + i);
+				text.setText(text(i));
+				flat.add(text);
+			}
+		}
+
+		if (nested) {
+			page.items.addAll(nest(flat, GROUP_DEPTH));
+		} else {
+			page.items.addAll(flat);
+		}
+
+		return page;
+	}
+
+	/**
+	 * Wrap the given items in groups of {@link #GROUP_SIZE}, depth levels
+	 * deep.
+	 */
+	private List<Renderable> nest(final List<Renderable> items,
+			final int depth) {
+
+		if (depth == 0 || items.size() <= 1) {
+			return items;
+		}
+
+		List<Renderable> grouped = new ArrayList<Renderable>();
+
+		for (int i = 0; i < items.size(); i += GROUP_SIZE) {
+
+			int nr = this.groups++ % MAX_GROUPS;
+			Group group = new FlowGroup("g" + this.groups);
+			group.setLabel(groupLabel(nr));
+
+			for (Renderable r : items.subList(i,
+					Math.min(i + GROUP_SIZE, items.size()))) {
+				group.addItem(r);
+			}
+			grouped.add(group);
+		}
+
+		return nest(grouped, depth - 1);
+	}
+
+	static String id(final int i) {
+		return "c" + i;
+	}
+
+	static String bind(final int i) {
+		return "q" + i;
+	}
+
+	static String label(final int i) {
+		return "Question " + i;
+	}
+
+	static String hint(final int i) {
+		return "Hint " + i;
+	}
+
+	static String groupLabel(final int i) {
+		return "Group " + i;
+	}
+
+	static String option(final int i) {
+		return "Option " + i;
+	}
+
+	static String text(final int i) {
+		return "Text block " + i + ": you answered ${" + bind(i) + "}";
+	}
+}
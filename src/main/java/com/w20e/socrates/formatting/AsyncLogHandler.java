@@ -0,0 +1,223 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * Handler that hands records to another handler on a thread of it's own, so
+ * logging threads don't wait for I/O. When the queue is full, records are
+ * dropped and counted, rather than blocking the caller. Configure it in
+ * logging.properties, e.g.:
+ *
+ * <pre>
+ * com.w20e.socrates.formatting.VelocityLoggingWrapper.handlers = com.w20e.socrates.formatting.AsyncLogHandler
+ * com.w20e.socrates.formatting.AsyncLogHandler.target = java.util.logging.FileHandler
+ * com.w20e.socrates.formatting.AsyncLogHandler.queue_size = 1024
+ * com.w20e.socrates.formatting.AsyncLogHandler.level = INFO
+ * </pre>
+ */
+public final class AsyncLogHandler extends Handler {
+
+	/**
+	 * Default queue size.
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	private final Handler target;
+
+	private final BlockingQueue<LogRecord> queue;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final Thread worker;
+
+	private volatile boolean closed;
+
+	/**
+	 * The configured target handler, or the error creating it.
+	 */
+	private static final class Target {
+
+		private Handler handler;
+
+		private String name;
+
+		private Exception error;
+	}
+
+	/**
+	 * Create handler from the LogManager properties.
+	 */
+	public AsyncLogHandler() {
+
+		this(createTarget(), queueSize());
+
+		String level = property("level");
+
+		if (level != null) {
+			setLevel(Level.parse(level.trim()));
+		}
+	}
+
+	private AsyncLogHandler(final Target target, final int queueSize) {
+
+		this(target.handler, queueSize);
+
+		if (target.error != null) {
+			reportError("Can't create log handler " + target.name
+					+ ", using console", target.error,
+					ErrorManager.OPEN_FAILURE);
+		}
+	}
+
+	/**
+	 * Create handler.
+	 *
+	 * @param target
+	 *            handler to publish to
+	 * @param queueSize
+	 *            maximum number of records waiting
+	 */
+	public AsyncLogHandler(final Handler target, final int queueSize) {
+
+		this.target = target;
+		this.queue = new ArrayBlockingQueue<LogRecord>(queueSize);
+		this.worker = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "async-log-handler");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	@Override
+	public void publish(final LogRecord record) {
+
+		if (this.closed || !isLoggable(record)) {
+			return;
+		}
+
+		// The caller is inferred from the stack, so do it on this thread.
+		record.getSourceClassName();
+
+		if (!this.queue.offer(record)) {
+			this.dropped.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void flush() {
+
+		this.target.flush();
+	}
+
+	/**
+	 * Publish what is queued, and close the target.
+	 */
+	@Override
+	public void close() {
+
+		this.closed = true;
+		this.worker.interrupt();
+
+		try {
+			this.worker.join(1000L);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		publishQueued();
+		this.target.close();
+	}
+
+	/**
+	 * @return number of records dropped because the queue was full.
+	 */
+	public long getDropped() {
+		return this.dropped.get();
+	}
+
+	private void drain() {
+
+		try {
+			while (!this.closed) {
+				this.target.publish(this.queue.take());
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	private void publishQueued() {
+
+		List<LogRecord> rest = new ArrayList<LogRecord>();
+
+		this.queue.drainTo(rest);
+
+		for (LogRecord record : rest) {
+			this.target.publish(record);
+		}
+	}
+
+	private static Target createTarget() {
+
+		Target target = new Target();
+
+		target.name = property("target");
+
+		if (target.name != null) {
+			try {
+				target.handler = (Handler) Class.forName(target.name.trim(),
+						true, Thread.currentThread().getContextClassLoader())
+						.newInstance();
+			} catch (Exception e) {
+				target.error = e;
+			}
+		}
+
+		if (target.handler == null) {
+			target.handler = new ConsoleHandler();
+		}
+
+		return target;
+	}
+
+	private static int queueSize() {
+
+		String size = property("queue_size");
+
+		try {
+			return size == null ? DEFAULT_QUEUE_SIZE : Integer.parseInt(size
+					.trim());
+		} catch (NumberFormatException e) {
+			return DEFAULT_QUEUE_SIZE;
+		}
+	}
+
+	private static String property(final String name) {
+
+		return LogManager.getLogManager().getProperty(
+				AsyncLogHandler.class.getName() + "." + name);
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs renders on an executor, with at most a fixed number pending at any
+ * time. Callers that would exceed it wait for a render to finish, so a
+ * burst of requests can't queue up unbounded work. A render counts as
+ * pending until it has actually returned, also when cancelled before.
+ */
+final class AsyncRenderer {
+
+	/**
+	 * Initialize this class' logging.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(AsyncRenderer.class
+			.getName());
+
+	private final ExecutorService executor;
+
+	private final boolean ownExecutor;
+
+	private final Semaphore permits;
+
+	private final int maxPending;
+
+	/**
+	 * Settings the default executor was created from, or null for an
+	 * executor given by the user.
+	 */
+	private final FormatterSettings settings;
+
+	/**
+	 * Create renderer.
+	 *
+	 * @param executor
+	 *            executor to run on
+	 * @param ownExecutor
+	 *            whether to shut the executor down on shutdown
+	 * @param maxPending
+	 *            maximum number of renders submitted and not yet done
+	 */
+	AsyncRenderer(final ExecutorService executor, final boolean ownExecutor,
+			final int maxPending) {
+
+		this(executor, ownExecutor, maxPending, null);
+	}
+
+	private AsyncRenderer(final ExecutorService executor,
+			final boolean ownExecutor, final int maxPending,
+			final FormatterSettings settings) {
+
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+		this.maxPending = maxPending;
+		this.permits = new Semaphore(maxPending);
+		this.settings = settings;
+	}
+
+	/**
+	 * Create renderer on the default executor: a virtual thread per render
+	 * if the runtime has them and the settings allow, else a fixed pool of
+	 * daemon threads.
+	 *
+	 * @param settings
+	 *            settings
+	 * @return the renderer
+	 */
+	static AsyncRenderer create(final FormatterSettings settings) {
+
+		ExecutorService executor = null;
+
+		if (settings.isAsyncVirtualThreads()) {
+			try {
+				executor = (ExecutorService) Executors.class.getMethod(
+						"newVirtualThreadPerTaskExecutor").invoke(null);
+				LOGGER.info("Rendering asynchronously on virtual threads");
+			} catch (Exception e) {
+				LOGGER.fine("No virtual threads: " + e);
+			}
+		}
+
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(settings.getAsyncThreads(),
+					new RenderThreadFactory());
+			LOGGER.info("Rendering asynchronously on "
+					+ settings.getAsyncThreads() + " threads");
+		}
+
+		return new AsyncRenderer(executor, true,
+				settings.getAsyncMaxPending(), settings);
+	}
+
+	/**
+	 * Whether this renderer is still what the settings ask for. A renderer
+	 * on a user's executor always is, since formatter.async.* don't apply
+	 * to it.
+	 *
+	 * @param current
+	 *            new settings
+	 * @return false if the default executor must be created again
+	 */
+	boolean isCurrent(final FormatterSettings current) {
+
+		return this.settings == null
+				|| (this.settings.isAsyncVirtualThreads() == current
+						.isAsyncVirtualThreads()
+						&& this.settings.getAsyncThreads() == current
+								.getAsyncThreads() && this.settings
+						.getAsyncMaxPending() == current.getAsyncMaxPending());
+	}
+
+	/**
+	 * Submit render. Waits while the maximum number of renders is pending.
+	 *
+	 * @param render
+	 *            the render
+	 * @return future of the render; cancel interrupts it.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 * @throws RejectedExecutionException
+	 *             if the executor does not accept the render
+	 */
+	<T> Future<T> submit(final Callable<T> render) throws InterruptedException {
+
+		return submit(render, null);
+	}
+
+	/**
+	 * Submit render, like submit(render), and set the flag when the future
+	 * is cancelled. Work the render hands to other threads, that interrupts
+	 * don't reach, can check it.
+	 *
+	 * @param render
+	 *            the render
+	 * @param cancelled
+	 *            flag to set on cancel, or null
+	 * @return future of the render; cancel interrupts it.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 * @throws RejectedExecutionException
+	 *             if the executor does not accept the render
+	 */
+	<T> Future<T> submit(final Callable<T> render,
+			final AtomicBoolean cancelled) throws InterruptedException {
+
+		this.permits.acquire();
+
+		final FutureTask<T> future = new FutureTask<T>(render) {
+			@Override
+			public boolean cancel(final boolean mayInterruptIfRunning) {
+
+				if (cancelled != null) {
+					cancelled.set(true);
+				}
+
+				return super.cancel(mayInterruptIfRunning);
+			}
+		};
+
+		try {
+			// The permit is released when the render returns; a cancelled
+			// render may still be running when the future is done.
+			this.executor.execute(new Runnable() {
+				public void run() {
+					try {
+						future.run();
+					} finally {
+						AsyncRenderer.this.permits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.permits.release();
+			throw e;
+		}
+
+		return future;
+	}
+
+	/**
+	 * @return number of renders submitted and not yet done.
+	 */
+	int getPending() {
+		return this.maxPending - this.permits.availablePermits();
+	}
+
+	/**
+	 * Stop the executor, if it was created here. Running renders finish.
+	 */
+	void shutdown() {
+
+		if (this.ownExecutor) {
+			this.executor.shutdown();
+		}
+	}
+
+	/**
+	 * Daemon threads, so renders don't keep the VM alive.
+	 */
+	private static final class RenderThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(final Runnable r) {
+
+			Thread thread = new Thread(r, "velocity-formatter-"
+					+ this.count.incrementAndGet());
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	}
+}
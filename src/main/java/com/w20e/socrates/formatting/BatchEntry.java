@@ -0,0 +1,78 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.io.OutputStream;
+import java.util.Collection;
+
+import com.w20e.socrates.process.RunnerContext;
+import com.w20e.socrates.rendering.Renderable;
+
+/**
+ * One page of a batch: the items and context to format, and optionally the
+ * stream to write it to.
+ */
+public final class BatchEntry {
+
+	private final Collection<Renderable> items;
+
+	private final RunnerContext context;
+
+	private final OutputStream out;
+
+	/**
+	 * Create entry that is written to the batch sink.
+	 *
+	 * @param items
+	 *            items to format
+	 * @param context
+	 *            processing context
+	 */
+	public BatchEntry(final Collection<Renderable> items,
+			final RunnerContext context) {
+
+		this(items, context, null);
+	}
+
+	/**
+	 * Create entry with an output stream of it's own.
+	 *
+	 * @param items
+	 *            items to format
+	 * @param context
+	 *            processing context
+	 * @param out
+	 *            stream to write to, or null for the batch sink
+	 */
+	public BatchEntry(final Collection<Renderable> items,
+			final RunnerContext context, final OutputStream out) {
+
+		this.items = items;
+		this.context = context;
+		this.out = out;
+	}
+
+	public Collection<Renderable> getItems() {
+		return this.items;
+	}
+
+	public RunnerContext getContext() {
+		return this.context;
+	}
+
+	/**
+	 * @return stream of this entry, or null for the batch sink.
+	 */
+	public OutputStream getOut() {
+		return this.out;
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Outcome of a batch format.
+ */
+public final class BatchResult {
+
+	private final int count;
+
+	private final long durationMillis;
+
+	private final Map<Integer, FormatException> errors;
+
+	BatchResult(final int count, final long durationMillis,
+			final Map<Integer, FormatException> errors) {
+
+		this.count = count;
+		this.durationMillis = durationMillis;
+		this.errors = Collections.unmodifiableMap(errors);
+	}
+
+	/**
+	 * @return number of entries formatted, including failed ones.
+	 */
+	public int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * @return wall clock time of the batch.
+	 */
+	public long getDurationMillis() {
+		return this.durationMillis;
+	}
+
+	/**
+	 * @return error per index of an entry that failed. Failed entries write
+	 *         nothing to the batch sink.
+	 */
+	public Map<Integer, FormatException> getErrors() {
+		return this.errors;
+	}
+
+	/**
+	 * @return whether all entries were formatted.
+	 */
+	public boolean isOk() {
+		return this.errors.isEmpty();
+	}
+}
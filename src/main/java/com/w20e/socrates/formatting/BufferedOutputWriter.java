@@ -0,0 +1,390 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered writer for the formatter output. Characters are collected in a
+ * char buffer and encoded in bulk, UTF-8 directly and other charsets through
+ * a CharsetEncoder. The char and byte buffers are borrowed from the current
+ * thread and handed back on {@link #release()}, so repeated renders on one
+ * thread do not allocate them again. The underlying stream is flushed at the
+ * end only, or after every flushBytes bytes when that is larger than zero.
+ * The underlying stream is never closed.
+ */
+final class BufferedOutputWriter extends Writer {
+
+	/**
+	 * Default buffer size in chars.
+	 */
+	static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/**
+	 * Buffers not in use by a writer on this thread.
+	 */
+	private static final ThreadLocal<Buffers> POOL = new ThreadLocal<Buffers>();
+
+	private final OutputStream out;
+
+	private final boolean utf8;
+
+	private final CharsetEncoder encoder;
+
+	private final int flushBytes;
+
+	private Buffers buffers;
+
+	private char[] chars;
+
+	private byte[] bytes;
+
+	/**
+	 * Number of chars in the char buffer.
+	 */
+	private int count;
+
+	/**
+	 * Bytes written since the last flush of the stream.
+	 */
+	private long unflushed;
+
+	/**
+	 * Total bytes written.
+	 */
+	private long written;
+
+	/**
+	 * Create a new writer.
+	 *
+	 * @param out
+	 *            stream to write to
+	 * @param charset
+	 *            output encoding
+	 * @param bufferSize
+	 *            char buffer size
+	 * @param flushBytes
+	 *            flush the stream after this many bytes, or only at the end
+	 *            when zero
+	 */
+	BufferedOutputWriter(final OutputStream out, final Charset charset,
+			final int bufferSize, final int flushBytes) {
+
+		if (out == null) {
+			throw new NullPointerException("No output stream");
+		}
+
+		this.out = out;
+		this.utf8 = StandardCharsets.UTF_8.equals(charset);
+		this.flushBytes = Math.max(0, flushBytes);
+
+		int size = Math.max(bufferSize, 16);
+
+		this.buffers = borrow(size, this.utf8 ? size * 3
+				: (int) Math.ceil(size * charset.newEncoder().maxBytesPerChar()));
+		this.chars = this.buffers.chars;
+		this.bytes = this.buffers.bytes;
+
+		if (this.utf8) {
+			this.encoder = null;
+		} else {
+			this.encoder = charset.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	}
+
+	@Override
+	public void write(final int c) throws IOException {
+
+		ensureOpen();
+
+		if (this.count == this.chars.length) {
+			drain();
+		}
+		this.chars[this.count++] = (char) c;
+	}
+
+	@Override
+	public void write(final char[] cbuf, final int off, final int len)
+			throws IOException {
+
+		ensureOpen();
+
+		int pos = off;
+		int left = len;
+
+		while (left > 0) {
+			if (this.count == this.chars.length) {
+				drain();
+			}
+			int n = Math.min(left, this.chars.length - this.count);
+			System.arraycopy(cbuf, pos, this.chars, this.count, n);
+			this.count += n;
+			pos += n;
+			left -= n;
+		}
+	}
+
+	@Override
+	public void write(final String str, final int off, final int len)
+			throws IOException {
+
+		ensureOpen();
+
+		int pos = off;
+		int left = len;
+
+		while (left > 0) {
+			if (this.count == this.chars.length) {
+				drain();
+			}
+			int n = Math.min(left, this.chars.length - this.count);
+			str.getChars(pos, pos + n, this.chars, this.count);
+			this.count += n;
+			pos += n;
+			left -= n;
+		}
+	}
+
+	/**
+	 * Encode everything buffered and flush the underlying stream.
+	 */
+	@Override
+	public void flush() throws IOException {
+
+		ensureOpen();
+		encode(true);
+		this.out.flush();
+		this.unflushed = 0;
+	}
+
+	/**
+	 * Flush, and hand the buffers back. The underlying stream stays open.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (this.buffers == null) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Hand the buffers back to the thread without flushing. Anything not yet
+	 * flushed is discarded.
+	 */
+	void release() {
+
+		if (this.buffers != null && POOL.get() == null) {
+			POOL.set(this.buffers);
+		}
+		this.buffers = null;
+		this.chars = null;
+		this.bytes = null;
+	}
+
+	/**
+	 * @return number of bytes written to the stream so far.
+	 */
+	long getBytesWritten() {
+		return this.written;
+	}
+
+	private void ensureOpen() throws IOException {
+
+		if (this.buffers == null) {
+			throw new IOException("Writer released");
+		}
+	}
+
+	/**
+	 * Make room in the char buffer.
+	 */
+	private void drain() throws IOException {
+
+		encode(false);
+
+		if (this.flushBytes > 0 && this.unflushed >= this.flushBytes) {
+			this.out.flush();
+			this.unflushed = 0;
+		}
+	}
+
+	/**
+	 * Encode the char buffer into the byte buffer and write it out. Unless
+	 * this is the end of the input, a trailing high surrogate is kept for the
+	 * next round.
+	 */
+	private void encode(final boolean endOfInput) throws IOException {
+
+		if (this.count == 0) {
+			return;
+		}
+
+		if (this.utf8) {
+			encodeUtf8(endOfInput);
+		} else {
+			encodeCharset(endOfInput);
+		}
+	}
+
+	private void encodeUtf8(final boolean endOfInput) throws IOException {
+
+		char[] c = this.chars;
+		byte[] b = this.bytes;
+		int end = this.count;
+		int pos = 0;
+		int i = 0;
+
+		while (i < end) {
+
+			char ch = c[i];
+
+			if (ch < 0x80) {
+				b[pos++] = (byte) ch;
+			} else if (ch < 0x800) {
+				b[pos++] = (byte) (0xc0 | (ch >> 6));
+				b[pos++] = (byte) (0x80 | (ch & 0x3f));
+			} else if (Character.isHighSurrogate(ch)) {
+				if (i + 1 == end) {
+					if (!endOfInput) {
+						break;
+					}
+					b[pos++] = (byte) '?';
+				} else if (Character.isLowSurrogate(c[i + 1])) {
+					int cp = Character.toCodePoint(ch, c[++i]);
+					b[pos++] = (byte) (0xf0 | (cp >> 18));
+					b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					b[pos++] = (byte) (0x80 | (cp & 0x3f));
+				} else {
+					b[pos++] = (byte) '?';
+				}
+			} else if (Character.isLowSurrogate(ch)) {
+				b[pos++] = (byte) '?';
+			} else {
+				b[pos++] = (byte) (0xe0 | (ch >> 12));
+				b[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+				b[pos++] = (byte) (0x80 | (ch & 0x3f));
+			}
+			i++;
+		}
+
+		writeBytes(pos);
+		keep(i);
+	}
+
+	private void encodeCharset(final boolean endOfInput) throws IOException {
+
+		CharBuffer in = CharBuffer.wrap(this.chars, 0, this.count);
+		ByteBuffer buf = ByteBuffer.wrap(this.bytes);
+
+		while (true) {
+			CoderResult result = this.encoder.encode(in, buf, endOfInput);
+
+			if (endOfInput && result.isUnderflow()) {
+				result = this.encoder.flush(buf);
+			}
+			if (result.isOverflow()) {
+				writeBytes(buf.position());
+				buf.clear();
+				continue;
+			}
+			if (result.isError()) {
+				try {
+					result.throwException();
+				} catch (CharacterCodingException e) {
+					throw new IOException(e);
+				}
+			}
+			break;
+		}
+
+		writeBytes(buf.position());
+		keep(in.position());
+
+		if (endOfInput) {
+			this.encoder.reset();
+		}
+	}
+
+	private void writeBytes(final int len) throws IOException {
+
+		if (len > 0) {
+			this.out.write(this.bytes, 0, len);
+			this.unflushed += len;
+			this.written += len;
+		}
+	}
+
+	/**
+	 * Move chars not yet encoded to the start of the buffer.
+	 */
+	private void keep(final int consumed) {
+
+		int left = this.count - consumed;
+
+		if (left > 0) {
+			System.arraycopy(this.chars, consumed, this.chars, 0, left);
+		}
+		this.count = left;
+	}
+
+	/**
+	 * Take this thread's buffers if they are large enough, else allocate new
+	 * ones. A second writer on the same thread, e.g. a nested render, gets
+	 * its own.
+	 */
+	private static Buffers borrow(final int charSize, final int byteSize) {
+
+		Buffers pooled = POOL.get();
+
+		if (pooled != null && pooled.chars.length == charSize
+				&& pooled.bytes.length >= byteSize) {
+			POOL.remove();
+			return pooled;
+		}
+
+		return new Buffers(new char[charSize], new byte[byteSize]);
+	}
+
+	/**
+	 * Char and byte buffer pair.
+	 */
+	private static final class Buffers {
+
+		private final char[] chars;
+
+		private final byte[] bytes;
+
+		Buffers(final char[] chars, final byte[] bytes) {
+			this.chars = chars;
+			this.bytes = bytes;
+		}
+	}
+}
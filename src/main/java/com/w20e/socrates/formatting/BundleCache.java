@@ -0,0 +1,255 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.w20e.socrates.util.UTF8ResourceBundle;
+import com.w20e.socrates.util.UTF8ResourceBundleImpl;
+
+/**
+ * Resource bundles by locale, for all requests of a formatter. A locale's
+ * bundle is loaded once, and it's properties files are read into one
+ * table, most specific locale first. A null locale is the default locale.
+ * Bundles are reloaded on clear, or, with a check interval, when one of the
+ * files has changed. Reloading also empties ResourceBundle's cache, so the
+ * bundle templates get agrees with the table.
+ */
+final class BundleCache {
+
+	/**
+	 * Initialize this class' logging.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(BundleCache.class
+			.getName());
+
+	private static final ResourceBundle.Control CONTROL = ResourceBundle.Control
+			.getControl(ResourceBundle.Control.FORMAT_PROPERTIES);
+
+	private final String prefix;
+
+	/**
+	 * Milliseconds between checks for changed files, or 0 for none.
+	 */
+	private final long checkInterval;
+
+	private final ConcurrentMap<Locale, LocaleBundle> bundles = new ConcurrentHashMap<Locale, LocaleBundle>();
+
+	private final AtomicLong loads = new AtomicLong();
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param prefix
+	 *            bundle base name, formatter.locale.prefix
+	 * @param checkInterval
+	 *            milliseconds between checks for changed files, or 0 to only
+	 *            reload on clear
+	 */
+	BundleCache(final String prefix, final long checkInterval) {
+
+		this.prefix = prefix;
+		this.checkInterval = Math.max(0, checkInterval);
+	}
+
+	/**
+	 * Get the bundle for the locale.
+	 */
+	LocaleBundle get(final Locale pLocale) {
+
+		Locale locale = pLocale == null ? Locale.getDefault() : pLocale;
+		LocaleBundle bundle = this.bundles.get(locale);
+
+		if (bundle != null && this.checkInterval > 0) {
+			long now = System.currentTimeMillis();
+
+			if (now - bundle.getChecked() >= this.checkInterval) {
+				bundle.setChecked(now);
+
+				if (isModified(bundle)) {
+					LOGGER.info("Reloading resource bundle for " + locale);
+					this.bundles.remove(locale, bundle);
+					clearResourceBundles();
+					bundle = null;
+				}
+			}
+		}
+
+		if (bundle == null) {
+			bundle = load(locale);
+
+			LocaleBundle other = this.bundles.putIfAbsent(locale, bundle);
+
+			if (other != null) {
+				bundle = other;
+			}
+		}
+
+		return bundle;
+	}
+
+	/**
+	 * Drop all bundles; they are loaded again on next use.
+	 */
+	void clear() {
+
+		this.bundles.clear();
+		clearResourceBundles();
+	}
+
+	/**
+	 * @return number of times a bundle was loaded.
+	 */
+	long getLoads() {
+		return this.loads.get();
+	}
+
+	private LocaleBundle load(final Locale locale) {
+
+		this.loads.incrementAndGet();
+
+		UTF8ResourceBundle bundle = UTF8ResourceBundleImpl.getBundle(
+				this.prefix, locale);
+
+		if (this.prefix == null) {
+			return new LocaleBundle(locale, bundle,
+					Collections.<String, String> emptyMap(), new URL[0],
+					new long[0]);
+		}
+
+		List<Locale> chain = CONTROL.getCandidateLocales(this.prefix, locale);
+		Map<String, String> messages = new HashMap<String, String>();
+		List<URL> sources = new ArrayList<URL>();
+		List<Long> stamps = new ArrayList<Long>();
+		ClassLoader loader = classLoader();
+
+		// Root first, so more specific locales override.
+		for (int i = chain.size() - 1; i >= 0; i--) {
+
+			URL url = loader.getResource(CONTROL.toResourceName(
+					CONTROL.toBundleName(this.prefix, chain.get(i)),
+					"properties"));
+
+			if (url == null) {
+				continue;
+			}
+
+			try {
+				Properties props = read(url);
+
+				for (String key : props.stringPropertyNames()) {
+					messages.put(key, props.getProperty(key));
+				}
+				sources.add(url);
+				stamps.add(Long.valueOf(lastModified(url)));
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Can't read " + url, e);
+			}
+		}
+
+		long[] times = new long[stamps.size()];
+
+		for (int i = 0; i < times.length; i++) {
+			times[i] = stamps.get(i).longValue();
+		}
+
+		return new LocaleBundle(locale, bundle, messages, sources
+				.toArray(new URL[sources.size()]), times);
+	}
+
+	private static boolean isModified(final LocaleBundle bundle) {
+
+		URL[] sources = bundle.getSources();
+		long[] stamps = bundle.getStamps();
+
+		for (int i = 0; i < sources.length; i++) {
+			if (lastModified(sources[i]) != stamps[i]) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static long lastModified(final URL url) {
+
+		try {
+			URLConnection conn = url.openConnection();
+			conn.setUseCaches(false);
+
+			try {
+				return conn.getLastModified();
+			} finally {
+				conn.getInputStream().close();
+			}
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	private static Properties read(final URL url) throws IOException {
+
+		Properties props = new Properties();
+		URLConnection conn = url.openConnection();
+
+		conn.setUseCaches(false);
+
+		InputStream in = conn.getInputStream();
+
+		try {
+			Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+			props.load(reader);
+		} finally {
+			in.close();
+		}
+
+		return props;
+	}
+
+	/**
+	 * Empty ResourceBundle's cache for the loaders bundles may come from,
+	 * so the next getBundle reads the files again.
+	 */
+	private static void clearResourceBundles() {
+
+		ResourceBundle.clearCache(classLoader());
+		ResourceBundle.clearCache(BundleCache.class.getClassLoader());
+		ResourceBundle.clearCache(UTF8ResourceBundleImpl.class
+				.getClassLoader());
+	}
+
+	private static ClassLoader classLoader() {
+
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+
+		return loader == null ? BundleCache.class.getClassLoader() : loader;
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses rendered output while it's written, as gzip or as zlib
+ * ("deflate" in HTTP). Flushing the stream does a sync flush, so the
+ * client gets what is rendered so far. The deflater is reused by the next
+ * render on the same thread. finish writes the end of the compressed data
+ * but leaves the underlying stream open.
+ */
+final class CompressingOutputStream extends DeflaterOutputStream {
+
+	/**
+	 * gzip compression.
+	 */
+	static final String GZIP = "gzip";
+
+	/**
+	 * zlib compression, HTTP's "deflate".
+	 */
+	static final String DEFLATE = "deflate";
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b,
+			Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	/**
+	 * Idle deflaters of this thread, raw (for gzip) and zlib.
+	 */
+	private static final ThreadLocal<Deflater[]> POOL = new ThreadLocal<Deflater[]>() {
+		@Override
+		protected Deflater[] initialValue() {
+			return new Deflater[2];
+		}
+	};
+
+	/**
+	 * Checksum of the uncompressed data, for gzip only.
+	 */
+	private final CRC32 crc;
+
+	private final int slot;
+
+	private boolean finished;
+
+	private boolean released;
+
+	private CompressingOutputStream(final OutputStream out,
+			final Deflater deflater, final boolean gzip) throws IOException {
+
+		super(out, deflater, BUFFER_SIZE, true);
+
+		this.slot = gzip ? 0 : 1;
+		this.crc = gzip ? new CRC32() : null;
+
+		if (gzip) {
+			out.write(GZIP_HEADER);
+		}
+	}
+
+	/**
+	 * Wrap the stream.
+	 *
+	 * @param out
+	 *            stream to write compressed data to
+	 * @param encoding
+	 *            GZIP or DEFLATE
+	 * @param level
+	 *            compression level, 0 - 9
+	 * @return the compressing stream
+	 * @throws IllegalArgumentException
+	 *             for other encodings
+	 */
+	static CompressingOutputStream create(final OutputStream out,
+			final String encoding, final int level) throws IOException {
+
+		boolean gzip;
+
+		if (GZIP.equalsIgnoreCase(encoding)) {
+			gzip = true;
+		} else if (DEFLATE.equalsIgnoreCase(encoding)) {
+			gzip = false;
+		} else {
+			throw new IllegalArgumentException("Unknown compression "
+					+ encoding);
+		}
+
+		Deflater[] pool = POOL.get();
+		int slot = gzip ? 0 : 1;
+		Deflater deflater = pool[slot];
+
+		if (deflater == null) {
+			deflater = new Deflater(level, gzip);
+		} else {
+			pool[slot] = null;
+			deflater.setLevel(level);
+		}
+
+		return new CompressingOutputStream(out, deflater, gzip);
+	}
+
+	/**
+	 * @return whether the encoding is one this stream does.
+	 */
+	static boolean isSupported(final String encoding) {
+		return GZIP.equalsIgnoreCase(encoding)
+				|| DEFLATE.equalsIgnoreCase(encoding);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len)
+			throws IOException {
+
+		super.write(b, off, len);
+
+		if (this.crc != null) {
+			this.crc.update(b, off, len);
+		}
+	}
+
+	@Override
+	public void finish() throws IOException {
+
+		if (this.finished) {
+			return;
+		}
+
+		super.finish();
+
+		if (this.crc != null) {
+			byte[] trailer = new byte[8];
+			writeInt(trailer, 0, (int) this.crc.getValue());
+			writeInt(trailer, 4, this.def.getTotalIn());
+			this.out.write(trailer);
+		}
+
+		this.finished = true;
+	}
+
+	/**
+	 * Hand the deflater back to the thread. The stream can't be used
+	 * afterwards.
+	 */
+	void release() {
+
+		if (this.released) {
+			return;
+		}
+		this.released = true;
+
+		Deflater[] pool = POOL.get();
+
+		this.def.reset();
+
+		if (pool[this.slot] == null) {
+			pool[this.slot] = this.def;
+		} else {
+			this.def.end();
+		}
+	}
+
+	/**
+	 * Finish, but don't close the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		finish();
+	}
+
+	private static void writeInt(final byte[] buf, final int off,
+			final int value) {
+
+		buf[off] = (byte) value;
+		buf[off + 1] = (byte) (value >> 8);
+		buf[off + 2] = (byte) (value >> 16);
+		buf[off + 3] = (byte) (value >> 24);
+	}
+}
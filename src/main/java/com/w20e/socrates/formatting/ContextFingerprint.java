@@ -0,0 +1,248 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.velocity.context.Context;
+
+import com.w20e.socrates.rendering.Group;
+import com.w20e.socrates.rendering.Option;
+import com.w20e.socrates.rendering.RenderOptionsImpl;
+import com.w20e.socrates.rendering.Renderable;
+import com.w20e.socrates.rendering.Translatable;
+
+/**
+ * Digests of a filled Velocity context. An item is described by it's
+ * computed context (and that of it's children); every digest also covers
+ * the template, translation generation, locale and the page wide values
+ * templates commonly use: render options, debug, errors, state id,
+ * navigation and progress. Describing an item reads all of it's context
+ * (through ItemContext.entrySet), so with formatter.context.lazy every
+ * item's context is computed when it's fingerprinted: the fragment cache
+ * and ETags cancel what lazy context saves.
+ */
+final class ContextFingerprint {
+
+	/**
+	 * Page wide values in the fingerprint, besides render options.
+	 */
+	private static final String[] PAGE_KEYS = { "locale", "debug", "errors",
+			"stateId", "hasNext", "hasPrevious", "percentage_done" };
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Digest per thread; creating one is not free.
+	 */
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>();
+
+	private final Map<?, ?> values;
+
+	/**
+	 * Page wide part of every fingerprint.
+	 */
+	private final String page;
+
+	/**
+	 * Create fingerprint for a filled context.
+	 *
+	 * @param context
+	 *            filled Velocity context
+	 * @param template
+	 *            name of the template
+	 * @param generation
+	 *            translation cache generation
+	 */
+	ContextFingerprint(final Context context, final String template,
+			final int generation) {
+
+		this.values = (Map<?, ?>) context.get("context");
+
+		StringBuilder buf = new StringBuilder();
+
+		describe(buf, template);
+		buf.append(generation).append(';');
+
+		for (String key : PAGE_KEYS) {
+			describe(buf, context.get(key));
+		}
+
+		Object options = context.get("renderOptions");
+
+		if (options instanceof RenderOptionsImpl) {
+			RenderOptionsImpl opts = (RenderOptionsImpl) options;
+			Set<String> keys = opts.keys();
+
+			if (keys != null) {
+				for (String key : new TreeSet<String>(keys)) {
+					describe(buf, key);
+					buf.append(opts.isEnabled(key, false) ? '+' : '-');
+				}
+			}
+		}
+
+		this.page = buf.toString();
+	}
+
+	/**
+	 * Fingerprint of the whole page.
+	 *
+	 * @param items
+	 *            the items on the page
+	 * @return the digest, as hex
+	 */
+	String page(final Collection<Renderable> items) {
+
+		StringBuilder buf = new StringBuilder(this.page);
+
+		for (Renderable item : items) {
+			describeItem(buf, item);
+		}
+
+		return digest(buf);
+	}
+
+	/**
+	 * Fingerprint of the item, within this page.
+	 *
+	 * @param item
+	 *            the item
+	 * @param extra
+	 *            other values the fragment depends on
+	 * @return the digest, as hex
+	 */
+	String item(final Renderable item, final Object[] extra) {
+
+		StringBuilder buf = new StringBuilder(this.page);
+
+		describeItem(buf, item);
+
+		for (Object value : extra) {
+			describe(buf, value);
+		}
+
+		return digest(buf);
+	}
+
+	private void describeItem(final StringBuilder buf, final Renderable item) {
+
+		buf.append('[').append(item.getClass().getName()).append(' ');
+		describe(buf, item.getId());
+
+		Object ctx = this.values == null ? null : this.values.get(item
+				.getId());
+
+		if (ctx instanceof Map) {
+			describe(buf, ctx);
+		}
+
+		if (item instanceof Group) {
+			for (Renderable child : ((Group) item).getItems()) {
+				describeItem(buf, child);
+			}
+		}
+
+		buf.append(']');
+	}
+
+	/**
+	 * Append an unambiguous description of the value.
+	 */
+	static void describe(final StringBuilder buf, final Object value) {
+
+		if (value == null) {
+			buf.append('~');
+		} else if (value instanceof CharSequence) {
+			CharSequence str = (CharSequence) value;
+			buf.append('s').append(str.length()).append(':').append(str);
+		} else if (value instanceof Number || value instanceof Boolean
+				|| value instanceof Character || value instanceof Enum) {
+			buf.append('n').append(value).append(';');
+		} else if (value instanceof Date) {
+			buf.append('d').append(((Date) value).getTime()).append(';');
+		} else if (value instanceof Translatable) {
+			Translatable str = (Translatable) value;
+			buf.append('t');
+			describe(buf, str.getMsgid());
+			describe(buf, str.getMsgctx());
+		} else if (value instanceof Option) {
+			Option opt = (Option) value;
+			buf.append('o');
+			describe(buf, opt.getValue());
+			describe(buf, opt.getLabel());
+		} else if (value instanceof Map) {
+			Map<String, Object> sorted = new TreeMap<String, Object>();
+
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				StringBuilder key = new StringBuilder();
+				describe(key, entry.getKey());
+				sorted.put(key.toString(), entry.getValue());
+			}
+
+			buf.append('{');
+			for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+				buf.append(entry.getKey());
+				describe(buf, entry.getValue());
+			}
+			buf.append('}');
+		} else if (value instanceof Collection) {
+			buf.append('(');
+			for (Object element : (Collection<?>) value) {
+				describe(buf, element);
+			}
+			buf.append(')');
+		} else if (value instanceof Object[]) {
+			buf.append('(');
+			for (Object element : (Object[]) value) {
+				describe(buf, element);
+			}
+			buf.append(')');
+		} else {
+			buf.append('x').append(value.getClass().getName());
+			describe(buf, value.toString());
+		}
+	}
+
+	private static String digest(final CharSequence text) {
+
+		MessageDigest md = DIGEST.get();
+
+		if (md == null) {
+			try {
+				md = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+			DIGEST.set(md);
+		}
+
+		byte[] hash = md.digest(text.toString().getBytes(
+				StandardCharsets.UTF_8));
+		char[] hex = new char[hash.length * 2];
+
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+		}
+
+		return new String(hex);
+	}
+}
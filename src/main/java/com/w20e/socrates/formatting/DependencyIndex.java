@@ -0,0 +1,444 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.data.Node;
+import com.w20e.socrates.model.Model;
+
+/**
+ * Results of evaluations and fills of earlier renders in a session, with
+ * the instance nodes each of them read. Reads are recorded by handing the
+ * evaluator an instance that notes every getNode. At the start of a render
+ * the values of all recorded nodes are compared with what they were, and
+ * only the results that read a changed node are dropped. Values are kept
+ * as text, so a value that was changed in place counts as changed. The
+ * number of results is bounded; the oldest are dropped first. A result that
+ * used the instance in any other way can't be tracked, and is not kept.
+ * Code that needs the instance's own class, and fails on the view with a
+ * ClassCastException, makes the index unusable; renders then go without
+ * it.
+ */
+final class DependencyIndex {
+
+	/**
+	 * Default maximum number of results.
+	 */
+	static final int DEFAULT_SIZE = 10000;
+
+	/**
+	 * Returned by get for unknown keys; null is a valid result.
+	 */
+	static final Object MISSING = new Object();
+
+	/**
+	 * Stands for a null result, or a missing node.
+	 */
+	private static final Object NULL = new Object();
+
+	/**
+	 * Recording of the current computation on this thread.
+	 */
+	private static final ThreadLocal<Recording> CURRENT = new ThreadLocal<Recording>();
+
+	/**
+	 * Model the results are for; other models start afresh.
+	 */
+	private Model model;
+
+	private final int maxSize;
+
+	private final ConcurrentMap<String, Object> results = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * Paths read by each result, oldest result first. Guarded by this.
+	 */
+	private final Map<String, Set<String>> reads = new LinkedHashMap<String, Set<String>>();
+
+	/**
+	 * Render configs fills were done with, by equality, with their id. Held
+	 * weakly, so configs of past requests don't stay. Guarded by this.
+	 */
+	private final Map<Object, Integer> configs = new WeakHashMap<Object, Integer>();
+
+	private int nextConfig;
+
+	/**
+	 * Node value by path, as text, when read. Guarded by this.
+	 */
+	private final Map<String, Object> snapshot = new HashMap<String, Object>();
+
+	/**
+	 * Result keys by the paths they read. Guarded by this.
+	 */
+	private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+	/**
+	 * False once an evaluation failed on the recording view.
+	 */
+	private volatile boolean usable = true;
+
+	private final AtomicLong reused = new AtomicLong();
+
+	private final AtomicLong computed = new AtomicLong();
+
+	/**
+	 * Create index holding at most DEFAULT_SIZE results.
+	 */
+	DependencyIndex() {
+
+		this(DEFAULT_SIZE);
+	}
+
+	/**
+	 * Create index.
+	 *
+	 * @param maxSize
+	 *            maximum number of results
+	 */
+	DependencyIndex(final int maxSize) {
+
+		this.maxSize = Math.max(1, maxSize);
+	}
+
+	/**
+	 * Nodes read by a computation.
+	 */
+	static final class Recording {
+
+		private final Recording outer;
+
+		private final Map<String, Node> reads = new LinkedHashMap<String, Node>();
+
+		private boolean untracked;
+
+		Recording(final Recording outer) {
+			this.outer = outer;
+		}
+	}
+
+	/**
+	 * Start a render: drop what depends on changed nodes.
+	 *
+	 * @param current
+	 *            the model
+	 * @param instance
+	 *            the instance, as it is now
+	 * @return the instance to evaluate against, that records reads
+	 */
+	synchronized Instance begin(final Model current, final Instance instance) {
+
+		if (current != this.model) {
+			clear();
+			this.model = current;
+		}
+
+		Set<String> changed = new HashSet<String>();
+
+		for (Map.Entry<String, Object> read : this.snapshot.entrySet()) {
+			if (!read.getValue().equals(valueOf(instance, read.getKey()))) {
+				changed.add(read.getKey());
+			}
+		}
+
+		for (String path : changed) {
+			this.snapshot.remove(path);
+
+			Set<String> keys = this.dependents.remove(path);
+
+			if (keys != null) {
+				for (String key : keys) {
+					forget(key);
+				}
+			}
+		}
+
+		return track(instance);
+	}
+
+	/**
+	 * Get an earlier result.
+	 *
+	 * @return the result, or MISSING
+	 */
+	Object get(final String key) {
+
+		Object result = this.results.get(key);
+
+		if (result == null) {
+			return MISSING;
+		}
+
+		this.reused.incrementAndGet();
+
+		return result == NULL ? null : result;
+	}
+
+	/**
+	 * Start recording the reads of a computation on this thread.
+	 */
+	Recording start() {
+
+		Recording recording = new Recording(CURRENT.get());
+
+		CURRENT.set(recording);
+
+		return recording;
+	}
+
+	/**
+	 * Stop recording, and keep the result if the computation succeeded and
+	 * it's reads were tracked. Reads count for the enclosing computation as
+	 * well.
+	 */
+	void finish(final Recording recording, final String key,
+			final boolean ok, final Object result) {
+
+		Recording outer = recording.outer;
+
+		if (outer == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(outer);
+			outer.reads.putAll(recording.reads);
+			outer.untracked |= recording.untracked;
+		}
+
+		this.computed.incrementAndGet();
+
+		if (!ok || recording.untracked || !this.usable) {
+			return;
+		}
+
+		synchronized (this) {
+			// A result computed again replaces the old one, reads and all.
+			forget(key);
+
+			for (Map.Entry<String, Node> read : recording.reads.entrySet()) {
+
+				String path = read.getKey();
+
+				if (!this.snapshot.containsKey(path)) {
+					Node node = read.getValue();
+					this.snapshot.put(path, node == null ? NULL
+							: copyOf(node.getValue()));
+				}
+
+				Set<String> keys = this.dependents.get(path);
+
+				if (keys == null) {
+					keys = new HashSet<String>();
+					this.dependents.put(path, keys);
+				}
+				keys.add(key);
+			}
+
+			this.results.put(key, nullSafe(result));
+			this.reads.put(key, new HashSet<String>(recording.reads.keySet()));
+
+			if (this.reads.size() > this.maxSize) {
+				Iterator<String> eldest = this.reads.keySet().iterator();
+				forget(eldest.next());
+			}
+		}
+	}
+
+	/**
+	 * Note a read of a node that was got without the tracking instance,
+	 * e.g. from a per request cache, for the current computation.
+	 */
+	static void read(final String path, final Node node) {
+
+		Recording recording = CURRENT.get();
+
+		if (recording != null) {
+			recording.reads.put(path, node);
+		}
+	}
+
+	/**
+	 * Id of the render config, to key results that depend on it. Equal
+	 * configs get the same id, as long as one of them is in use.
+	 */
+	synchronized int configId(final Object config) {
+
+		Integer id = this.configs.get(config);
+
+		if (id == null) {
+			id = Integer.valueOf(this.nextConfig++);
+			this.configs.put(config, id);
+		}
+
+		return id.intValue();
+	}
+
+	/**
+	 * Note a failed evaluation. One that failed casting the instance makes
+	 * the index unusable, and empties it.
+	 */
+	void failed(final Throwable error) {
+
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ClassCastException) {
+				this.usable = false;
+				clear();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return whether renders can evaluate against the recording view.
+	 */
+	boolean isUsable() {
+		return this.usable;
+	}
+
+	synchronized void clear() {
+
+		this.results.clear();
+		this.reads.clear();
+		this.configs.clear();
+		this.snapshot.clear();
+		this.dependents.clear();
+	}
+
+	int size() {
+		return this.results.size();
+	}
+
+	long getReused() {
+		return this.reused.get();
+	}
+
+	long getComputed() {
+		return this.computed.get();
+	}
+
+	/**
+	 * Drop a result, and the snapshots of paths no other result read.
+	 * Called holding this.
+	 */
+	private void forget(final String key) {
+
+		this.results.remove(key);
+
+		Set<String> paths = this.reads.remove(key);
+
+		if (paths == null) {
+			return;
+		}
+
+		for (String path : paths) {
+			Set<String> keys = this.dependents.get(path);
+
+			if (keys != null) {
+				keys.remove(key);
+
+				if (keys.isEmpty()) {
+					this.dependents.remove(path);
+					this.snapshot.remove(path);
+				}
+			}
+		}
+	}
+
+	private static Object valueOf(final Instance instance, final String path) {
+
+		try {
+			Node node = instance.getNode(path);
+			return node == null ? NULL : copyOf(node.getValue());
+		} catch (Exception e) {
+			return NULL;
+		}
+	}
+
+	private static Object nullSafe(final Object value) {
+		return value == null ? NULL : value;
+	}
+
+	/**
+	 * Value as text, with it's type, that later changes to the value don't
+	 * affect.
+	 */
+	private static Object copyOf(final Object value) {
+
+		if (value == null) {
+			return NULL;
+		}
+
+		String text = value.getClass().isArray() ? Arrays
+				.deepToString(new Object[] { value }) : value.toString();
+
+		return value.getClass().getName() + ':' + text;
+	}
+
+	/**
+	 * Wrap the instance, so reads are recorded.
+	 */
+	private static Instance track(final Instance instance) {
+
+		return (Instance) Proxy.newProxyInstance(Instance.class
+				.getClassLoader(), new Class<?>[] { Instance.class },
+				new InvocationHandler() {
+
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args)
+							throws Throwable {
+
+						Recording recording = CURRENT.get();
+						boolean read = "getNode".equals(method.getName())
+								&& args != null && args.length == 1
+								&& args[0] instanceof String;
+
+						if (recording != null && !read
+								&& method.getDeclaringClass() != Object.class) {
+							recording.untracked = true;
+						}
+
+						try {
+							Object result = method.invoke(instance, args);
+
+							if (recording != null && read) {
+								recording.reads.put((String) args[0],
+										result instanceof Node ? (Node) result
+												: null);
+							}
+
+							return result;
+						} catch (InvocationTargetException e) {
+							// A missing node is a read as well.
+							if (recording != null && read) {
+								recording.reads.put((String) args[0], null);
+							}
+							throw e.getCause();
+						}
+					}
+				});
+	}
+}
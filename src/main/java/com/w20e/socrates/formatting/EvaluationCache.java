@@ -0,0 +1,450 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.data.Node;
+import com.w20e.socrates.model.InvalidPathExpression;
+import com.w20e.socrates.model.ItemProperties;
+import com.w20e.socrates.model.ItemPropertiesImpl;
+import com.w20e.socrates.model.Model;
+import com.w20e.socrates.model.NodeValidator;
+
+/**
+ * Results of evaluating binds against the instance, for one request.
+ * Controls sharing a bind, and the relevance checks of groups, get the
+ * results of the first evaluation. The cache lives as long as the request;
+ * results of earlier requests are only served through a session's
+ * DependencyIndex. It is safe for use by several threads; each bind is
+ * evaluated by one thread at a time.
+ */
+final class EvaluationCache {
+
+	private static final byte UNKNOWN = 0;
+
+	private static final byte FALSE = 1;
+
+	private static final byte TRUE = 2;
+
+	private final Model model;
+
+	private final Instance instance;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private final AtomicInteger evaluations = new AtomicInteger();
+
+	private final AtomicInteger saved = new AtomicInteger();
+
+	/**
+	 * Sample to add evaluation time to, or null.
+	 */
+	private final RenderSample sample;
+
+	/**
+	 * Results of earlier renders in the session, or null.
+	 */
+	private final DependencyIndex index;
+
+	/**
+	 * Results for one bind.
+	 */
+	private static final class Entry {
+
+		private ItemProperties props;
+
+		private boolean nodeDone;
+
+		private Node node;
+
+		private InvalidPathExpression nodeError;
+
+		private boolean valueDone;
+
+		private Object value;
+
+		private Exception valueError;
+
+		private byte required = UNKNOWN;
+
+		private byte relevant = UNKNOWN;
+
+		private byte readonly = UNKNOWN;
+	}
+
+	/**
+	 * Create cache.
+	 *
+	 * @param model
+	 *            the model
+	 * @param instance
+	 *            the instance, that must not change during the request
+	 */
+	EvaluationCache(final Model model, final Instance instance) {
+
+		this(model, instance, null);
+	}
+
+	/**
+	 * Create cache that adds the time spent evaluating to the sample.
+	 *
+	 * @param model
+	 *            the model
+	 * @param instance
+	 *            the instance, that must not change during the request
+	 * @param sample
+	 *            render sample, or null
+	 */
+	EvaluationCache(final Model model, final Instance instance,
+			final RenderSample sample) {
+
+		this(model, instance, sample, null);
+	}
+
+	/**
+	 * Create cache that also serves results of earlier renders in the
+	 * session, if the nodes they read didn't change.
+	 *
+	 * @param model
+	 *            the model
+	 * @param instance
+	 *            the instance, as returned by the index' begin
+	 * @param sample
+	 *            render sample, or null
+	 * @param index
+	 *            session results, or null
+	 */
+	EvaluationCache(final Model model, final Instance instance,
+			final RenderSample sample, final DependencyIndex index) {
+
+		this.model = model;
+		this.instance = instance;
+		this.sample = sample;
+		this.index = index;
+	}
+
+	/**
+	 * Get the item properties for the bind, or defaults if the model has
+	 * none.
+	 */
+	ItemProperties getProperties(final String bind) {
+
+		Entry entry = entry(bind);
+
+		synchronized (entry) {
+			if (entry.props != null) {
+				this.saved.incrementAndGet();
+			}
+
+			return props(entry, bind);
+		}
+	}
+
+	/**
+	 * Get the node for the bind.
+	 *
+	 * @throws InvalidPathExpression
+	 *             if the instance has no such node
+	 */
+	Node getNode(final String bind) throws InvalidPathExpression {
+
+		Entry entry = entry(bind);
+
+		synchronized (entry) {
+			if (entry.nodeDone) {
+				this.saved.incrementAndGet();
+			}
+
+			return node(entry, bind);
+		}
+	}
+
+	/**
+	 * Get the value of the bind's node, with calculations applied.
+	 *
+	 * @throws Exception
+	 *             if the node is missing, or evaluation fails
+	 */
+	Object getValue(final String bind) throws Exception {
+
+		Entry entry = entry(bind);
+
+		synchronized (entry) {
+			if (entry.valueDone) {
+				this.saved.incrementAndGet();
+			} else {
+				String key = "v:" + bind;
+				Object known = recall(key);
+
+				if (known != DependencyIndex.MISSING) {
+					entry.value = known;
+				} else {
+					DependencyIndex.Recording recording = record();
+					boolean ok = false;
+					try {
+						Node node = node(entry, bind);
+						DependencyIndex.read(bind, node);
+						this.evaluations.incrementAndGet();
+						ItemProperties props = props(entry, bind);
+						long start = start();
+						try {
+							entry.value = NodeValidator.getValue(node, props,
+									this.model, this.instance);
+							ok = true;
+						} finally {
+							stop(start);
+						}
+					} catch (Exception e) {
+						entry.valueError = e;
+						failed(e);
+					} finally {
+						keep(recording, key, ok, entry.value);
+					}
+				}
+				entry.valueDone = true;
+			}
+
+			if (entry.valueError != null) {
+				throw entry.valueError;
+			}
+
+			return entry.value;
+		}
+	}
+
+	boolean isRequired(final String bind) {
+
+		Entry entry = entry(bind);
+
+		synchronized (entry) {
+			if (entry.required == UNKNOWN) {
+				String key = "q:" + bind;
+				Object known = recall(key);
+
+				if (known != DependencyIndex.MISSING) {
+					entry.required = ((Byte) known).byteValue();
+				} else {
+					ItemProperties props = props(entry, bind);
+					DependencyIndex.Recording recording = record();
+					boolean ok = false;
+					this.evaluations.incrementAndGet();
+					long start = start();
+					try {
+						entry.required = toByte(NodeValidator.isRequired(props,
+								this.instance, this.model));
+						ok = true;
+					} catch (RuntimeException e) {
+						failed(e);
+						throw e;
+					} finally {
+						stop(start);
+						keep(recording, key, ok, Byte.valueOf(entry.required));
+					}
+				}
+			} else {
+				this.saved.incrementAndGet();
+			}
+
+			return entry.required == TRUE;
+		}
+	}
+
+	boolean isRelevant(final String bind) {
+
+		Entry entry = entry(bind);
+
+		synchronized (entry) {
+			if (entry.relevant == UNKNOWN) {
+				String key = "r:" + bind;
+				Object known = recall(key);
+
+				if (known != DependencyIndex.MISSING) {
+					entry.relevant = ((Byte) known).byteValue();
+				} else {
+					ItemProperties props = props(entry, bind);
+					DependencyIndex.Recording recording = record();
+					boolean ok = false;
+					this.evaluations.incrementAndGet();
+					long start = start();
+					try {
+						entry.relevant = toByte(NodeValidator.isRelevant(props,
+								this.instance, this.model));
+						ok = true;
+					} catch (RuntimeException e) {
+						failed(e);
+						throw e;
+					} finally {
+						stop(start);
+						keep(recording, key, ok, Byte.valueOf(entry.relevant));
+					}
+				}
+			} else {
+				this.saved.incrementAndGet();
+			}
+
+			return entry.relevant == TRUE;
+		}
+	}
+
+	boolean isReadOnly(final String bind) {
+
+		Entry entry = entry(bind);
+
+		synchronized (entry) {
+			if (entry.readonly == UNKNOWN) {
+				String key = "o:" + bind;
+				Object known = recall(key);
+
+				if (known != DependencyIndex.MISSING) {
+					entry.readonly = ((Byte) known).byteValue();
+				} else {
+					ItemProperties props = props(entry, bind);
+					DependencyIndex.Recording recording = record();
+					boolean ok = false;
+					this.evaluations.incrementAndGet();
+					long start = start();
+					try {
+						entry.readonly = toByte(NodeValidator.isReadOnly(props,
+								this.instance, this.model));
+						ok = true;
+					} catch (RuntimeException e) {
+						failed(e);
+						throw e;
+					} finally {
+						stop(start);
+						keep(recording, key, ok, Byte.valueOf(entry.readonly));
+					}
+				}
+			} else {
+				this.saved.incrementAndGet();
+			}
+
+			return entry.readonly == TRUE;
+		}
+	}
+
+	/**
+	 * @return number of evaluations done.
+	 */
+	int getEvaluations() {
+		return this.evaluations.get();
+	}
+
+	/**
+	 * @return number of evaluations saved by serving an earlier result.
+	 */
+	int getSaved() {
+		return this.saved.get();
+	}
+
+	/**
+	 * Properties of the entry, looked up if need be. Used internally, so
+	 * not counted as saved.
+	 */
+	private ItemProperties props(final Entry entry, final String bind) {
+
+		if (entry.props == null) {
+			this.evaluations.incrementAndGet();
+			entry.props = this.model.getItemProperties(bind);
+
+			if (entry.props == null) {
+				entry.props = new ItemPropertiesImpl(bind);
+			}
+		}
+
+		return entry.props;
+	}
+
+	/**
+	 * Node of the entry, looked up if need be. Not counted as saved either.
+	 */
+	private Node node(final Entry entry, final String bind)
+			throws InvalidPathExpression {
+
+		if (!entry.nodeDone) {
+			this.evaluations.incrementAndGet();
+			try {
+				entry.node = this.instance.getNode(bind);
+			} catch (InvalidPathExpression e) {
+				entry.nodeError = e;
+			}
+			entry.nodeDone = true;
+		}
+
+		if (entry.nodeError != null) {
+			throw entry.nodeError;
+		}
+
+		return entry.node;
+	}
+
+	private Entry entry(final String bind) {
+
+		Entry entry = this.entries.get(bind);
+
+		if (entry == null) {
+			entry = new Entry();
+			Entry raced = this.entries.putIfAbsent(bind, entry);
+			if (raced != null) {
+				entry = raced;
+			}
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Result of an earlier render, or MISSING.
+	 */
+	private Object recall(final String key) {
+		return this.index == null ? DependencyIndex.MISSING : this.index
+				.get(key);
+	}
+
+	private void failed(final Exception error) {
+
+		if (this.index != null) {
+			this.index.failed(error);
+		}
+	}
+
+	private DependencyIndex.Recording record() {
+		return this.index == null ? null : this.index.start();
+	}
+
+	private void keep(final DependencyIndex.Recording recording,
+			final String key, final boolean ok, final Object result) {
+
+		if (recording != null) {
+			this.index.finish(recording, key, ok, result);
+		}
+	}
+
+	private long start() {
+		return this.sample == null ? 0L : System.nanoTime();
+	}
+
+	private void stop(final long start) {
+
+		if (this.sample != null) {
+			this.sample.add(RenderPhase.EVALUATE, System.nanoTime() - start);
+		}
+	}
+
+	private static byte toByte(final boolean flag) {
+		return flag ? TRUE : FALSE;
+	}
+}
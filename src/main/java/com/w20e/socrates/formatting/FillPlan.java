@@ -0,0 +1,142 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A text split into literal segments and ${...} fills, so the text is parsed
+ * once. The plan is immutable; rendering only needs the values of the fills.
+ * Texts the split may not agree with FillProcessor on, with an unclosed ${
+ * or braces inside a fill, are not split: they go to FillProcessor whole.
+ */
+final class FillPlan {
+
+	private static final String[] NONE = new String[0];
+
+	/**
+	 * Literal segments; one more than there are fills.
+	 */
+	private final String[] literals;
+
+	/**
+	 * Fills, including the ${ and }.
+	 */
+	private final String[] fills;
+
+	private final int literalLength;
+
+	/**
+	 * Whether the text is to be processed whole.
+	 */
+	private final boolean whole;
+
+	private FillPlan(final List<String> literals, final List<String> fills,
+			final boolean whole) {
+
+		this.whole = whole;
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.fills = fills.isEmpty() ? NONE : fills.toArray(new String[fills
+				.size()]);
+
+		int length = 0;
+
+		for (String literal : this.literals) {
+			length += literal.length();
+		}
+
+		this.literalLength = length;
+	}
+
+	/**
+	 * Split the text.
+	 *
+	 * @param text
+	 *            text, not null
+	 * @return the plan
+	 */
+	static FillPlan compile(final String text) {
+
+		List<String> literals = new ArrayList<String>();
+		List<String> fills = new ArrayList<String>();
+		int pos = 0;
+		int start = text.indexOf("${");
+
+		while (start >= 0) {
+
+			int end = text.indexOf('}', start + 2);
+			int brace = text.indexOf('{', start + 2);
+
+			if (end < 0 || (brace >= 0 && brace < end)) {
+				return new FillPlan(Collections.singletonList(text),
+						Collections.<String> emptyList(), true);
+			}
+
+			literals.add(text.substring(pos, start));
+			fills.add(text.substring(start, end + 1));
+			pos = end + 1;
+			start = text.indexOf("${", pos);
+		}
+
+		literals.add(text.substring(pos));
+
+		return new FillPlan(literals, fills, false);
+	}
+
+	/**
+	 * @return whether the text has no fills at all.
+	 */
+	boolean isLiteral() {
+		return !this.whole && this.fills.length == 0;
+	}
+
+	/**
+	 * @return whether the text must be given to FillProcessor whole, instead
+	 *         of rendering the plan.
+	 */
+	boolean isWhole() {
+		return this.whole;
+	}
+
+	/**
+	 * @return the fills, including ${ and }. Do not modify.
+	 */
+	String[] getFills() {
+		return this.fills;
+	}
+
+	/**
+	 * Render the text with the given fill values.
+	 *
+	 * @param values
+	 *            value by fill, as returned by getFills
+	 * @return the text
+	 */
+	String render(final Map<String, String> values) {
+
+		if (isLiteral()) {
+			return this.literals[0];
+		}
+
+		StringBuilder buf = new StringBuilder(this.literalLength + 16
+				* this.fills.length);
+
+		for (int i = 0; i < this.fills.length; i++) {
+			buf.append(this.literals[i]).append(values.get(this.fills[i]));
+		}
+
+		return buf.append(this.literals[this.fills.length]).toString();
+	}
+}
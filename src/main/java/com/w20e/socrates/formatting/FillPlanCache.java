@@ -0,0 +1,87 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compiled fill plans of translated texts, per locale. Translated texts come
+ * from the catalogs, so there are only so many; when a locale does reach the
+ * maximum, further texts are compiled on every use.
+ */
+final class FillPlanCache {
+
+	private final int maxSize;
+
+	private final ConcurrentMap<Locale, ConcurrentMap<String, FillPlan>> plans = new ConcurrentHashMap<Locale, ConcurrentMap<String, FillPlan>>();
+
+	/**
+	 * Create cache.
+	 *
+	 * @param maxSize
+	 *            maximum number of plans per locale
+	 */
+	FillPlanCache(final int maxSize) {
+
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Get the plan for the text.
+	 *
+	 * @param text
+	 *            translated text, not null
+	 * @param locale
+	 *            locale of the translation
+	 * @return the plan
+	 */
+	FillPlan get(final String text, final Locale locale) {
+
+		ConcurrentMap<String, FillPlan> localePlans = this.plans.get(locale);
+
+		if (localePlans == null) {
+			localePlans = new ConcurrentHashMap<String, FillPlan>();
+			ConcurrentMap<String, FillPlan> raced = this.plans.putIfAbsent(
+					locale, localePlans);
+			if (raced != null) {
+				localePlans = raced;
+			}
+		}
+
+		FillPlan plan = localePlans.get(text);
+
+		if (plan == null) {
+			plan = FillPlan.compile(text);
+			if (localePlans.size() < this.maxSize) {
+				localePlans.putIfAbsent(text, plan);
+			}
+		}
+
+		return plan;
+	}
+
+	/**
+	 * @return number of plans, over all locales.
+	 */
+	int size() {
+
+		int size = 0;
+
+		for (ConcurrentMap<String, FillPlan> localePlans : this.plans.values()) {
+			size += localePlans.size();
+		}
+
+		return size;
+	}
+}
@@ -0,0 +1,553 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * Formatter settings, resolved from the configuration once. Instances are
+ * immutable, so they can be shared by all rendering threads without locking.
+ */
+public final class FormatterSettings {
+
+	/**
+	 * Initialize this class' logging.
+	 */
+	private static final Logger LOGGER = Logger
+			.getLogger(FormatterSettings.class.getName());
+
+	private static final String VELOCITY_PREFIX = "formatter.velocity.";
+
+	private static final String OPTIONS_PREFIX = "formatter.options.";
+
+	private final String encoding;
+
+	private final Charset charset;
+
+	private final int outputBufferSize;
+
+	private final int outputFlushBytes;
+
+	private final String compression;
+
+	private final int compressionLevel;
+
+	private final String template;
+
+	private final String localePrefix;
+
+	private final String localeBasename;
+
+	private final int localeReloadCheck;
+
+	private final boolean debug;
+
+	private final boolean lazyContext;
+
+	private final int parallelThreshold;
+
+	private final boolean asyncVirtualThreads;
+
+	private final int asyncThreads;
+
+	private final int asyncMaxPending;
+
+	private final int batchThreads;
+
+	private final boolean metricsEnabled;
+
+	private final boolean metricsJmx;
+
+	private final String metricsName;
+
+	private final int translationCacheSize;
+
+	private final int fillCacheSize;
+
+	private final int fragmentCacheKb;
+
+	private final boolean etag;
+
+	private final boolean arena;
+
+	private final int largeVocabulary;
+
+	private final int vocabularyPageSize;
+
+	private final List<Locale> warmupLocales;
+
+	private final List<String> warmupTemplates;
+
+	private final boolean warmupAll;
+
+	private final String warmupSuffix;
+
+	private final int warmupThreads;
+
+	private final boolean warmupFailFast;
+
+	private final Map<String, Object> renderOptions;
+
+	private final Properties velocityProperties;
+
+	private FormatterSettings(final Configuration cfg) {
+
+		this.encoding = cfg.getString("formatter.encoding", "UTF-8");
+		this.charset = Charset.forName(this.encoding);
+		this.outputBufferSize = cfg.getInt("formatter.output.buffer_size",
+				BufferedOutputWriter.DEFAULT_BUFFER_SIZE);
+		this.outputFlushBytes = cfg.getInt("formatter.output.flush_kb", 0) * 1024;
+		this.compression = cfg.getString("formatter.output.compression",
+				"none");
+		this.compressionLevel = cfg.getInt(
+				"formatter.output.compression_level", 6);
+		this.template = cfg.getString("formatter.template", "main.vm");
+		this.localePrefix = cfg.getString("formatter.locale.prefix");
+		this.localeBasename = cfg.getString("formatter.locale.basename",
+				"Messages");
+		this.localeReloadCheck = cfg.getInt("formatter.locale.reload_check",
+				0);
+		this.debug = "true".equals(cfg.getString("formatter.debug", "false"));
+		this.lazyContext = cfg.getBoolean("formatter.context.lazy", false);
+		this.parallelThreshold = cfg.getInt(
+				"formatter.context.parallel_threshold", 0);
+		this.asyncVirtualThreads = cfg.getBoolean(
+				"formatter.async.virtual_threads", true);
+		this.asyncThreads = cfg.getInt("formatter.async.threads", Runtime
+				.getRuntime().availableProcessors() * 2);
+		this.asyncMaxPending = cfg.getInt("formatter.async.max_pending", 256);
+		this.batchThreads = cfg.getInt("formatter.batch.threads", Runtime
+				.getRuntime().availableProcessors());
+		this.metricsEnabled = cfg.getBoolean("formatter.metrics.enabled", false);
+		this.metricsJmx = cfg.getBoolean("formatter.metrics.jmx", false);
+		this.metricsName = cfg.getString("formatter.metrics.name", null);
+		this.translationCacheSize = cfg.getInt(
+				"formatter.translation.cache_size",
+				TranslationCache.DEFAULT_SIZE);
+		this.fillCacheSize = cfg.getInt("formatter.fill.cache_size",
+				TranslationCache.DEFAULT_SIZE);
+		this.fragmentCacheKb = cfg.getInt("formatter.fragment.cache_kb", 0);
+		this.etag = cfg.getBoolean("formatter.etag", false);
+		this.arena = cfg.getBoolean("formatter.arena", false);
+		this.largeVocabulary = cfg.getInt("formatter.vocabulary.large", 0);
+		this.vocabularyPageSize = cfg.getInt("formatter.vocabulary.page_size",
+				100);
+
+		List<Locale> locales = new ArrayList<Locale>();
+
+		for (Object loc : cfg.getList("formatter.locale.warmup")) {
+			locales.add(toLocale(loc.toString().trim()));
+		}
+
+		this.warmupLocales = Collections.unmodifiableList(locales);
+
+		List<String> templates = new ArrayList<String>();
+
+		for (Object name : cfg.getList("formatter.warmup.templates")) {
+			if (name.toString().trim().length() > 0) {
+				templates.add(name.toString().trim());
+			}
+		}
+
+		this.warmupTemplates = Collections.unmodifiableList(templates);
+		this.warmupAll = cfg.getBoolean("formatter.warmup.all", false);
+		this.warmupSuffix = cfg.getString("formatter.warmup.suffix", ".vm");
+		this.warmupThreads = cfg.getInt("formatter.warmup.threads", Runtime
+				.getRuntime().availableProcessors());
+		this.warmupFailFast = cfg.getBoolean("formatter.warmup.fail_fast",
+				false);
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		this.velocityProperties = new Properties();
+
+		String key;
+		Object value;
+
+		for (final Iterator<?> i = cfg.getKeys(); i.hasNext();) {
+
+			key = (String) i.next();
+
+			if (key.startsWith(VELOCITY_PREFIX)) {
+
+				value = cfg.getProperty(key);
+
+				if (value instanceof List<?>) {
+
+					StringBuilder newVal = new StringBuilder();
+
+					for (final Iterator<?> j = ((List<?>) value).iterator(); j
+							.hasNext();) {
+						newVal.append(j.next()).append(",");
+					}
+					this.velocityProperties.setProperty(
+							key.substring(VELOCITY_PREFIX.length()),
+							newVal.toString());
+					LOGGER.finest("Setting Velocity property "
+							+ key.substring(VELOCITY_PREFIX.length())
+							+ " to list " + value);
+				} else {
+					this.velocityProperties.setProperty(
+							key.substring(VELOCITY_PREFIX.length()),
+							cfg.getString(key));
+					LOGGER.finest("Setting Velocity property "
+							+ key.substring(VELOCITY_PREFIX.length()) + " to "
+							+ value);
+				}
+			} else if (key.startsWith(OPTIONS_PREFIX)) {
+
+				setRenderingProperty(options,
+						key.substring(OPTIONS_PREFIX.length()),
+						cfg.getString(key));
+			}
+		}
+
+		this.renderOptions = Collections.unmodifiableMap(options);
+	}
+
+	/**
+	 * Resolve the formatter settings from the given configuration.
+	 *
+	 * @param cfg
+	 *            formatter configuration
+	 * @return the settings
+	 */
+	public static FormatterSettings fromConfiguration(final Configuration cfg) {
+
+		return new FormatterSettings(cfg);
+	}
+
+	private static void setRenderingProperty(final Map<String, Object> options,
+			final String pName, final String pValue) {
+
+		if (pName.startsWith("enable_")) {
+			options.put(pName, Boolean.valueOf(pValue));
+			options.put(pName.substring(7), Boolean.valueOf(pValue));
+		} else if (pName.startsWith("disable_")) {
+			options.put(pName, Boolean.valueOf(pValue));
+			options.put(pName.substring(8), Boolean.valueOf(pValue));
+		} else {
+			options.put(pName, pValue);
+		}
+	}
+
+	/**
+	 * Create locale from string like 'en_GB'.
+	 *
+	 * @param str
+	 * @return the locale
+	 */
+	static Locale toLocale(final String str) {
+
+		String[] parts = str.split("_", 3);
+
+		if (parts.length == 1) {
+			return new Locale(parts[0]);
+		} else if (parts.length == 2) {
+			return new Locale(parts[0], parts[1]);
+		} else {
+			return new Locale(parts[0], parts[1], parts[2]);
+		}
+	}
+
+	/**
+	 * @return output encoding, formatter.encoding.
+	 */
+	public String getEncoding() {
+		return this.encoding;
+	}
+
+	/**
+	 * @return output charset, for formatter.encoding.
+	 */
+	public Charset getCharset() {
+		return this.charset;
+	}
+
+	/**
+	 * @return output buffer size in chars, formatter.output.buffer_size.
+	 */
+	public int getOutputBufferSize() {
+		return this.outputBufferSize;
+	}
+
+	/**
+	 * @return flush the output after this many bytes, or only at the end
+	 *         when zero. Configured in KB by formatter.output.flush_kb.
+	 */
+	public int getOutputFlushBytes() {
+		return this.outputFlushBytes;
+	}
+
+	/**
+	 * @return output compression, "gzip", "deflate" or "none",
+	 *         formatter.output.compression. Flushes after flush_kb are sync
+	 *         flushes of the compressed stream.
+	 */
+	public String getCompression() {
+		return this.compression;
+	}
+
+	/**
+	 * @return compression level 0 - 9, formatter.output.compression_level.
+	 */
+	public int getCompressionLevel() {
+		return this.compressionLevel;
+	}
+
+	/**
+	 * @return default template, formatter.template.
+	 */
+	public String getTemplate() {
+		return this.template;
+	}
+
+	/**
+	 * @return resource bundle prefix, formatter.locale.prefix.
+	 */
+	public String getLocalePrefix() {
+		return this.localePrefix;
+	}
+
+	/**
+	 * @return seconds between checks whether resource bundle files changed,
+	 *         or 0 to only reload them explicitly,
+	 *         formatter.locale.reload_check.
+	 */
+	public int getLocaleReloadCheck() {
+		return this.localeReloadCheck;
+	}
+
+	/**
+	 * @return message catalog base name, formatter.locale.basename.
+	 */
+	public String getLocaleBasename() {
+		return this.localeBasename;
+	}
+
+	/**
+	 * @return whether to render debugging info, formatter.debug.
+	 */
+	public boolean isDebug() {
+		return this.debug;
+	}
+
+	/**
+	 * @return whether item context is computed on first access by the
+	 *         template, formatter.context.lazy. Off by default; when on,
+	 *         evaluation errors surface during the merge, and the context
+	 *         is never filled in parallel. Renders with a RenderSession
+	 *         fill eagerly anyway.
+	 */
+	public boolean isLazyContext() {
+		return this.lazyContext;
+	}
+
+	/**
+	 * @return number of items from which an eager context is filled in
+	 *         parallel, or 0 to never do so,
+	 *         formatter.context.parallel_threshold. Only applies with
+	 *         formatter.context.lazy off, the default; a lazy context is
+	 *         filled by the template, one item at a time.
+	 */
+	public int getParallelThreshold() {
+		return this.parallelThreshold;
+	}
+
+	/**
+	 * @return whether to render asynchronously on virtual threads, when the
+	 *         runtime has them, formatter.async.virtual_threads.
+	 */
+	public boolean isAsyncVirtualThreads() {
+		return this.asyncVirtualThreads;
+	}
+
+	/**
+	 * @return number of threads rendering asynchronously, without virtual
+	 *         threads, formatter.async.threads.
+	 */
+	public int getAsyncThreads() {
+		return this.asyncThreads;
+	}
+
+	/**
+	 * @return maximum number of asynchronous renders submitted and not yet
+	 *         done, formatter.async.max_pending.
+	 */
+	public int getAsyncMaxPending() {
+		return this.asyncMaxPending;
+	}
+
+	/**
+	 * @return number of threads formatting a batch, formatter.batch.threads.
+	 */
+	public int getBatchThreads() {
+		return this.batchThreads;
+	}
+
+	/**
+	 * @return whether renders are measured, formatter.metrics.enabled. Off
+	 *         by default, so renders take no timings.
+	 */
+	public boolean isMetricsEnabled() {
+		return this.metricsEnabled;
+	}
+
+	/**
+	 * @return whether the metrics are registered as MBean,
+	 *         formatter.metrics.jmx. Off by default.
+	 */
+	public boolean isMetricsJmx() {
+		return this.metricsJmx;
+	}
+
+	/**
+	 * @return name of the metrics MBean, formatter.metrics.name, or null
+	 *         for a name unique to the formatter.
+	 */
+	public String getMetricsName() {
+		return this.metricsName;
+	}
+
+	/**
+	 * @return maximum translation cache size,
+	 *         formatter.translation.cache_size.
+	 */
+	public int getTranslationCacheSize() {
+		return this.translationCacheSize;
+	}
+
+	/**
+	 * @return maximum number of compiled fill plans per locale,
+	 *         formatter.fill.cache_size.
+	 */
+	public int getFillCacheSize() {
+		return this.fillCacheSize;
+	}
+
+	/**
+	 * @return locales to warm at init, formatter.locale.warmup.
+	 */
+	public List<Locale> getWarmupLocales() {
+		return this.warmupLocales;
+	}
+
+	/**
+	 * @return templates to load at init, formatter.warmup.templates.
+	 */
+	public List<String> getWarmupTemplates() {
+		return this.warmupTemplates;
+	}
+
+	/**
+	 * @return whether to load all templates found in the file resource
+	 *         loader path at init, formatter.warmup.all.
+	 */
+	public boolean isWarmupAll() {
+		return this.warmupAll;
+	}
+
+	/**
+	 * @return file name suffix of templates for formatter.warmup.all,
+	 *         formatter.warmup.suffix.
+	 */
+	public String getWarmupSuffix() {
+		return this.warmupSuffix;
+	}
+
+	/**
+	 * @return number of threads loading templates, formatter.warmup.threads.
+	 */
+	public int getWarmupThreads() {
+		return this.warmupThreads;
+	}
+
+	/**
+	 * @return whether a template that fails to load fails init,
+	 *         formatter.warmup.fail_fast.
+	 */
+	public boolean isWarmupFailFast() {
+		return this.warmupFailFast;
+	}
+
+	/**
+	 * @return fragment cache size in kilochars, formatter.fragment.cache_kb.
+	 *         Zero, the default, disables the cache. Fragments are keyed by
+	 *         the item's whole context, which is then computed even with
+	 *         formatter.context.lazy.
+	 */
+	public int getFragmentCacheKb() {
+		return this.fragmentCacheKb;
+	}
+
+	/**
+	 * @return whether every page gets a fingerprint, formatter.etag. The
+	 *         fingerprint covers all item contexts, so they are all computed
+	 *         even with formatter.context.lazy.
+	 */
+	public boolean isEtag() {
+		return this.etag;
+	}
+
+	/**
+	 * @return whether renders reuse their thread's working structures,
+	 *         formatter.arena.
+	 */
+	public boolean isArena() {
+		return this.arena;
+	}
+
+	/**
+	 * @return number of options above which a vocabulary is shown a page at
+	 *         a time, formatter.vocabulary.large. Zero, the default, shows
+	 *         all options.
+	 */
+	public int getLargeVocabulary() {
+		return this.largeVocabulary;
+	}
+
+	/**
+	 * @return number of options of a large vocabulary a page shows,
+	 *         formatter.vocabulary.page_size.
+	 */
+	public int getVocabularyPageSize() {
+		return this.vocabularyPageSize;
+	}
+
+	/**
+	 * @return default render options, from formatter.options.*.
+	 */
+	public Map<String, Object> getRenderOptions() {
+		return this.renderOptions;
+	}
+
+	/**
+	 * @return a copy of the Velocity properties, from formatter.velocity.*.
+	 */
+	public Properties getVelocityProperties() {
+
+		Properties props = new Properties();
+		props.putAll(this.velocityProperties);
+
+		return props;
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.velocity.Template;
+import org.apache.velocity.app.VelocityEngine;
+
+/**
+ * Everything a formatter renders with: settings, engine and caches. A state
+ * is never changed once published; reconfiguration creates a new state,
+ * and the formatter swaps it in with a single write. A request uses the
+ * state it started with until it's done.
+ */
+final class FormatterState {
+
+	/**
+	 * Initialize this class' logging.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(FormatterState.class
+			.getName());
+
+	private final Configuration config;
+
+	/**
+	 * Velocity properties set after init, on top of the configuration.
+	 */
+	private final Properties velocityOverrides;
+
+	private final FormatterSettings settings;
+
+	private final VelocityEngine engine;
+
+	private final WarmupReport warmupReport;
+
+	/**
+	 * Templates parsed at warmup, by name. Templates are not cached by
+	 * Velocity unless the resource loader is told to, so these are served
+	 * to renders instead of parsing them again.
+	 */
+	private final Map<String, Template> templates;
+
+	/**
+	 * Number of templates parsed for renders.
+	 */
+	private final AtomicLong parsed = new AtomicLong();
+
+	private final TranslationCache translations;
+
+	private final FillPlanCache fillPlans;
+
+	private final OptionListCache optionLists;
+
+	private final FragmentCache fragments;
+
+	private final BundleCache bundles;
+
+	private FormatterState(final Configuration config,
+			final Properties velocityOverrides,
+			final FormatterSettings settings, final VelocityEngine engine,
+			final TemplateWarmup warmup, final TranslationCache translations,
+			final FillPlanCache fillPlans, final OptionListCache optionLists,
+			final FragmentCache fragments, final BundleCache bundles) {
+
+		this.config = config;
+		this.velocityOverrides = velocityOverrides;
+		this.settings = settings;
+		this.engine = engine;
+		this.warmupReport = warmup.getReport();
+		this.templates = Collections.unmodifiableMap(warmup.getTemplates());
+		this.translations = translations;
+		this.fillPlans = fillPlans;
+		this.optionLists = optionLists;
+		this.fragments = fragments;
+		this.bundles = bundles;
+	}
+
+	/**
+	 * Create state from the configuration.
+	 *
+	 * @param config
+	 *            formatter configuration
+	 * @return new state
+	 * @throws IllegalStateException
+	 *             if formatter.warmup.fail_fast is set, and a template
+	 *             fails to load.
+	 */
+	static FormatterState create(final Configuration config) {
+
+		FormatterSettings settings = FormatterSettings
+				.fromConfiguration(config);
+
+		if (settings.isDebug()) {
+			LOGGER.log(Level.WARNING, "Using debug mode in formatting");
+		}
+
+		TranslationCache translations = new TranslationCache(
+				VelocityHTMLFormatter.class, settings.getLocaleBasename(),
+				settings.getTranslationCacheSize());
+
+		translations.warm(settings.getWarmupLocales());
+
+		Properties overrides = new Properties();
+		VelocityEngine engine = createEngine(config, settings, overrides);
+
+		return new FormatterState(config, overrides, settings, engine,
+				warmup(engine, settings), translations, new FillPlanCache(
+						settings.getFillCacheSize()), new OptionListCache(
+						translations), fragmentCache(settings),
+				new BundleCache(settings.getLocalePrefix(), settings
+						.getLocaleReloadCheck() * 1000L));
+	}
+
+	/**
+	 * Create a copy of this state, with a new engine that has the given
+	 * Velocity property set. Caches are shared with this state, except
+	 * for rendered fragments, since macros may differ.
+	 *
+	 * @param property
+	 *            Velocity property
+	 * @param value
+	 *            value
+	 * @return new state
+	 * @throws IllegalStateException
+	 *             if formatter.warmup.fail_fast is set, and a template
+	 *             fails to load.
+	 */
+	FormatterState withVelocityProperty(final String property,
+			final String value) {
+
+		Properties overrides = new Properties();
+		overrides.putAll(this.velocityOverrides);
+		overrides.setProperty(property, value);
+
+		VelocityEngine newEngine = createEngine(this.config, this.settings,
+				overrides);
+
+		return new FormatterState(this.config, overrides, this.settings,
+				newEngine, warmup(newEngine, this.settings),
+				this.translations, this.fillPlans, this.optionLists,
+				fragmentCache(this.settings), this.bundles);
+	}
+
+	private static VelocityEngine createEngine(final Configuration config,
+			final FormatterSettings settings, final Properties overrides) {
+
+		VelocityEngine engine = new VelocityEngine();
+		Properties props = settings.getVelocityProperties();
+
+		props.putAll(overrides);
+
+		String directives = props.getProperty("userdirective");
+
+		props.setProperty("userdirective",
+				directives == null || directives.trim().length() == 0
+						? FragmentDirective.class.getName() : directives + ","
+								+ FragmentDirective.class.getName());
+
+		try {
+			engine.setApplicationAttribute("engine", engine);
+			engine.setApplicationAttribute("cfg", config);
+			engine.init(props);
+		} catch (Exception e) {
+			LOGGER.log(Level.SEVERE, "Can't configure Velocity. This is BAD!",
+					e);
+		}
+
+		return engine;
+	}
+
+	private static FragmentCache fragmentCache(final FormatterSettings settings) {
+
+		return new FragmentCache(settings.getFragmentCacheKb() * 1024L);
+	}
+
+	private static TemplateWarmup warmup(final VelocityEngine engine,
+			final FormatterSettings settings) {
+
+		TemplateWarmup warmup = new TemplateWarmup(engine, settings);
+		WarmupReport report = warmup.run();
+
+		if (!report.isOk() && settings.isWarmupFailFast()) {
+			throw new IllegalStateException("Templates failed to load: "
+					+ report.getErrors());
+		}
+
+		return warmup;
+	}
+
+	FormatterSettings getSettings() {
+		return this.settings;
+	}
+
+	VelocityEngine getEngine() {
+		return this.engine;
+	}
+
+	WarmupReport getWarmupReport() {
+		return this.warmupReport;
+	}
+
+	/**
+	 * Get the template with the given name: the one parsed at warmup, or
+	 * a newly parsed one.
+	 *
+	 * @throws Exception
+	 *             if the template can't be found or parsed
+	 */
+	Template getTemplate(final String name) throws Exception {
+
+		Template template = this.templates.get(name);
+
+		if (template == null) {
+			this.parsed.incrementAndGet();
+			template = this.engine.getTemplate(name, this.settings
+					.getEncoding());
+		}
+
+		return template;
+	}
+
+	/**
+	 * @return number of templates parsed for renders, since warmup.
+	 */
+	long getTemplatesParsed() {
+		return this.parsed.get();
+	}
+
+	TranslationCache getTranslations() {
+		return this.translations;
+	}
+
+	FillPlanCache getFillPlans() {
+		return this.fillPlans;
+	}
+
+	OptionListCache getOptionLists() {
+		return this.optionLists;
+	}
+
+	FragmentCache getFragments() {
+		return this.fragments;
+	}
+
+	BundleCache getBundles() {
+		return this.bundles;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rendered HTML of #fragment blocks, by fingerprint of everything the
+ * block renders from. Bounded by the number of chars held; the least
+ * recently used fragments are evicted first.
+ */
+public final class FragmentCache {
+
+	private final long maxChars;
+
+	/**
+	 * Fragments, in access order.
+	 */
+	private final Map<String, String> fragments = new LinkedHashMap<String, String>(
+			16, 0.75f, true);
+
+	/**
+	 * Chars held. Guarded by fragments.
+	 */
+	private long chars;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param maxChars
+	 *            maximum number of chars to hold. Zero disables the cache.
+	 */
+	public FragmentCache(final long maxChars) {
+
+		this.maxChars = Math.max(0, maxChars);
+	}
+
+	/**
+	 * @return whether fragments are cached at all.
+	 */
+	public boolean isEnabled() {
+		return this.maxChars > 0;
+	}
+
+	/**
+	 * Get the fragment with the given fingerprint.
+	 *
+	 * @return the fragment, or null.
+	 */
+	String get(final String key) {
+
+		String html;
+
+		synchronized (this.fragments) {
+			html = this.fragments.get(key);
+		}
+
+		if (html == null) {
+			this.misses.incrementAndGet();
+		} else {
+			this.hits.incrementAndGet();
+		}
+
+		return html;
+	}
+
+	/**
+	 * Hold the fragment. Fragments larger than half the cache are not held.
+	 */
+	void put(final String key, final String html) {
+
+		if (html.length() > this.maxChars / 2) {
+			return;
+		}
+
+		synchronized (this.fragments) {
+			String old = this.fragments.put(key, html);
+
+			if (old != null) {
+				this.chars -= old.length();
+			}
+			this.chars += html.length();
+
+			Iterator<String> eldest = this.fragments.values().iterator();
+
+			while (this.chars > this.maxChars && eldest.hasNext()) {
+				this.chars -= eldest.next().length();
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drop all fragments. Counters are kept.
+	 */
+	public void clear() {
+
+		synchronized (this.fragments) {
+			this.fragments.clear();
+			this.chars = 0;
+		}
+	}
+
+	/**
+	 * @return number of fragments served from the cache.
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return number of fragments that had to be rendered.
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return number of cached fragments.
+	 */
+	public int size() {
+
+		synchronized (this.fragments) {
+			return this.fragments.size();
+		}
+	}
+
+	/**
+	 * @return number of chars held.
+	 */
+	public long getChars() {
+
+		synchronized (this.fragments) {
+			return this.chars;
+		}
+	}
+
+	/**
+	 * @return maximum number of chars held.
+	 */
+	public long getMaxChars() {
+		return this.maxChars;
+	}
+}
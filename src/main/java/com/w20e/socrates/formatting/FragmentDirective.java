@@ -0,0 +1,96 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.directive.Directive;
+import org.apache.velocity.runtime.parser.node.Node;
+
+import com.w20e.socrates.rendering.Renderable;
+
+/**
+ * Block directive that renders an item once, and serves the HTML from the
+ * fragment cache as long as the item's context and the page wide values
+ * are the same:
+ *
+ * <pre>
+ * #fragment($item)
+ *   #renderItem($item)
+ * #end
+ * </pre>
+ *
+ * Anything else the block depends on, like instance values read through
+ * $instance_values, must be passed as extra arguments:
+ * #fragment($item $other). Without a cache, or without an item, the block
+ * is just rendered.
+ */
+public final class FragmentDirective extends Directive {
+
+	/**
+	 * Directive name.
+	 */
+	public static final String NAME = "fragment";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public int getType() {
+		return BLOCK;
+	}
+
+	@Override
+	public boolean render(final InternalContextAdapter context,
+			final Writer writer, final Node node) throws IOException,
+			ResourceNotFoundException, ParseErrorException,
+			MethodInvocationException {
+
+		int args = node.jjtGetNumChildren() - 1;
+		Node body = node.jjtGetChild(args);
+		Object scope = context.get(FragmentScope.KEY);
+		Object item = args > 0 ? node.jjtGetChild(0).value(context) : null;
+
+		if (!(scope instanceof FragmentScope) || !(item instanceof Renderable)) {
+			return body.render(context, writer);
+		}
+
+		Object[] extra = new Object[args - 1];
+
+		for (int i = 1; i < args; i++) {
+			extra[i - 1] = node.jjtGetChild(i).value(context);
+		}
+
+		FragmentScope fragments = (FragmentScope) scope;
+		String key = fragments.fingerprint((Renderable) item, extra);
+		String html = fragments.getCache().get(key);
+
+		if (html == null) {
+			StringWriter buf = new StringWriter();
+			body.render(context, buf);
+			html = buf.toString();
+			fragments.getCache().put(key, html);
+		}
+
+		writer.write(html);
+
+		return true;
+	}
+}
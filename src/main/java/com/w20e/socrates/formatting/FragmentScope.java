@@ -0,0 +1,48 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import com.w20e.socrates.rendering.Renderable;
+
+/**
+ * Fragment cache access for one request, put in the Velocity context for
+ * the #fragment directive.
+ */
+final class FragmentScope {
+
+	/**
+	 * Velocity context key.
+	 */
+	static final String KEY = "fragmentScope";
+
+	private final FragmentCache cache;
+
+	private final ContextFingerprint fingerprint;
+
+	FragmentScope(final FragmentCache cache,
+			final ContextFingerprint fingerprint) {
+
+		this.cache = cache;
+		this.fingerprint = fingerprint;
+	}
+
+	FragmentCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * Fingerprint of the item, within this page.
+	 */
+	String fingerprint(final Renderable item, final Object[] extra) {
+		return this.fingerprint.item(item, extra);
+	}
+}
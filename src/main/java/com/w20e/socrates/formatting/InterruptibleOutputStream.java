@@ -0,0 +1,64 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Output stream that fails once the render is cancelled or the writing
+ * thread is interrupted, so a cancelled render stops at the next write
+ * instead of writing the whole page.
+ */
+final class InterruptibleOutputStream extends FilterOutputStream {
+
+	private final AtomicBoolean cancelled;
+
+	InterruptibleOutputStream(final OutputStream out,
+			final AtomicBoolean cancelled) {
+
+		super(out);
+		this.cancelled = cancelled;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+
+		check();
+		this.out.write(b);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len)
+			throws IOException {
+
+		check();
+		this.out.write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+
+		check();
+		this.out.flush();
+	}
+
+	private void check() throws InterruptedIOException {
+
+		if (this.cancelled.get() || Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Render cancelled");
+		}
+	}
+}
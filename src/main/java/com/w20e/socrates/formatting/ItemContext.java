@@ -0,0 +1,507 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.w20e.socrates.data.Node;
+import com.w20e.socrates.model.ItemProperties;
+import com.w20e.socrates.rendering.Renderable;
+
+/**
+ * Context of a single item, as available to templates through
+ * $context.get(id). The well known entries are held in fields; anything else,
+ * like the debugging expressions, goes into a map that is only created when
+ * needed. The flags are real booleans, that still compare equal to 'true' and
+ * 'false' in templates.
+ * 
+ * Fields may be deferred to a loader, that computes them on first access.
+ * The result is kept for the rest of the request.
+ */
+public final class ItemContext extends AbstractMap<String, Object> {
+
+	public static final String VALUE = "value";
+
+	public static final String LEXICAL_VALUE = "lexical_value";
+
+	public static final String LABEL = "label";
+
+	public static final String HINT = "hint";
+
+	public static final String ALERT = "alert";
+
+	public static final String TEXT = "text";
+
+	public static final String REQUIRED = "required";
+
+	public static final String RELEVANT = "relevant";
+
+	public static final String READONLY = "readonly";
+
+	public static final String OPTIONS = "options";
+
+	/**
+	 * Keys of the fields, in field order.
+	 */
+	private static final String[] KEYS = { VALUE, LEXICAL_VALUE, LABEL, HINT,
+			ALERT, TEXT, REQUIRED, RELEVANT, READONLY, OPTIONS };
+
+	static final int F_VALUE = 0;
+
+	static final int F_LEXICAL_VALUE = 1;
+
+	static final int F_LABEL = 2;
+
+	static final int F_HINT = 3;
+
+	static final int F_ALERT = 4;
+
+	static final int F_TEXT = 5;
+
+	static final int F_REQUIRED = 6;
+
+	static final int F_RELEVANT = 7;
+
+	static final int F_READONLY = 8;
+
+	static final int F_OPTIONS = 9;
+
+	/**
+	 * Computes deferred fields.
+	 */
+	interface Loader {
+
+		/**
+		 * Compute the given field, and set it on the context. May set other
+		 * fields that come for free as well.
+		 */
+		void load(ItemContext ctx, int field);
+	}
+
+	/**
+	 * Bit per field that is set.
+	 */
+	private int present;
+
+	/**
+	 * Bit per field that is deferred to the loader.
+	 */
+	private int pending;
+
+	private Loader loader;
+
+	/**
+	 * The item this context is for, and for controls it's node and
+	 * properties. Used by the loader.
+	 */
+	private final Renderable item;
+
+	private final Node node;
+
+	private final ItemProperties props;
+
+	private Object value;
+
+	private Object lexicalValue;
+
+	private String label;
+
+	private String hint;
+
+	private String alert;
+
+	private String text;
+
+	private boolean required;
+
+	private boolean relevant;
+
+	private boolean readonly;
+
+	private Object options;
+
+	/**
+	 * Other entries.
+	 */
+	private Map<String, Object> extras;
+
+	/**
+	 * Create an empty context.
+	 */
+	public ItemContext() {
+		this(null, null, null);
+	}
+
+	/**
+	 * Create an empty context for the given item.
+	 */
+	ItemContext(final Renderable item, final Node node,
+			final ItemProperties props) {
+
+		this.item = item;
+		this.node = node;
+		this.props = props;
+	}
+
+	Renderable getItem() {
+		return this.item;
+	}
+
+	Node getNode() {
+		return this.node;
+	}
+
+	ItemProperties getProps() {
+		return this.props;
+	}
+
+	/**
+	 * Defer the given fields to the loader.
+	 * 
+	 * @param fieldLoader
+	 *            loader
+	 * @param fields
+	 *            bit per field
+	 */
+	void defer(final Loader fieldLoader, final int fields) {
+
+		this.loader = fieldLoader;
+		this.pending |= fields & ~this.present;
+	}
+
+	/**
+	 * Load all deferred fields.
+	 */
+	void loadAll() {
+
+		for (int i = 0; this.pending != 0 && i < KEYS.length; i++) {
+			ensure(i);
+		}
+	}
+
+	@Override
+	public Object get(final Object key) {
+
+		int field = field(key);
+
+		if (field < 0) {
+			return this.extras == null ? null : this.extras.get(key);
+		}
+
+		ensure(field);
+
+		if (!isSet(field)) {
+			return null;
+		}
+
+		return fieldValue(field);
+	}
+
+	@Override
+	public boolean containsKey(final Object key) {
+
+		int field = field(key);
+
+		if (field < 0) {
+			return this.extras != null && this.extras.containsKey(key);
+		}
+
+		return isSet(field) || (this.pending & (1 << field)) != 0;
+	}
+
+	/**
+	 * Set an entry. Flags accept Booleans and 'true'/'false' strings.
+	 */
+	@Override
+	public Object put(final String key, final Object val) {
+
+		int field = field(key);
+		Object old;
+
+		if (field < 0) {
+			old = this.extras == null ? null : this.extras.get(key);
+		} else {
+			old = isSet(field) ? fieldValue(field) : null;
+		}
+
+		switch (field) {
+		case F_VALUE:
+			setValue(val);
+			break;
+		case F_LEXICAL_VALUE:
+			setLexicalValue(val);
+			break;
+		case F_LABEL:
+			setLabel(toText(val));
+			break;
+		case F_HINT:
+			setHint(toText(val));
+			break;
+		case F_ALERT:
+			setAlert(toText(val));
+			break;
+		case F_TEXT:
+			setText(toText(val));
+			break;
+		case F_REQUIRED:
+			setRequired(toFlag(val));
+			break;
+		case F_RELEVANT:
+			setRelevant(toFlag(val));
+			break;
+		case F_READONLY:
+			setReadonly(toFlag(val));
+			break;
+		case F_OPTIONS:
+			setOptions(val);
+			break;
+		default:
+			if (this.extras == null) {
+				this.extras = new HashMap<String, Object>(8);
+			}
+			this.extras.put(key, val);
+		}
+
+		return old;
+	}
+
+	@Override
+	public int size() {
+
+		return Integer.bitCount(this.present | this.pending)
+				+ (this.extras == null ? 0 : this.extras.size());
+	}
+
+	/**
+	 * Entry set. This is a snapshot, and rather expensive; templates only
+	 * need get.
+	 */
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+
+		loadAll();
+
+		Map<String, Object> all = new LinkedHashMap<String, Object>();
+
+		for (int i = 0; i < KEYS.length; i++) {
+			if (isSet(i)) {
+				all.put(KEYS[i], fieldValue(i));
+			}
+		}
+
+		if (this.extras != null) {
+			all.putAll(this.extras);
+		}
+
+		return all.entrySet();
+	}
+
+	public Object getValue() {
+		ensure(F_VALUE);
+		return this.value;
+	}
+
+	public void setValue(final Object val) {
+		this.value = val;
+		mark(F_VALUE);
+	}
+
+	public Object getLexicalValue() {
+		ensure(F_LEXICAL_VALUE);
+		return this.lexicalValue;
+	}
+
+	public void setLexicalValue(final Object val) {
+		this.lexicalValue = val;
+		mark(F_LEXICAL_VALUE);
+	}
+
+	public String getLabel() {
+		ensure(F_LABEL);
+		return this.label;
+	}
+
+	public void setLabel(final String val) {
+		this.label = val;
+		mark(F_LABEL);
+	}
+
+	public String getHint() {
+		ensure(F_HINT);
+		return this.hint;
+	}
+
+	public void setHint(final String val) {
+		this.hint = val;
+		mark(F_HINT);
+	}
+
+	public String getAlert() {
+		ensure(F_ALERT);
+		return this.alert;
+	}
+
+	public void setAlert(final String val) {
+		this.alert = val;
+		mark(F_ALERT);
+	}
+
+	public String getText() {
+		ensure(F_TEXT);
+		return this.text;
+	}
+
+	public void setText(final String val) {
+		this.text = val;
+		mark(F_TEXT);
+	}
+
+	public boolean isRequired() {
+		ensure(F_REQUIRED);
+		return this.required;
+	}
+
+	public void setRequired(final boolean val) {
+		this.required = val;
+		mark(F_REQUIRED);
+	}
+
+	public boolean isRelevant() {
+		ensure(F_RELEVANT);
+		return this.relevant;
+	}
+
+	public void setRelevant(final boolean val) {
+		this.relevant = val;
+		mark(F_RELEVANT);
+	}
+
+	public boolean isReadonly() {
+		ensure(F_READONLY);
+		return this.readonly;
+	}
+
+	public void setReadonly(final boolean val) {
+		this.readonly = val;
+		mark(F_READONLY);
+	}
+
+	public Object getOptions() {
+		ensure(F_OPTIONS);
+		return this.options;
+	}
+
+	public void setOptions(final Object val) {
+		this.options = val;
+		mark(F_OPTIONS);
+	}
+
+	private boolean isSet(final int field) {
+		return (this.present & (1 << field)) != 0;
+	}
+
+	private void mark(final int field) {
+		this.present |= 1 << field;
+		this.pending &= ~(1 << field);
+	}
+
+	/**
+	 * Load the field if it is deferred.
+	 */
+	private void ensure(final int field) {
+
+		int bit = 1 << field;
+
+		if ((this.pending & bit) != 0) {
+			this.loader.load(this, field);
+			// Loader failed to set it; don't try again.
+			this.pending &= ~bit;
+		}
+	}
+
+	private Object fieldValue(final int field) {
+
+		switch (field) {
+		case F_VALUE:
+			return this.value;
+		case F_LEXICAL_VALUE:
+			return this.lexicalValue;
+		case F_LABEL:
+			return this.label;
+		case F_HINT:
+			return this.hint;
+		case F_ALERT:
+			return this.alert;
+		case F_TEXT:
+			return this.text;
+		case F_REQUIRED:
+			return Boolean.valueOf(this.required);
+		case F_RELEVANT:
+			return Boolean.valueOf(this.relevant);
+		case F_READONLY:
+			return Boolean.valueOf(this.readonly);
+		default:
+			return this.options;
+		}
+	}
+
+	/**
+	 * Field number for key, or -1 if the key has no field.
+	 */
+	private static int field(final Object key) {
+
+		if (!(key instanceof String)) {
+			return -1;
+		}
+
+		switch ((String) key) {
+		case VALUE:
+			return F_VALUE;
+		case LEXICAL_VALUE:
+			return F_LEXICAL_VALUE;
+		case LABEL:
+			return F_LABEL;
+		case HINT:
+			return F_HINT;
+		case ALERT:
+			return F_ALERT;
+		case TEXT:
+			return F_TEXT;
+		case REQUIRED:
+			return F_REQUIRED;
+		case RELEVANT:
+			return F_RELEVANT;
+		case READONLY:
+			return F_READONLY;
+		case OPTIONS:
+			return F_OPTIONS;
+		default:
+			return -1;
+		}
+	}
+
+	private static String toText(final Object val) {
+		return val == null ? null : val.toString();
+	}
+
+	private static boolean toFlag(final Object val) {
+
+		if (val instanceof Boolean) {
+			return ((Boolean) val).booleanValue();
+		}
+		return val != null && Boolean.parseBoolean(val.toString());
+	}
+}
@@ -0,0 +1,443 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.data.Node;
+import com.w20e.socrates.model.ConstraintViolation;
+import com.w20e.socrates.model.InvalidPathExpression;
+import com.w20e.socrates.model.ItemProperties;
+import com.w20e.socrates.model.Model;
+import com.w20e.socrates.model.XRefSolver;
+import com.w20e.socrates.rendering.Control;
+import com.w20e.socrates.rendering.Group;
+import com.w20e.socrates.rendering.Option;
+import com.w20e.socrates.rendering.Renderable;
+import com.w20e.socrates.rendering.TextBlock;
+import com.w20e.socrates.rendering.Vocabulary;
+
+/**
+ * Builds the context of single items for one request. Every field is
+ * computed separately, so fields can be deferred until the template asks for
+ * them. In eager mode all fields are computed right away.
+ */
+final class ItemContextBuilder implements ItemContext.Loader {
+
+	/**
+	 * Initialize this class' logging.
+	 */
+	private static final Logger LOGGER = Logger
+			.getLogger(ItemContextBuilder.class.getName());
+
+	private static final int TEXT_FIELDS = 1 << ItemContext.F_TEXT;
+
+	private static final int GROUP_FIELDS = 1 << ItemContext.F_RELEVANT
+			| 1 << ItemContext.F_LABEL | 1 << ItemContext.F_HINT;
+
+	private static final int CONTROL_FIELDS = 1 << ItemContext.F_VALUE
+			| 1 << ItemContext.F_LEXICAL_VALUE | 1 << ItemContext.F_LABEL
+			| 1 << ItemContext.F_HINT | 1 << ItemContext.F_REQUIRED
+			| 1 << ItemContext.F_RELEVANT | 1 << ItemContext.F_READONLY
+			| 1 << ItemContext.F_ALERT;
+
+	private static final int OPTION_FIELDS = 1 << ItemContext.F_OPTIONS;
+
+	private final RenderRequest request;
+
+	private final Collection<Renderable> items;
+
+	private final boolean lazy;
+
+	/**
+	 * Whether only some items are asked for, as by formatDelta.
+	 */
+	private final boolean partial;
+
+	/**
+	 * Relevance of all items, computed when first needed. For a partial
+	 * request it holds none, and evaluates each item asked for, groups with
+	 * what's in them.
+	 */
+	private volatile RelevanceIndex relevance;
+
+	/**
+	 * Create builder.
+	 *
+	 * @param request
+	 *            the request
+	 * @param items
+	 *            top level items of the request
+	 * @param lazy
+	 *            defer fields until first access, or compute them now
+	 * @param partial
+	 *            only some items will be asked for, so don't evaluate the
+	 *            relevance of the whole page
+	 */
+	ItemContextBuilder(final RenderRequest request,
+			final Collection<Renderable> items, final boolean lazy,
+			final boolean partial) {
+
+		this.request = request;
+		this.items = items;
+		this.lazy = lazy;
+		this.partial = partial;
+	}
+
+	/**
+	 * Get the relevance index, computing it if need be.
+	 */
+	RelevanceIndex relevance() {
+
+		RelevanceIndex index = this.relevance;
+
+		if (index == null) {
+			synchronized (this) {
+				index = this.relevance;
+				if (index == null) {
+					index = new RelevanceIndex(this.partial ? Collections
+							.<Renderable> emptyList() : this.items, this.request
+							.getEvaluations());
+					this.relevance = index;
+				}
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * Create the context for a group, control or text block.
+	 *
+	 * @param rItem
+	 *            the item
+	 * @return the context, or null if the item doesn't need one, or it's
+	 *         control has no node.
+	 */
+	ItemContext build(final Renderable rItem) {
+
+		this.request.checkCancelled();
+
+		if (this.request.getSample() != null) {
+			this.request.getSample().addItem();
+		}
+
+		ItemContext itemCtx;
+
+		if (rItem instanceof Group) {
+
+			itemCtx = new ItemContext(rItem, null, null);
+			itemCtx.defer(this, GROUP_FIELDS
+					| (rItem instanceof Vocabulary ? OPTION_FIELDS : 0));
+
+		} else if (rItem instanceof TextBlock) {
+
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Adding text block to context: " + rItem.getId());
+			}
+
+			itemCtx = new ItemContext(rItem, null, null);
+			itemCtx.defer(this, TEXT_FIELDS);
+
+		} else if (rItem instanceof Control) {
+
+			String bind = ((Control) rItem).getBind();
+			Node node;
+
+			try {
+				node = this.request.getEvaluations().getNode(bind);
+			} catch (InvalidPathExpression e1) {
+				return null;
+			}
+
+			itemCtx = new ItemContext(rItem, node, this.request
+					.getEvaluations().getProperties(bind));
+			itemCtx.defer(this, CONTROL_FIELDS
+					| (rItem instanceof Vocabulary ? OPTION_FIELDS : 0));
+
+			// To debug or not to debug...
+			if (this.request.getSettings().isDebug()) {
+				addDebugInfo(itemCtx);
+			}
+		} else {
+			return null;
+		}
+
+		if (!this.lazy) {
+			itemCtx.loadAll();
+		}
+
+		return itemCtx;
+	}
+
+	/**
+	 * Compute the given field.
+	 */
+	public void load(final ItemContext itemCtx, final int field) {
+
+		this.request.checkCancelled();
+
+		Renderable rItem = itemCtx.getItem();
+
+		if (rItem instanceof Group) {
+			loadGroupField(itemCtx, (Group) rItem, field);
+		} else if (rItem instanceof TextBlock) {
+			loadText(itemCtx, (TextBlock) rItem);
+		} else {
+			loadControlField(itemCtx, (Control) rItem, field);
+		}
+	}
+
+	private void loadText(final ItemContext itemCtx, final TextBlock block) {
+
+		String text = this.request.translate(block.getText());
+		String filled = this.request.fill(text);
+
+		if (LOGGER.isLoggable(Level.FINEST)) {
+			LOGGER.finest("Found translation: " + text);
+			LOGGER.finest("Fills processed: " + filled);
+		}
+
+		itemCtx.setText(filled);
+	}
+
+	private void loadGroupField(final ItemContext itemCtx, final Group group,
+			final int field) {
+
+		switch (field) {
+		case ItemContext.F_RELEVANT:
+			itemCtx.setRelevant(relevance().isRelevant(group));
+			break;
+		case ItemContext.F_LABEL:
+			itemCtx.setLabel(this.request.fill(this.request.translate(group
+					.getLabel())));
+			break;
+		case ItemContext.F_HINT:
+			itemCtx.setHint(this.request.fill(this.request.translate(group
+					.getHint())));
+			break;
+		case ItemContext.F_OPTIONS:
+			itemCtx.setOptions(((Vocabulary) group).getOptions());
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void loadControlField(final ItemContext itemCtx,
+			final Control control, final int field) {
+
+		EvaluationCache evaluations = this.request.getEvaluations();
+
+		switch (field) {
+		case ItemContext.F_VALUE:
+		case ItemContext.F_LEXICAL_VALUE:
+			loadValue(itemCtx, control);
+			break;
+		case ItemContext.F_LABEL:
+			itemCtx.setLabel(this.request.fill(this.request.translate(control
+					.getLabel())));
+			break;
+		case ItemContext.F_HINT:
+			itemCtx.setHint(this.request.fill(this.request.translate(control
+					.getHint())));
+			break;
+		case ItemContext.F_REQUIRED:
+			itemCtx.setRequired(evaluations.isRequired(control.getBind()));
+			break;
+		case ItemContext.F_RELEVANT:
+			itemCtx.setRelevant(relevance().isRelevant(control));
+			break;
+		case ItemContext.F_READONLY:
+			itemCtx.setReadonly(evaluations.isReadOnly(control.getBind()));
+			break;
+		case ItemContext.F_OPTIONS:
+			itemCtx.setOptions(options(control));
+			break;
+		case ItemContext.F_ALERT:
+			loadAlert(itemCtx, control);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Set value and lexical value; these are computed in one go.
+	 */
+	private void loadValue(final ItemContext itemCtx, final Control control) {
+
+		ItemProperties props = itemCtx.getProps();
+		Node node = itemCtx.getNode();
+
+		try {
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("do we have calculations: " + props.getCalculate());
+				LOGGER.fine("Raw node value: " + node.getValue());
+			}
+
+			Object val = this.request.getEvaluations().getValue(
+					control.getBind());
+
+			Object lexical = control.getDisplayValue(val, props.getDatatype(),
+					this.request.getLocale());
+
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Adding item " + control.getId()
+						+ " to context with value " + val
+						+ " and lexical value " + lexical);
+			}
+
+			if (val == null) {
+				itemCtx.setValue("");
+			} else {
+				itemCtx.setValue(val);
+			}
+
+			itemCtx.setLexicalValue(lexical);
+
+		} catch (Exception e) {
+			itemCtx.setValue("");
+			itemCtx.setLexicalValue("");
+		}
+	}
+
+	/**
+	 * Options of the control. Large vocabularies only get their first page,
+	 * and the selected options.
+	 */
+	private List<Option> options(final Control control) {
+
+		List<Option> options = this.request.options((Vocabulary) control);
+		FormatterSettings settings = this.request.getSettings();
+		int large = settings.getLargeVocabulary();
+
+		if (large <= 0 || options.size() <= large) {
+			return options;
+		}
+
+		return new OptionPage(options, settings.getVocabularyPageSize(),
+				selected(control));
+	}
+
+	/**
+	 * Values of the control as strings; several for a multiple select.
+	 */
+	private Set<String> selected(final Control control) {
+
+		Object val;
+
+		try {
+			val = this.request.getEvaluations().getValue(control.getBind());
+		} catch (Exception e) {
+			return Collections.emptySet();
+		}
+
+		if (val == null) {
+			return Collections.emptySet();
+		}
+
+		Set<String> values = new HashSet<String>();
+
+		if (val instanceof Collection) {
+			for (Object v : (Collection<?>) val) {
+				values.add(String.valueOf(v));
+			}
+		} else if (val instanceof Object[]) {
+			for (Object v : (Object[]) val) {
+				values.add(String.valueOf(v));
+			}
+		} else {
+			values.add(String.valueOf(val));
+		}
+
+		return values;
+	}
+
+	/**
+	 * Check for error conditions. Alert is empty if none.
+	 */
+	private void loadAlert(final ItemContext itemCtx, final Control control) {
+
+		Map<String, Exception> errors = this.request.getErrors();
+
+		if (errors == null || !errors.containsKey(control.getBind())) {
+			itemCtx.setAlert("");
+			return;
+		}
+
+		if ("".equals(control.getAlert())) {
+			itemCtx.setAlert(translateError(((ConstraintViolation) errors
+					.get(control.getBind())).getMessage(), this.request
+					.getMessages()));
+		} else {
+			itemCtx.setAlert(this.request.fill(this.request.translate(control
+					.getAlert())));
+		}
+	}
+
+	private void addDebugInfo(final ItemContext itemCtx) {
+
+		ItemProperties props = itemCtx.getProps();
+		Node node = itemCtx.getNode();
+		Model model = this.request.getModel();
+		Instance inst = this.request.getInstance();
+
+		itemCtx.put("required_expr", props.getRequired().toString());
+		itemCtx.put("relevant_expr", props.getRelevant().toString());
+		itemCtx.put("constraint_expr", props.getConstraint().toString());
+		itemCtx.put("readonly_expr", props.getReadOnly().toString());
+		itemCtx.put("required_expr_resolved",
+				XRefSolver.resolve(model, inst, props.getRequired(), node));
+		itemCtx.put("relevant_expr_resolved",
+				XRefSolver.resolve(model, inst, props.getRelevant(), node));
+		itemCtx.put("constraint_expr_resolved",
+				XRefSolver.resolve(model, inst, props.getConstraint(), node));
+		itemCtx.put("readonly_expr_resolved",
+				XRefSolver.resolve(model, inst, props.getReadOnly(), node));
+	}
+
+	/**
+	 * Return the translated alert message.
+	 *
+	 * @param msg
+	 *            original message.
+	 * @param bundle
+	 *            locale bindle
+	 * @return the translated message.
+	 */
+	private static String translateError(final String msg,
+			final LocaleBundle bundle) {
+
+		String alert;
+
+		if (ConstraintViolation.REQUIRED.equals(msg)) {
+			alert = bundle.getString("alert.required");
+		} else if (ConstraintViolation.TYPE.equals(msg)) {
+			alert = bundle.getString("alert.type");
+		} else if (ConstraintViolation.FALSE.equals(msg)) {
+			alert = bundle.getString("alert.constraint");
+		} else {
+			alert = bundle.getString("alert.unknown");
+		}
+
+		return alert == null ? "Erroneous input" : alert;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+/**
+ * State of a single item after a change, as computed by formatDelta: what
+ * the browser needs to update a control without reloading the page.
+ */
+public final class ItemUpdate {
+
+	private final String id;
+
+	private final String bind;
+
+	private final Object value;
+
+	private final String alert;
+
+	private final boolean required;
+
+	private final boolean relevant;
+
+	private final boolean readonly;
+
+	private final String html;
+
+	ItemUpdate(final String id, final String bind, final ItemContext ctx,
+			final String html) {
+
+		this.id = id;
+		this.bind = bind;
+		this.value = ctx.getLexicalValue();
+		this.alert = ctx.getAlert();
+		this.required = ctx.isRequired();
+		this.relevant = ctx.isRelevant();
+		this.readonly = ctx.isReadonly();
+		this.html = html;
+	}
+
+	/**
+	 * @return item id.
+	 */
+	public String getId() {
+		return this.id;
+	}
+
+	/**
+	 * @return bind of the control, or null for other items.
+	 */
+	public String getBind() {
+		return this.bind;
+	}
+
+	/**
+	 * @return value as shown, or null.
+	 */
+	public Object getValue() {
+		return this.value;
+	}
+
+	/**
+	 * @return alert, or null if the value is valid.
+	 */
+	public String getAlert() {
+		return this.alert;
+	}
+
+	public boolean isRequired() {
+		return this.required;
+	}
+
+	public boolean isRelevant() {
+		return this.relevant;
+	}
+
+	public boolean isReadonly() {
+		return this.readonly;
+	}
+
+	/**
+	 * @return the item rendered with the item template, or null if none was
+	 *         given.
+	 */
+	public String getHtml() {
+		return this.html;
+	}
+}
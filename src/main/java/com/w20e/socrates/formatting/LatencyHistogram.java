@@ -0,0 +1,107 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds, with a bucket per power of two.
+ * Recording is lock free; percentiles are accurate to a factor of two.
+ */
+final class LatencyHistogram {
+
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param micros
+	 *            latency in microseconds
+	 */
+	void record(final long micros) {
+
+		long value = Math.max(0, micros);
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+
+		this.counts.incrementAndGet(bucket);
+		this.count.incrementAndGet();
+		this.sum.addAndGet(value);
+
+		long current = this.max.get();
+
+		while (value > current && !this.max.compareAndSet(current, value)) {
+			current = this.max.get();
+		}
+	}
+
+	long getCount() {
+		return this.count.get();
+	}
+
+	long getMean() {
+
+		long n = this.count.get();
+
+		return n == 0 ? 0 : this.sum.get() / n;
+	}
+
+	long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * Upper bound of the bucket holding the given percentile.
+	 *
+	 * @param percentile
+	 *            0 - 100
+	 * @return latency in microseconds
+	 */
+	long getPercentile(final double percentile) {
+
+		long n = this.count.get();
+
+		if (n == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(n * percentile / 100.0);
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += this.counts.get(i);
+			if (seen >= rank) {
+				return Math.min(this.max.get(), i == 0 ? 0 : (1L << i) - 1);
+			}
+		}
+
+		return this.max.get();
+	}
+
+	void reset() {
+
+		for (int i = 0; i < BUCKETS; i++) {
+			this.counts.set(i, 0);
+		}
+		this.count.set(0);
+		this.sum.set(0);
+		this.max.set(0);
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.w20e.socrates.rendering.Group;
+import com.w20e.socrates.rendering.Renderable;
+
+/**
+ * The $context map of a request, that only creates the context of an item
+ * when the template asks for it. Items the template never looks at cost
+ * nothing beyond an index entry.
+ */
+final class LazyContextMap extends AbstractMap<String, ItemContext> {
+
+	private final ItemContextBuilder builder;
+
+	/**
+	 * All items by id, including nested ones.
+	 */
+	private final Map<String, Renderable> index = new LinkedHashMap<String, Renderable>();
+
+	/**
+	 * Contexts created so far. Null values for items that have none.
+	 */
+	private final Map<String, ItemContext> created = new HashMap<String, ItemContext>();
+
+	/**
+	 * Create map for the given items.
+	 *
+	 * @param items
+	 *            top level items
+	 * @param builder
+	 *            builder for item contexts
+	 */
+	LazyContextMap(final Collection<Renderable> items,
+			final ItemContextBuilder builder) {
+
+		this.builder = builder;
+		addToIndex(items);
+	}
+
+	private void addToIndex(final Collection<Renderable> items) {
+
+		for (Renderable rItem : items) {
+
+			this.index.put(rItem.getId(), rItem);
+
+			if (rItem instanceof Group) {
+				addToIndex(((Group) rItem).getItems());
+			}
+		}
+	}
+
+	@Override
+	public ItemContext get(final Object key) {
+
+		if (this.created.containsKey(key)) {
+			return this.created.get(key);
+		}
+
+		Renderable rItem = this.index.get(key);
+
+		if (rItem == null) {
+			return null;
+		}
+
+		ItemContext itemCtx = this.builder.build(rItem);
+
+		this.created.put(rItem.getId(), itemCtx);
+
+		return itemCtx;
+	}
+
+	@Override
+	public boolean containsKey(final Object key) {
+
+		return get(key) != null;
+	}
+
+	@Override
+	public int size() {
+
+		return entrySet().size();
+	}
+
+	/**
+	 * Entry set. This creates the context of all items.
+	 */
+	@Override
+	public Set<Map.Entry<String, ItemContext>> entrySet() {
+
+		Map<String, ItemContext> all = new LinkedHashMap<String, ItemContext>();
+
+		for (String id : this.index.keySet()) {
+
+			ItemContext itemCtx = get(id);
+
+			if (itemCtx != null) {
+				all.put(id, itemCtx);
+			}
+		}
+
+		return all.entrySet();
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.net.URL;
+import java.util.Locale;
+import java.util.Map;
+
+import com.w20e.socrates.util.UTF8ResourceBundle;
+
+/**
+ * The resource bundle of a locale, with the messages of it's whole
+ * fallback chain (e.g. de_DE, de and root) flattened into one table.
+ */
+final class LocaleBundle {
+
+	private final Locale locale;
+
+	private final UTF8ResourceBundle bundle;
+
+	private final Map<String, String> messages;
+
+	/**
+	 * Files the messages were read from, and their modification times.
+	 */
+	private final URL[] sources;
+
+	private final long[] stamps;
+
+	/**
+	 * When the sources were last checked for changes.
+	 */
+	private volatile long checked;
+
+	LocaleBundle(final Locale locale, final UTF8ResourceBundle bundle,
+			final Map<String, String> messages, final URL[] sources,
+			final long[] stamps) {
+
+		this.locale = locale;
+		this.bundle = bundle;
+		this.messages = messages;
+		this.sources = sources;
+		this.stamps = stamps;
+		this.checked = System.currentTimeMillis();
+	}
+
+	Locale getLocale() {
+		return this.locale;
+	}
+
+	/**
+	 * @return the bundle, as templates get it.
+	 */
+	UTF8ResourceBundle getBundle() {
+		return this.bundle;
+	}
+
+	/**
+	 * Get the message for the key, from the most specific locale that has
+	 * it.
+	 *
+	 * @return the message, or null.
+	 */
+	String getString(final String key) {
+
+		String msg = this.messages.get(key);
+
+		if (msg == null && this.bundle != null) {
+			try {
+				msg = this.bundle.getString(key);
+			} catch (RuntimeException e) {
+				// Missing resource.
+			}
+		}
+
+		return msg;
+	}
+
+	/**
+	 * @return number of messages in the table.
+	 */
+	int size() {
+		return this.messages.size();
+	}
+
+	URL[] getSources() {
+		return this.sources;
+	}
+
+	long[] getStamps() {
+		return this.stamps;
+	}
+
+	long getChecked() {
+		return this.checked;
+	}
+
+	void setChecked(final long time) {
+		this.checked = time;
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Token index over the translated labels of a vocabulary, for type-ahead
+ * lookup. Labels are split into words, lower cased and stripped of
+ * accents; a query matches an option if every word of the query is the
+ * start of a word of it's label. Immutable, so it's shared by all requests.
+ */
+final class OptionIndex {
+
+	private static final Pattern SEPARATORS = Pattern
+			.compile("[^\\p{L}\\p{N}]+");
+
+	private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+	private final Locale locale;
+
+	private final int size;
+
+	/**
+	 * Words of all labels, sorted, with the position of the option each
+	 * came from.
+	 */
+	private final String[] words;
+
+	private final int[] positions;
+
+	/**
+	 * Build the index.
+	 *
+	 * @param labels
+	 *            translated labels, in option order
+	 * @param locale
+	 *            locale of the labels, for lower casing
+	 */
+	OptionIndex(final String[] labels, final Locale locale) {
+
+		this.locale = locale == null ? Locale.ROOT : locale;
+		this.size = labels.length;
+
+		int count = 0;
+		String[][] split = new String[labels.length][];
+
+		for (int i = 0; i < labels.length; i++) {
+			split[i] = words(labels[i]);
+			count += split[i].length;
+		}
+
+		final String[] allWords = new String[count];
+		int[] allPositions = new int[count];
+		Integer[] order = new Integer[count];
+		int n = 0;
+
+		for (int i = 0; i < split.length; i++) {
+			for (String word : split[i]) {
+				allWords[n] = word;
+				allPositions[n] = i;
+				order[n] = Integer.valueOf(n);
+				n++;
+			}
+		}
+
+		// Stable, so positions stay in option order per word.
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(final Integer a, final Integer b) {
+				return allWords[a.intValue()].compareTo(allWords[b.intValue()]);
+			}
+		});
+
+		this.words = new String[count];
+		this.positions = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			this.words[i] = allWords[order[i].intValue()];
+			this.positions[i] = allPositions[order[i].intValue()];
+		}
+	}
+
+	/**
+	 * Find the options matching the query.
+	 *
+	 * @param query
+	 *            what the user typed; empty matches all
+	 * @param offset
+	 *            number of matches to skip
+	 * @param limit
+	 *            maximum number of positions to return
+	 * @return positions of matching options, in option order
+	 */
+	int[] find(final String query, final int offset, final int limit) {
+
+		String[] terms = words(query);
+		BitSet matches = null;
+
+		for (String term : terms) {
+			BitSet hits = new BitSet(this.size);
+			int i = lowerBound(term);
+
+			while (i < this.words.length && this.words[i].startsWith(term)) {
+				hits.set(this.positions[i]);
+				i++;
+			}
+
+			if (matches == null) {
+				matches = hits;
+			} else {
+				matches.and(hits);
+			}
+
+			if (matches.isEmpty()) {
+				return new int[0];
+			}
+		}
+
+		if (matches == null) {
+			matches = new BitSet(this.size);
+			matches.set(0, this.size);
+		}
+
+		int[] found = new int[Math.max(0, Math.min(limit,
+				matches.cardinality() - offset))];
+		int skipped = 0;
+		int n = 0;
+
+		for (int i = matches.nextSetBit(0); i >= 0 && n < found.length; i = matches
+				.nextSetBit(i + 1)) {
+			if (skipped < offset) {
+				skipped++;
+			} else {
+				found[n++] = i;
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * @return number of words indexed.
+	 */
+	int getWords() {
+		return this.words.length;
+	}
+
+	/**
+	 * First index of a word not before the term.
+	 */
+	private int lowerBound(final String term) {
+
+		int low = 0;
+		int high = this.words.length;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (this.words[mid].compareTo(term) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	private String[] words(final String text) {
+
+		if (text == null) {
+			return new String[0];
+		}
+
+		String plain = MARKS.matcher(
+				Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+				.toLowerCase(this.locale);
+		String[] split = SEPARATORS.split(plain);
+		int n = 0;
+
+		for (String word : split) {
+			if (word.length() > 0) {
+				split[n++] = word;
+			}
+		}
+
+		return n == split.length ? split : Arrays.copyOf(split, n);
+	}
+}
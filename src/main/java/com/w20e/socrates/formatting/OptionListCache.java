@@ -0,0 +1,217 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.w20e.socrates.rendering.Option;
+import com.w20e.socrates.rendering.Vocabulary;
+
+/**
+ * Translated option lists per vocabulary and locale, shared by all requests.
+ * Lists are immutable. A list is rebuilt when the vocabulary's options are
+ * replaced or change in size, or when the translations were cleared since.
+ * Vocabularies are held weakly, so lists of a model that is no longer used
+ * go with it. For type-ahead lookup a list gets a token index over it's
+ * labels, built on first lookup.
+ */
+final class OptionListCache {
+
+	private final TranslationCache translations;
+
+	private final Map<Vocabulary, Map<Locale, OptionList>> lists = new WeakHashMap<Vocabulary, Map<Locale, OptionList>>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Translated list, with what it was made from.
+	 */
+	private static final class OptionList {
+
+		private final List<Option> source;
+
+		private final int sourceSize;
+
+		private final int generation;
+
+		private final List<Option> options;
+
+		/**
+		 * Translated labels, in option order, for the index.
+		 */
+		private final String[] labels;
+
+		private OptionIndex index;
+
+		OptionList(final List<Option> source, final int generation,
+				final List<Option> options, final String[] labels) {
+
+			this.source = source;
+			this.sourceSize = source.size();
+			this.generation = generation;
+			this.options = options;
+			this.labels = labels;
+		}
+
+		synchronized OptionIndex index(final Locale locale) {
+
+			if (this.index == null) {
+				this.index = new OptionIndex(this.labels, locale);
+			}
+
+			return this.index;
+		}
+
+		boolean isValid(final List<Option> current, final int currentGeneration) {
+
+			return this.source == current
+					&& this.sourceSize == current.size()
+					&& this.generation == currentGeneration;
+		}
+	}
+
+	/**
+	 * Create cache.
+	 *
+	 * @param translations
+	 *            translations to use
+	 */
+	OptionListCache(final TranslationCache translations) {
+
+		this.translations = translations;
+	}
+
+	/**
+	 * Get the translated options of the vocabulary.
+	 *
+	 * @param vocab
+	 *            vocabulary
+	 * @param locale
+	 *            locale
+	 * @return immutable list of options with translated labels
+	 */
+	List<Option> get(final Vocabulary vocab, final Locale locale) {
+
+		return list(vocab, locale).options;
+	}
+
+	/**
+	 * Find the options whose translated labels match the query: each word
+	 * of the query starts a word of the label.
+	 *
+	 * @param vocab
+	 *            vocabulary
+	 * @param locale
+	 *            locale
+	 * @param query
+	 *            what the user typed; empty matches all options
+	 * @param offset
+	 *            number of matches to skip
+	 * @param limit
+	 *            maximum number of options
+	 * @return matching options with translated labels, in vocabulary order
+	 */
+	List<Option> lookup(final Vocabulary vocab, final Locale locale,
+			final String query, final int offset, final int limit) {
+
+		OptionList list = list(vocab, locale);
+		int[] found = list.index(locale).find(query, Math.max(0, offset),
+				Math.max(0, limit));
+		List<Option> options = new ArrayList<Option>(found.length);
+
+		for (int pos : found) {
+			options.add(list.options.get(pos));
+		}
+
+		return options;
+	}
+
+	private OptionList list(final Vocabulary vocab, final Locale locale) {
+
+		List<Option> source = vocab.getOptions();
+		int generation = this.translations.getGeneration();
+
+		synchronized (this.lists) {
+			Map<Locale, OptionList> perLocale = this.lists.get(vocab);
+
+			if (perLocale != null) {
+				OptionList list = perLocale.get(locale);
+
+				if (list != null && list.isValid(source, generation)) {
+					this.hits.incrementAndGet();
+					return list;
+				}
+			}
+		}
+
+		this.misses.incrementAndGet();
+
+		List<Option> options = new ArrayList<Option>(source.size());
+		String[] labels = new String[source.size()];
+		int i = 0;
+
+		for (Option opt : source) {
+			labels[i] = this.translations.translate(opt.getLabel(), locale);
+			options.add(new Option(opt.getValue(), labels[i]));
+			i++;
+		}
+
+		OptionList list = new OptionList(source, generation,
+				Collections.unmodifiableList(options), labels);
+
+		synchronized (this.lists) {
+			Map<Locale, OptionList> perLocale = this.lists.get(vocab);
+
+			if (perLocale == null) {
+				perLocale = new HashMap<Locale, OptionList>(4);
+				this.lists.put(vocab, perLocale);
+			}
+
+			perLocale.put(locale, list);
+		}
+
+		return list;
+	}
+
+	/**
+	 * Drop all lists.
+	 */
+	void clear() {
+
+		synchronized (this.lists) {
+			this.lists.clear();
+		}
+	}
+
+	/**
+	 * @return number of lists served from the cache.
+	 */
+	long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return number of lists built.
+	 */
+	long getMisses() {
+		return this.misses.get();
+	}
+}
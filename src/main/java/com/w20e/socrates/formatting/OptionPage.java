@@ -0,0 +1,103 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import com.w20e.socrates.rendering.Option;
+
+/**
+ * Options of a large vocabulary as the template sees them: the first page
+ * of options, followed by the selected options that are not on it. The
+ * full list is not copied. Templates iterate it like any option list, and
+ * can use total and complete to offer type-ahead lookup of the rest.
+ */
+public final class OptionPage extends AbstractList<Option> {
+
+	private final List<Option> all;
+
+	private final List<Option> shown;
+
+	/**
+	 * Create page.
+	 *
+	 * @param all
+	 *            all options, translated
+	 * @param pageSize
+	 *            number of options shown from the start of the list
+	 * @param selected
+	 *            values of the selected options, shown as well
+	 */
+	OptionPage(final List<Option> all, final int pageSize,
+			final Collection<String> selected) {
+
+		this.all = all;
+
+		int first = Math.max(0, Math.min(pageSize, all.size()));
+		List<Option> page = new ArrayList<Option>(all.subList(0, first));
+
+		if (!selected.isEmpty()) {
+			for (Option opt : all.subList(first, all.size())) {
+				if (selected.contains(opt.getValue())) {
+					page.add(opt);
+				}
+			}
+		}
+
+		this.shown = Collections.unmodifiableList(page);
+	}
+
+	@Override
+	public Option get(final int index) {
+		return this.shown.get(index);
+	}
+
+	@Override
+	public int size() {
+		return this.shown.size();
+	}
+
+	/**
+	 * @return number of options of the vocabulary.
+	 */
+	public int getTotal() {
+		return this.all.size();
+	}
+
+	/**
+	 * @return whether all options are shown.
+	 */
+	public boolean isComplete() {
+		return this.shown.size() == this.all.size();
+	}
+
+	/**
+	 * Get a page of all options.
+	 *
+	 * @param offset
+	 *            first option
+	 * @param limit
+	 *            maximum number of options
+	 * @return the options, possibly none
+	 */
+	public List<Option> page(final int offset, final int limit) {
+
+		int from = Math.max(0, Math.min(offset, this.all.size()));
+		int to = Math.min(this.all.size(), from + Math.max(0, limit));
+
+		return this.all.subList(from, to);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.w20e.socrates.rendering.Group;
+import com.w20e.socrates.rendering.Renderable;
+
+/**
+ * Fills the item contexts of large pages on a fork-join pool. The item tree
+ * is flattened in the order the sequential fill visits it; contexts are
+ * built in parallel into their own slot, and merged in that order, so the
+ * result is the same as that of the sequential fill.
+ */
+final class ParallelContextFill {
+
+	/**
+	 * Smallest number of items a task will split.
+	 */
+	private static final int MIN_GRAIN = 8;
+
+	private ParallelContextFill() {
+		// Not to be instantiated.
+	}
+
+	/**
+	 * List all items, groups before their items.
+	 *
+	 * @param items
+	 *            top level items
+	 * @return flattened items
+	 */
+	static List<Renderable> flatten(final Collection<Renderable> items) {
+
+		List<Renderable> flat = new ArrayList<Renderable>();
+
+		flatten(items, flat);
+
+		return flat;
+	}
+
+	private static void flatten(final Collection<Renderable> items,
+			final List<Renderable> flat) {
+
+		for (Renderable rItem : items) {
+
+			flat.add(rItem);
+
+			if (rItem instanceof Group) {
+				flatten(((Group) rItem).getItems(), flat);
+			}
+		}
+	}
+
+	/**
+	 * Build the contexts of the items in parallel, and add them to values.
+	 *
+	 * @param pool
+	 *            pool to fill on
+	 * @param flat
+	 *            flattened items
+	 * @param builder
+	 *            eager builder, safe for use by several threads
+	 * @param values
+	 *            context map to add to
+	 */
+	static void fill(final ForkJoinPool pool, final List<Renderable> flat,
+			final ItemContextBuilder builder,
+			final Map<String, ItemContext> values) {
+
+		ItemContext[] contexts = new ItemContext[flat.size()];
+		int grain = Math.max(MIN_GRAIN, flat.size()
+				/ (pool.getParallelism() * 4));
+
+		// Shared by all items; compute it before forking.
+		builder.relevance();
+
+		pool.invoke(new FillTask(flat, builder, contexts, 0,
+				flat.size(), grain));
+
+		for (int i = 0; i < contexts.length; i++) {
+			if (contexts[i] != null) {
+				values.put(flat.get(i).getId(), contexts[i]);
+			}
+		}
+	}
+
+	/**
+	 * Build the contexts of a range of items.
+	 */
+	private static final class FillTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Renderable> flat;
+
+		private final ItemContextBuilder builder;
+
+		private final ItemContext[] contexts;
+
+		private final int from;
+
+		private final int to;
+
+		private final int grain;
+
+		FillTask(final List<Renderable> flat,
+				final ItemContextBuilder builder, final ItemContext[] contexts,
+				final int from, final int to, final int grain) {
+
+			this.flat = flat;
+			this.builder = builder;
+			this.contexts = contexts;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (this.to - this.from <= this.grain) {
+				for (int i = this.from; i < this.to; i++) {
+					this.contexts[i] = this.builder.build(this.flat.get(i));
+				}
+				return;
+			}
+
+			int middle = (this.from + this.to) >>> 1;
+
+			invokeAll(new FillTask(this.flat, this.builder, this.contexts,
+					this.from, middle, this.grain), new FillTask(this.flat,
+					this.builder, this.contexts, middle, this.to, this.grain));
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.w20e.socrates.rendering.Control;
+import com.w20e.socrates.rendering.Group;
+import com.w20e.socrates.rendering.Renderable;
+import com.w20e.socrates.rendering.TextBlock;
+
+/**
+ * Relevance of all items of a request, computed bottom up in one pass over
+ * the tree. A group is relevant if it holds a text block, a relevant control
+ * or a relevant group; every control and group is evaluated once, however
+ * deep the nesting. Once created, the index is only read, so it may be
+ * shared by threads.
+ */
+final class RelevanceIndex {
+
+	private final EvaluationCache evaluations;
+
+	private final Map<Renderable, Boolean> relevance = new IdentityHashMap<Renderable, Boolean>();
+
+	/**
+	 * Compute relevance for the given items and everything below.
+	 *
+	 * @param items
+	 *            top level items
+	 * @param evaluations
+	 *            evaluations of the request
+	 */
+	RelevanceIndex(final Collection<Renderable> items,
+			final EvaluationCache evaluations) {
+
+		this.evaluations = evaluations;
+
+		for (Renderable rItem : items) {
+			evaluate(rItem, true);
+		}
+	}
+
+	/**
+	 * Whether the item is relevant. Items outside the tree are evaluated
+	 * each time.
+	 *
+	 * @param rItem
+	 *            control, text block or group
+	 * @return relevance
+	 */
+	boolean isRelevant(final Renderable rItem) {
+
+		Boolean result = this.relevance.get(rItem);
+
+		if (result == null) {
+			return evaluate(rItem, false);
+		}
+
+		return result.booleanValue();
+	}
+
+	private boolean evaluate(final Renderable rItem, final boolean store) {
+
+		boolean result;
+
+		if (rItem instanceof Group) {
+
+			result = false;
+
+			// Evaluate all children, they are needed anyway.
+			for (Renderable child : ((Group) rItem).getItems()) {
+				if (evaluate(child, store)) {
+					result = true;
+				}
+			}
+		} else if (rItem instanceof Control) {
+			result = this.evaluations.isRelevant(
+					((Control) rItem).getBind());
+		} else {
+			// Text is always shown.
+			result = rItem instanceof TextBlock;
+		}
+
+		if (store) {
+			this.relevance.put(rItem, Boolean.valueOf(result));
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.velocity.VelocityContext;
+
+import com.w20e.socrates.rendering.Renderable;
+
+/**
+ * Working structures of a render, kept per thread and reused by the next
+ * render on that thread: the Velocity context's map, the item context map
+ * and the item list. The Velocity context itself is new for every render,
+ * so Velocity's per context caches don't outlive it. A render acquires the
+ * arena and must release it when done; release empties everything, so
+ * nothing of a render is visible to the next. A render on a thread whose
+ * arena is in use, e.g. a nested format, gets none. Structures that grew
+ * large are dropped rather than kept.
+ */
+final class RenderArena {
+
+	/**
+	 * Maps and lists larger than this are not kept.
+	 */
+	static final int MAX_RETAINED = 4096;
+
+	private static final ThreadLocal<RenderArena> ARENAS = new ThreadLocal<RenderArena>();
+
+	private Map<String, Object> contextMap;
+
+	private Map<String, ItemContext> values;
+
+	private ArrayList<Renderable> items;
+
+	private boolean inUse;
+
+	private RenderArena() {
+
+		reset();
+	}
+
+	/**
+	 * Get this thread's arena.
+	 *
+	 * @return the arena, or null if it is in use.
+	 */
+	static RenderArena acquire() {
+
+		RenderArena arena = ARENAS.get();
+
+		if (arena == null) {
+			arena = new RenderArena();
+			ARENAS.set(arena);
+		}
+
+		if (arena.inUse) {
+			return null;
+		}
+
+		arena.inUse = true;
+
+		return arena;
+	}
+
+	/**
+	 * @return new Velocity context, backed by the empty map.
+	 */
+	VelocityContext newContext() {
+		return new VelocityContext(this.contextMap);
+	}
+
+	/**
+	 * @return the empty item context map.
+	 */
+	Map<String, ItemContext> getValues() {
+		return this.values;
+	}
+
+	/**
+	 * @return list holding the given items.
+	 */
+	List<Renderable> getItems(final Collection<Renderable> source) {
+
+		this.items.addAll(source);
+
+		return this.items;
+	}
+
+	/**
+	 * Empty everything, and hand the arena back to the thread.
+	 */
+	void release() {
+
+		if (this.contextMap.size() > MAX_RETAINED
+				|| this.values.size() > MAX_RETAINED
+				|| this.items.size() > MAX_RETAINED) {
+			reset();
+		} else {
+			this.contextMap.clear();
+			this.values.clear();
+			this.items.clear();
+		}
+
+		this.inUse = false;
+	}
+
+	private void reset() {
+
+		this.contextMap = new HashMap<String, Object>();
+		this.values = new HashMap<String, ItemContext>();
+		this.items = new ArrayList<Renderable>();
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * Render metrics of a formatter: latency per phase, renders per template
+ * and locale, and totals. Available as MXBean, and to listeners per render.
+ */
+public final class RenderMetrics implements RenderMetricsMXBean {
+
+	/**
+	 * Initialize this class' logging.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(RenderMetrics.class
+			.getName());
+
+	private final LatencyHistogram[] phases = new LatencyHistogram[RenderPhase
+			.values().length];
+
+	private final ConcurrentMap<String, AtomicLong> templates = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final ConcurrentMap<String, AtomicLong> locales = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	private final AtomicLong items = new AtomicLong();
+
+	private final AtomicLong outputBytes = new AtomicLong();
+
+	private final AtomicLong allocatedBytes = new AtomicLong();
+
+	private final List<RenderMetricsListener> listeners = new CopyOnWriteArrayList<RenderMetricsListener>();
+
+	/**
+	 * Name registered under, or null.
+	 */
+	private ObjectName registered;
+
+	RenderMetrics() {
+
+		for (int i = 0; i < this.phases.length; i++) {
+			this.phases[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Record a finished render, and pass it on to the listeners.
+	 */
+	void record(final RenderSample sample) {
+
+		for (RenderPhase phase : RenderPhase.values()) {
+			this.phases[phase.ordinal()]
+					.record(sample.getNanos(phase) / 1000L);
+		}
+
+		count(this.templates, sample.getTemplate());
+		count(this.locales, String.valueOf(sample.getLocale()));
+
+		this.requests.incrementAndGet();
+		this.items.addAndGet(sample.getItems());
+		this.outputBytes.addAndGet(sample.getOutputBytes());
+		this.allocatedBytes.addAndGet(sample.getAllocatedBytes());
+
+		if (sample.isFailed()) {
+			this.failures.incrementAndGet();
+		}
+
+		for (RenderMetricsListener listener : this.listeners) {
+			try {
+				listener.rendered(sample);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Metrics listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Register as MBean with the platform MBean server. A name that is
+	 * taken already is logged, not thrown.
+	 *
+	 * @param name
+	 *            object name
+	 */
+	synchronized void register(final String name) {
+
+		if (this.registered != null) {
+			return;
+		}
+
+		try {
+			ObjectName objectName = new ObjectName(name);
+
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					objectName);
+			this.registered = objectName;
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Can't register render metrics as "
+					+ name, e);
+		}
+	}
+
+	/**
+	 * Remove the MBean, if registered, so the MBean server no longer holds
+	 * on to the formatter.
+	 */
+	synchronized void unregister() {
+
+		if (this.registered == null) {
+			return;
+		}
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					this.registered);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Can't unregister render metrics "
+					+ this.registered, e);
+		}
+
+		this.registered = null;
+	}
+
+	/**
+	 * @return name registered under, or null if not registered.
+	 */
+	synchronized ObjectName getRegisteredName() {
+		return this.registered;
+	}
+
+	/**
+	 * Add listener, called after every render.
+	 *
+	 * @param listener
+	 *            the listener
+	 */
+	public void addListener(final RenderMetricsListener listener) {
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Remove listener.
+	 *
+	 * @param listener
+	 *            the listener
+	 */
+	public void removeListener(final RenderMetricsListener listener) {
+		this.listeners.remove(listener);
+	}
+
+	public long getRequests() {
+		return this.requests.get();
+	}
+
+	public long getFailures() {
+		return this.failures.get();
+	}
+
+	public long getItems() {
+		return this.items.get();
+	}
+
+	public long getOutputBytes() {
+		return this.outputBytes.get();
+	}
+
+	public long getAllocatedBytes() {
+		return this.allocatedBytes.get();
+	}
+
+	public Map<String, Long> getTemplateCounts() {
+		return snapshot(this.templates);
+	}
+
+	public Map<String, Long> getLocaleCounts() {
+		return snapshot(this.locales);
+	}
+
+	public Map<String, Long> getPhaseMeanMicros() {
+
+		Map<String, Long> result = new TreeMap<String, Long>();
+
+		for (RenderPhase phase : RenderPhase.values()) {
+			result.put(phase.name(),
+					Long.valueOf(this.phases[phase.ordinal()].getMean()));
+		}
+
+		return result;
+	}
+
+	public Map<String, Long> getPhaseMedianMicros() {
+		return percentiles(50);
+	}
+
+	public Map<String, Long> getPhase99thPercentileMicros() {
+		return percentiles(99);
+	}
+
+	public Map<String, Long> getPhaseMaxMicros() {
+
+		Map<String, Long> result = new TreeMap<String, Long>();
+
+		for (RenderPhase phase : RenderPhase.values()) {
+			result.put(phase.name(),
+					Long.valueOf(this.phases[phase.ordinal()].getMax()));
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param phase
+	 *            phase
+	 * @param percentile
+	 *            0 - 100
+	 * @return time of the phase at the percentile, in microseconds, to a
+	 *         power of two.
+	 */
+	public long getPercentileMicros(final RenderPhase phase,
+			final double percentile) {
+		return this.phases[phase.ordinal()].getPercentile(percentile);
+	}
+
+	public void reset() {
+
+		for (LatencyHistogram histogram : this.phases) {
+			histogram.reset();
+		}
+		this.templates.clear();
+		this.locales.clear();
+		this.requests.set(0);
+		this.failures.set(0);
+		this.items.set(0);
+		this.outputBytes.set(0);
+		this.allocatedBytes.set(0);
+	}
+
+	private Map<String, Long> percentiles(final double percentile) {
+
+		Map<String, Long> result = new TreeMap<String, Long>();
+
+		for (RenderPhase phase : RenderPhase.values()) {
+			result.put(phase.name(), Long.valueOf(this.phases[phase
+					.ordinal()].getPercentile(percentile)));
+		}
+
+		return result;
+	}
+
+	private static void count(final ConcurrentMap<String, AtomicLong> counts,
+			final String key) {
+
+		AtomicLong counter = counts.get(key);
+
+		if (counter == null) {
+			counter = new AtomicLong();
+			AtomicLong raced = counts.putIfAbsent(key, counter);
+			if (raced != null) {
+				counter = raced;
+			}
+		}
+
+		counter.incrementAndGet();
+	}
+
+	private static Map<String, Long> snapshot(
+			final ConcurrentMap<String, AtomicLong> counts) {
+
+		Map<String, Long> result = new TreeMap<String, Long>();
+
+		for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+			result.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+		}
+
+		return result;
+	}
+}
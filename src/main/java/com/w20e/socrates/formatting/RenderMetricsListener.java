@@ -0,0 +1,28 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+/**
+ * Receives the measurements of every render, e.g. to pass them on to a
+ * metrics system. Called on the rendering thread, after the output is
+ * flushed, so implementations should be quick.
+ */
+public interface RenderMetricsListener {
+
+	/**
+	 * A render finished.
+	 *
+	 * @param sample
+	 *            the measurements of the render
+	 */
+	void rendered(RenderSample sample);
+}
@@ -0,0 +1,82 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.Map;
+
+/**
+ * Management interface of the render metrics. Times are in microseconds;
+ * maps of phases are keyed by RenderPhase name.
+ */
+public interface RenderMetricsMXBean {
+
+	/**
+	 * @return number of renders, including failed ones.
+	 */
+	long getRequests();
+
+	/**
+	 * @return number of failed renders.
+	 */
+	long getFailures();
+
+	/**
+	 * @return number of item contexts built.
+	 */
+	long getItems();
+
+	/**
+	 * @return number of bytes written.
+	 */
+	long getOutputBytes();
+
+	/**
+	 * @return number of bytes allocated by rendering threads during renders,
+	 *         or 0 if the VM can't tell.
+	 */
+	long getAllocatedBytes();
+
+	/**
+	 * @return renders per template.
+	 */
+	Map<String, Long> getTemplateCounts();
+
+	/**
+	 * @return renders per locale.
+	 */
+	Map<String, Long> getLocaleCounts();
+
+	/**
+	 * @return mean time per phase.
+	 */
+	Map<String, Long> getPhaseMeanMicros();
+
+	/**
+	 * @return 50th percentile time per phase, to a power of two.
+	 */
+	Map<String, Long> getPhaseMedianMicros();
+
+	/**
+	 * @return 99th percentile time per phase, to a power of two.
+	 */
+	Map<String, Long> getPhase99thPercentileMicros();
+
+	/**
+	 * @return maximum time per phase.
+	 */
+	Map<String, Long> getPhaseMaxMicros();
+
+	/**
+	 * Start counting afresh.
+	 */
+	void reset();
+}
@@ -0,0 +1,60 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+/**
+ * Phases of a render that are timed. Translation, fills and evaluation
+ * happen while the context is filled, or, with a lazy context, while the
+ * template is merged, so their time is part of that phase as well.
+ */
+public enum RenderPhase {
+
+	/**
+	 * Looking up the resource bundle.
+	 */
+	BUNDLE,
+
+	/**
+	 * Filling the Velocity context.
+	 */
+	FILL_CONTEXT,
+
+	/**
+	 * Translating labels, hints, alerts, texts and options.
+	 */
+	TRANSLATE,
+
+	/**
+	 * Processing fills in translated texts.
+	 */
+	FILLS,
+
+	/**
+	 * Evaluating values, required, relevant and readonly.
+	 */
+	EVALUATE,
+
+	/**
+	 * Looking up and merging the template.
+	 */
+	MERGE,
+
+	/**
+	 * Flushing the output.
+	 */
+	FLUSH,
+
+	/**
+	 * The whole render.
+	 */
+	TOTAL
+}
@@ -0,0 +1,331 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.model.Model;
+import com.w20e.socrates.process.RunnerContext;
+import com.w20e.socrates.process.ValidationException;
+import com.w20e.socrates.rendering.Option;
+import com.w20e.socrates.rendering.Translatable;
+import com.w20e.socrates.rendering.Vocabulary;
+import com.w20e.socrates.util.FillProcessor;
+import com.w20e.socrates.util.UTF8ResourceBundle;
+import com.w20e.socrates.workflow.ActionResultImpl;
+import com.w20e.socrates.workflow.Failure;
+
+/**
+ * Everything a single format call works with. Created at the start of
+ * format, and dropped when it returns.
+ */
+final class RenderRequest {
+
+	private final RunnerContext context;
+
+	private final Model model;
+
+	private final Instance instance;
+
+	/**
+	 * The instance evaluations and fills run against: the instance itself,
+	 * or, with a session index, a view of it that records reads.
+	 */
+	private final Instance tracked;
+
+	/**
+	 * Results of earlier renders in the session, or null.
+	 */
+	private final DependencyIndex index;
+
+	private final Locale locale;
+
+	private final LocaleBundle bundle;
+
+	private final FormatterSettings settings;
+
+	private final TranslationCache translations;
+
+	private final FillPlanCache fillPlans;
+
+	private final OptionListCache optionLists;
+
+	/**
+	 * Values of the fills resolved so far, by fill. Synchronized, for
+	 * parallel filling of the context.
+	 */
+	private final Map<String, String> fillValues = Collections
+			.synchronizedMap(new HashMap<String, String>());
+
+	private final EvaluationCache evaluations;
+
+	/**
+	 * Set when the render is cancelled, or null if it can't be.
+	 */
+	private final AtomicBoolean cancelled;
+
+	/**
+	 * Measurements of this request, or null if metrics are off.
+	 */
+	private final RenderSample sample;
+
+	private final boolean failed;
+
+	/**
+	 * Validation errors by bind, or null if validation did not fail.
+	 */
+	private final Map<String, Exception> errors;
+
+	RenderRequest(final RunnerContext pContext,
+			final LocaleBundle bundle, final FormatterState state,
+			final AtomicBoolean cancelled, final RenderSample sample) {
+
+		this(pContext, bundle, state, cancelled, sample, null);
+	}
+
+	RenderRequest(final RunnerContext pContext,
+			final LocaleBundle bundle, final FormatterState state,
+			final AtomicBoolean cancelled, final RenderSample sample,
+			final DependencyIndex index) {
+
+		this.context = pContext;
+		this.model = pContext.getModel();
+		this.instance = pContext.getInstance();
+		this.locale = pContext.getLocale();
+		this.bundle = bundle;
+		this.settings = state.getSettings();
+		this.translations = state.getTranslations();
+		this.fillPlans = state.getFillPlans();
+		this.optionLists = state.getOptionLists();
+		this.cancelled = cancelled;
+		this.sample = sample;
+		this.index = index;
+		this.tracked = index == null ? this.instance : index.begin(
+				this.model, this.instance);
+		this.evaluations = new EvaluationCache(this.model, this.tracked,
+				sample, index);
+		this.failed = ActionResultImpl.FAIL.equals(pContext.getResult()
+				.toString());
+
+		Map<String, Exception> errs = null;
+
+		if (this.failed) {
+
+			// Is it the data?
+			Exception error = ((Failure) pContext.getResult()).getException();
+
+			if (error instanceof ValidationException) {
+				errs = ((ValidationException) error).getErrors();
+			}
+		}
+
+		this.errors = errs;
+	}
+
+	RunnerContext getContext() {
+		return this.context;
+	}
+
+	Model getModel() {
+		return this.model;
+	}
+
+	Instance getInstance() {
+		return this.instance;
+	}
+
+	Locale getLocale() {
+		return this.locale;
+	}
+
+	/**
+	 * @return the resource bundle, as templates get it.
+	 */
+	UTF8ResourceBundle getBundle() {
+		return this.bundle.getBundle();
+	}
+
+	/**
+	 * @return the messages of the locale, fallbacks included.
+	 */
+	LocaleBundle getMessages() {
+		return this.bundle;
+	}
+
+	FormatterSettings getSettings() {
+		return this.settings;
+	}
+
+	/**
+	 * @return evaluation results by bind, for this request only.
+	 */
+	EvaluationCache getEvaluations() {
+		return this.evaluations;
+	}
+
+	/**
+	 * @return measurements of this request, or null if metrics are off.
+	 */
+	RenderSample getSample() {
+		return this.sample;
+	}
+
+	/**
+	 * Stop a cancellable request when it was cancelled, or the thread was
+	 * interrupted. Fork-join workers of the request see the flag as well.
+	 * 
+	 * @throws CancellationException
+	 *             if so
+	 */
+	void checkCancelled() {
+
+		if (this.cancelled != null
+				&& (this.cancelled.get() || Thread.currentThread()
+						.isInterrupted())) {
+			throw new CancellationException("Render cancelled");
+		}
+	}
+
+	/**
+	 * @return whether the last action failed.
+	 */
+	boolean isFailed() {
+		return this.failed;
+	}
+
+	/**
+	 * @return validation errors by bind, or null.
+	 */
+	Map<String, Exception> getErrors() {
+		return this.errors;
+	}
+
+	/**
+	 * Translate given translatable, but only if message id is not empty.
+	 */
+	String translate(final Translatable str) {
+
+		if (this.sample == null) {
+			return this.translations.translate(str, this.locale);
+		}
+
+		long start = System.nanoTime();
+
+		try {
+			return this.translations.translate(str, this.locale);
+		} finally {
+			this.sample.add(RenderPhase.TRANSLATE, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Get the options of the vocabulary, with translated labels. The list is
+	 * shared, and must not be modified.
+	 */
+	List<Option> options(final Vocabulary vocab) {
+
+		return this.optionLists.get(vocab, this.locale);
+	}
+
+	/**
+	 * Process fills in the given text. The text is parsed once per locale;
+	 * each distinct fill is resolved once per request.
+	 */
+	String fill(final String text) {
+
+		if (this.sample == null) {
+			return resolve(text);
+		}
+
+		long start = System.nanoTime();
+
+		try {
+			return resolve(text);
+		} finally {
+			this.sample.add(RenderPhase.FILLS, System.nanoTime() - start);
+		}
+	}
+
+	private String resolve(final String text) {
+
+		if (text == null) {
+			return processFills(text);
+		}
+
+		FillPlan plan = this.fillPlans.get(text, this.locale);
+
+		if (plan.isLiteral()) {
+			return text;
+		}
+
+		if (plan.isWhole()) {
+			return processFill(text);
+		}
+
+		for (String fill : plan.getFills()) {
+			if (!this.fillValues.containsKey(fill)) {
+				this.fillValues.put(fill, processFill(fill));
+			}
+		}
+
+		return plan.render(this.fillValues);
+	}
+
+	/**
+	 * Value of a single fill, or of a text processed whole, from the session
+	 * index if it has it.
+	 */
+	private String processFill(final String fill) {
+
+		if (this.index == null) {
+			return processFills(fill);
+		}
+
+		String key = "f:" + this.locale + ":"
+				+ this.index.configId(this.context.getRenderConfig()) + ":"
+				+ fill;
+		Object known = this.index.get(key);
+
+		if (known != DependencyIndex.MISSING) {
+			return (String) known;
+		}
+
+		DependencyIndex.Recording recording = this.index.start();
+		String value = null;
+		boolean ok = false;
+
+		try {
+			value = processFills(fill);
+			ok = true;
+		} catch (RuntimeException e) {
+			this.index.failed(e);
+			throw e;
+		} finally {
+			this.index.finish(recording, key, ok, value);
+		}
+
+		return value;
+	}
+
+	private String processFills(final String text) {
+
+		return FillProcessor.processFills(text, this.tracked, this.model,
+				this.context.getRenderConfig(), this.locale);
+	}
+}
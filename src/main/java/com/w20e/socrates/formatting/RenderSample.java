@@ -0,0 +1,165 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measurements of a single render. Filled in while rendering; listeners get
+ * it when the render is done.
+ */
+public final class RenderSample {
+
+	/**
+	 * getThreadAllocatedBytes of the VM's thread bean, if it has one.
+	 */
+	private static final Method ALLOCATED_BYTES = allocatedBytesMethod();
+
+	private final String template;
+
+	private final Locale locale;
+
+	private final long threadId = Thread.currentThread().getId();
+
+	private final long allocatedAtStart;
+
+	private final AtomicLongArray nanos = new AtomicLongArray(
+			RenderPhase.values().length);
+
+	private final AtomicInteger items = new AtomicInteger();
+
+	private long outputBytes;
+
+	private long allocatedBytes;
+
+	private boolean failed;
+
+	RenderSample(final String template, final Locale locale) {
+
+		this.template = template;
+		this.locale = locale;
+		this.allocatedAtStart = allocatedBytes(this.threadId);
+	}
+
+	void add(final RenderPhase phase, final long phaseNanos) {
+		this.nanos.addAndGet(phase.ordinal(), phaseNanos);
+	}
+
+	void addItem() {
+		this.items.incrementAndGet();
+	}
+
+	/**
+	 * Done rendering, on the thread that started.
+	 */
+	void finish(final long bytes, final boolean renderFailed) {
+
+		this.outputBytes = bytes;
+		this.failed = renderFailed;
+
+		long allocated = allocatedBytes(this.threadId);
+
+		if (allocated >= 0 && this.allocatedAtStart >= 0) {
+			this.allocatedBytes = allocated - this.allocatedAtStart;
+		}
+	}
+
+	/**
+	 * @return template name.
+	 */
+	public String getTemplate() {
+		return this.template;
+	}
+
+	/**
+	 * @return locale of the request.
+	 */
+	public Locale getLocale() {
+		return this.locale;
+	}
+
+	/**
+	 * @param phase
+	 *            the phase
+	 * @return time spent in the phase, in nanoseconds.
+	 */
+	public long getNanos(final RenderPhase phase) {
+		return this.nanos.get(phase.ordinal());
+	}
+
+	/**
+	 * @return number of item contexts built.
+	 */
+	public int getItems() {
+		return this.items.get();
+	}
+
+	/**
+	 * @return number of bytes written.
+	 */
+	public long getOutputBytes() {
+		return this.outputBytes;
+	}
+
+	/**
+	 * @return bytes allocated by the rendering thread, or 0 if the VM can't
+	 *         tell. Work done on other threads, like a parallel context
+	 *         fill, is not included.
+	 */
+	public long getAllocatedBytes() {
+		return this.allocatedBytes;
+	}
+
+	/**
+	 * @return whether the render failed.
+	 */
+	public boolean isFailed() {
+		return this.failed;
+	}
+
+	private static long allocatedBytes(final long threadId) {
+
+		if (ALLOCATED_BYTES == null) {
+			return -1;
+		}
+
+		try {
+			return ((Long) ALLOCATED_BYTES.invoke(
+					ManagementFactory.getThreadMXBean(), threadId))
+					.longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	private static Method allocatedBytesMethod() {
+
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			Class<?> sunBean = Class
+					.forName("com.sun.management.ThreadMXBean");
+
+			if (sunBean.isInstance(bean)) {
+				return sunBean.getMethod("getThreadAllocatedBytes", long.class);
+			}
+		} catch (Exception e) {
+			// Not a HotSpot-like VM.
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * What a formatter remembers of a respondent's session: the results of
+ * evaluations and fills, with the instance nodes they read, so a page that
+ * is rendered again only recomputes what depends on changed nodes. Keep
+ * one per session, e.g. in the HTTP session, and pass it to format as the
+ * SESSION property of the RunnerContext. One render uses it at a time;
+ * a render that finds it in use renders without it. The number of results
+ * held is bounded, 10000 by default. Results are tracked through a view
+ * of the instance; if the model's code can't work with that, the session
+ * is disabled, and renders go without it.
+ */
+public final class RenderSession {
+
+	private final DependencyIndex index;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	public RenderSession() {
+
+		this(DependencyIndex.DEFAULT_SIZE);
+	}
+
+	/**
+	 * @param maxSize
+	 *            maximum number of results to hold
+	 */
+	public RenderSession(final int maxSize) {
+
+		this.index = new DependencyIndex(maxSize);
+	}
+
+	boolean tryLock() {
+		return this.lock.tryLock();
+	}
+
+	void unlock() {
+		this.lock.unlock();
+	}
+
+	DependencyIndex getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * Forget all results, e.g. after the instance was replaced.
+	 */
+	public void clear() {
+		this.index.clear();
+	}
+
+	/**
+	 * @return false once the session was disabled, since the instance
+	 *         can't be tracked.
+	 */
+	public boolean isEnabled() {
+		return this.index.isUsable();
+	}
+
+	/**
+	 * @return number of results held.
+	 */
+	public int size() {
+		return this.index.size();
+	}
+
+	/**
+	 * @return number of results served from earlier renders.
+	 */
+	public long getReused() {
+		return this.index.getReused();
+	}
+
+	/**
+	 * @return number of results computed.
+	 */
+	public long getComputed() {
+		return this.index.getComputed();
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.velocity.Template;
+
+/**
+ * What renders can share: the formatter state and templates by name. A
+ * single format uses one of its own; a batch shares one over all entries,
+ * so templates are looked up once.
+ */
+final class RenderSetup {
+
+	private final FormatterState state;
+
+	private final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+
+	RenderSetup(final FormatterState state) {
+
+		this.state = state;
+	}
+
+	FormatterState getState() {
+		return this.state;
+	}
+
+	/**
+	 * Get the resource bundle for the locale, from the formatter's cache.
+	 */
+	LocaleBundle getBundle(final Locale locale) {
+
+		return this.state.getBundles().get(locale);
+	}
+
+	/**
+	 * Get the template with the given name.
+	 *
+	 * @throws Exception
+	 *             if the template can't be found or parsed
+	 */
+	Template getTemplate(final String name) throws Exception {
+
+		Template template = this.templates.get(name);
+
+		if (template == null) {
+			template = this.state.getTemplate(name);
+			this.templates.putIfAbsent(name, template);
+		}
+
+		return template;
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.app.VelocityEngine;
+
+/**
+ * Loads and parses templates up front, so the first request does not pay for
+ * parsing, and broken templates are reported at init. The macro libraries
+ * are parsed as well, to report errors Velocity only logs. The parsed
+ * templates are kept, for the formatter state to render with.
+ */
+final class TemplateWarmup {
+
+	/**
+	 * Initialize this class' logging.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(TemplateWarmup.class
+			.getName());
+
+	private final VelocityEngine engine;
+
+	private final FormatterSettings settings;
+
+	/**
+	 * Templates loaded, by name.
+	 */
+	private final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+
+	/**
+	 * Outcome of run.
+	 */
+	private WarmupReport report = WarmupReport.EMPTY;
+
+	/**
+	 * Create warmup for the given engine.
+	 *
+	 * @param engine
+	 *            initialized engine
+	 * @param settings
+	 *            settings the engine was created with
+	 */
+	TemplateWarmup(final VelocityEngine engine,
+			final FormatterSettings settings) {
+
+		this.engine = engine;
+		this.settings = settings;
+	}
+
+	/**
+	 * Determine the templates to load: the configured ones, or everything in
+	 * the file resource loader path. Macro libraries are added when any
+	 * templates are warmed.
+	 *
+	 * @return template names
+	 */
+	List<String> templateNames() {
+
+		Set<String> names = new LinkedHashSet<String>(
+				this.settings.getWarmupTemplates());
+		Properties props = this.settings.getVelocityProperties();
+
+		if (this.settings.isWarmupAll()) {
+			for (String path : split(props.getProperty(
+					"file.resource.loader.path", ""))) {
+				File root = new File(path);
+				scan(root, root, names);
+			}
+		}
+
+		if (!names.isEmpty()) {
+			names.addAll(split(props.getProperty("velocimacro.library", "")));
+		}
+
+		return new ArrayList<String>(names);
+	}
+
+	/**
+	 * Load all templates, in parallel.
+	 *
+	 * @return the report
+	 */
+	WarmupReport run() {
+
+		List<String> names = templateNames();
+
+		if (names.isEmpty()) {
+			return WarmupReport.EMPTY;
+		}
+
+		long start = System.nanoTime();
+		Map<String, String> errors = new LinkedHashMap<String, String>();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(this.settings.getWarmupThreads(), names.size())));
+
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+
+			for (final String name : names) {
+				results.add(pool.submit(new Callable<String>() {
+					public String call() {
+						return load(name);
+					}
+				}));
+			}
+
+			for (int i = 0; i < names.size(); i++) {
+				String error;
+				try {
+					error = results.get(i).get();
+				} catch (ExecutionException e) {
+					error = String.valueOf(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					error = "Interrupted";
+				}
+				if (error != null) {
+					errors.put(names.get(i), error);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		WarmupReport report = new WarmupReport(names.size(),
+				(System.nanoTime() - start) / 1000000L, errors);
+
+		LOGGER.info("Loaded " + report.getTemplateCount() + " templates in "
+				+ report.getDurationMillis() + " ms, "
+				+ report.getErrors().size() + " errors");
+
+		this.report = report;
+
+		return report;
+	}
+
+	/**
+	 * @return the outcome of run, or an empty report before.
+	 */
+	WarmupReport getReport() {
+		return this.report;
+	}
+
+	/**
+	 * Get the templates loaded by run.
+	 *
+	 * @return templates by name
+	 */
+	Map<String, Template> getTemplates() {
+		return this.templates;
+	}
+
+	/**
+	 * Load one template.
+	 *
+	 * @return null if OK, else the error message.
+	 */
+	private String load(final String name) {
+
+		try {
+			this.templates.put(name, this.engine.getTemplate(name,
+					this.settings.getEncoding()));
+			return null;
+		} catch (Exception e) {
+			LOGGER.log(Level.SEVERE, "Can't load template " + name, e);
+			return e.getClass().getSimpleName() + ": " + e.getMessage();
+		}
+	}
+
+	/**
+	 * Add all files in dir, recursively, as names relative to root.
+	 */
+	private void scan(final File root, final File dir, final Set<String> names) {
+
+		File[] files = dir.listFiles();
+
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			if (file.isDirectory()) {
+				scan(root, file, names);
+			} else if (file.getName().endsWith(
+					this.settings.getWarmupSuffix())) {
+				names.add(root.toURI().relativize(file.toURI()).getPath());
+			}
+		}
+	}
+
+	private static List<String> split(final String value) {
+
+		List<String> parts = new ArrayList<String>();
+
+		for (String part : value.split(",")) {
+			if (part.trim().length() > 0) {
+				parts.add(part.trim());
+			}
+		}
+
+		return parts;
+	}
+}
@@ -0,0 +1,399 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.xnap.commons.i18n.I18n;
+import org.xnap.commons.i18n.I18nFactory;
+
+import com.w20e.socrates.rendering.Translatable;
+
+/**
+ * Cache for translations. Holds one I18n instance per locale, and the
+ * resolved strings keyed by locale, message id and message context. The
+ * string cache is bounded. Hits take no lock: they only stamp the entry
+ * with the time of use, on a clock that advances per miss. When full, the
+ * least recently used entries, by stamp, are evicted in a batch.
+ */
+public final class TranslationCache {
+
+	/**
+	 * Default maximum number of cached strings.
+	 */
+	public static final int DEFAULT_SIZE = 10000;
+
+	/**
+	 * Initialize this class' logging.
+	 */
+	private static final Logger LOGGER = Logger
+			.getLogger(TranslationCache.class.getName());
+
+	/**
+	 * gettext separates message context and message id with EOT.
+	 */
+	private static final char CONTEXT_GLUE = '\u0004';
+
+	/**
+	 * Class used for resource lookup.
+	 */
+	private final Class<?> owner;
+
+	/**
+	 * Resource bundle base name.
+	 */
+	private final String baseName;
+
+	/**
+	 * Maximum number of strings held.
+	 */
+	private final int maxSize;
+
+	/**
+	 * I18n instance per locale.
+	 */
+	private final ConcurrentMap<Locale, I18n> i18ns = new ConcurrentHashMap<Locale, I18n>();
+
+	/**
+	 * Resolved strings.
+	 */
+	private final ConcurrentMap<Key, Entry> strings = new ConcurrentHashMap<Key, Entry>();
+
+	/**
+	 * Advances on every miss; entries are stamped with it when used.
+	 */
+	private final AtomicLong clock = new AtomicLong();
+
+	/**
+	 * Held while evicting, so only one thread scans the entries.
+	 */
+	private final Object evicting = new Object();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Incremented on every clear, so derived caches can tell they're stale.
+	 */
+	private final AtomicInteger generation = new AtomicInteger();
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param owner
+	 *            class whose class loader finds the bundles
+	 * @param baseName
+	 *            bundle base name
+	 * @param maxSize
+	 *            maximum number of strings to hold. Zero disables string
+	 *            caching; I18n instances are always cached.
+	 */
+	public TranslationCache(final Class<?> owner, final String baseName,
+			final int maxSize) {
+
+		this.owner = owner;
+		this.baseName = baseName;
+		this.maxSize = Math.max(0, maxSize);
+	}
+
+	/**
+	 * Translate given translatable, but only if message id is not empty.
+	 *
+	 * @param str
+	 *            the translatable
+	 * @param locale
+	 *            target locale
+	 * @return translation, or the empty string for an empty message id.
+	 */
+	public String translate(final Translatable str, final Locale locale) {
+
+		if ("".equals(str.getMsgid())) {
+			return "";
+		}
+
+		String ctx = str.getMsgctx();
+
+		if ("".equals(ctx)) {
+			ctx = null;
+		}
+
+		if (this.maxSize == 0) {
+			this.misses.incrementAndGet();
+			return resolve(getI18n(locale), str.getMsgid(), ctx);
+		}
+
+		Key key = new Key(locale, str.getMsgid(), ctx);
+		Entry entry = this.strings.get(key);
+
+		if (entry != null) {
+			this.hits.incrementAndGet();
+			// Used after the last miss: newer than anything stamped so far.
+			entry.used = this.clock.get() + 1;
+			return entry.value;
+		}
+
+		this.misses.incrementAndGet();
+		String result = resolve(getI18n(locale), str.getMsgid(), ctx);
+
+		put(key, result);
+
+		return result;
+	}
+
+	/**
+	 * Load the I18n instances for the given locales, and resolve all context
+	 * free message ids of their catalogs until the cache is full.
+	 *
+	 * @param locales
+	 *            locales to warm
+	 * @return number of strings added
+	 */
+	public int warm(final Collection<Locale> locales) {
+
+		int count = 0;
+
+		for (Locale locale : locales) {
+
+			I18n i18n = getI18n(locale);
+			ResourceBundle resources = i18n.getResources();
+
+			if (resources == null || this.maxSize == 0) {
+				continue;
+			}
+
+			for (Enumeration<String> keys = resources.getKeys(); keys
+					.hasMoreElements();) {
+
+				String msgid = keys.nextElement();
+
+				if (msgid.indexOf(CONTEXT_GLUE) > -1 || "".equals(msgid)) {
+					continue;
+				}
+
+				if (this.strings.size() >= this.maxSize) {
+					LOGGER.fine("Translation cache full after warming "
+							+ count + " strings");
+					return count;
+				}
+				put(new Key(locale, msgid, null), i18n.tr(msgid));
+				count++;
+			}
+		}
+
+		LOGGER.fine("Warmed translation cache with " + count + " strings");
+
+		return count;
+	}
+
+	/**
+	 * Drop all cached strings and I18n instances. Counters are kept.
+	 */
+	public void clear() {
+
+		this.strings.clear();
+		this.i18ns.clear();
+		this.generation.incrementAndGet();
+	}
+
+	/**
+	 * @return number of clears so far. Anything translated under an earlier
+	 *         generation may be outdated.
+	 */
+	public int getGeneration() {
+		return this.generation.get();
+	}
+
+	/**
+	 * @return number of translations served from the cache.
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return number of translations that had to be resolved.
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return number of cached strings.
+	 */
+	public int size() {
+		return this.strings.size();
+	}
+
+	/**
+	 * @return maximum number of cached strings.
+	 */
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * Add a string, stamped as used now, and evict if the cache is full.
+	 */
+	private void put(final Key key, final String value) {
+
+		this.strings.put(key, new Entry(value, this.clock.incrementAndGet()));
+
+		if (this.strings.size() > this.maxSize) {
+			evict();
+		}
+	}
+
+	/**
+	 * Remove the least recently used entries, down to the maximum size less
+	 * a sixteenth, so the next misses don't each scan the cache again.
+	 */
+	private void evict() {
+
+		synchronized (this.evicting) {
+
+			int excess = this.strings.size() - this.maxSize;
+
+			if (excess <= 0) {
+				return;
+			}
+
+			List<Map.Entry<Key, Entry>> entries = new ArrayList<Map.Entry<Key, Entry>>(
+					this.strings.entrySet());
+
+			Collections.sort(entries, new Comparator<Map.Entry<Key, Entry>>() {
+
+				public int compare(final Map.Entry<Key, Entry> a,
+						final Map.Entry<Key, Entry> b) {
+
+					long x = a.getValue().used;
+					long y = b.getValue().used;
+
+					return x < y ? -1 : (x == y ? 0 : 1);
+				}
+			});
+
+			int count = Math.min(entries.size(), excess + this.maxSize / 16);
+
+			for (int i = 0; i < count; i++) {
+				Map.Entry<Key, Entry> eldest = entries.get(i);
+				this.strings.remove(eldest.getKey(), eldest.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Get the I18n instance for the locale, loading it on first use.
+	 */
+	private I18n getI18n(final Locale locale) {
+
+		I18n i18n = this.i18ns.get(locale);
+
+		if (i18n == null) {
+			i18n = I18nFactory.getI18n(this.owner, this.baseName, locale);
+			I18n other = this.i18ns.putIfAbsent(locale, i18n);
+			if (other != null) {
+				i18n = other;
+			}
+		}
+
+		return i18n;
+	}
+
+	private static String resolve(final I18n i18n, final String msgid,
+			final String ctx) {
+
+		if (ctx != null) {
+			return i18n.trc(msgid, ctx);
+		} else {
+			return i18n.tr(msgid);
+		}
+	}
+
+	/**
+	 * Cached string, with the clock time it was last used.
+	 */
+	private static final class Entry {
+
+		private final String value;
+
+		private volatile long used;
+
+		Entry(final String value, final long used) {
+
+			this.value = value;
+			this.used = used;
+		}
+	}
+
+	/**
+	 * Cache key. Message context is null when not set.
+	 */
+	private static final class Key {
+
+		private final Locale locale;
+
+		private final String msgid;
+
+		private final String msgctx;
+
+		private final int hash;
+
+		Key(final Locale locale, final String msgid, final String msgctx) {
+
+			this.locale = locale;
+			this.msgid = msgid;
+			this.msgctx = msgctx;
+
+			int h = locale.hashCode();
+			h = 31 * h + msgid.hashCode();
+			h = 31 * h + (msgctx == null ? 0 : msgctx.hashCode());
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key) obj;
+
+			return this.hash == other.hash && this.msgid.equals(other.msgid)
+					&& this.locale.equals(other.locale)
+					&& (this.msgctx == null ? other.msgctx == null
+							: this.msgctx.equals(other.msgctx));
+		}
+	}
+}
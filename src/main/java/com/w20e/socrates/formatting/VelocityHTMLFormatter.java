@@ -11,80 +11,113 @@
 
 package com.w20e.socrates.formatting;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.configuration.Configuration;
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
-import org.xnap.commons.i18n.I18n;
-import org.xnap.commons.i18n.I18nFactory;
 
 import com.w20e.socrates.data.Instance;
-import com.w20e.socrates.data.Node;
-import com.w20e.socrates.model.ConstraintViolation;
-import com.w20e.socrates.model.InvalidPathExpression;
-import com.w20e.socrates.model.ItemProperties;
-import com.w20e.socrates.model.ItemPropertiesImpl;
 import com.w20e.socrates.model.Model;
-import com.w20e.socrates.model.NodeValidator;
 import com.w20e.socrates.model.NodeValidatorWrapper;
-import com.w20e.socrates.model.XRefSolver;
 import com.w20e.socrates.process.RunnerContext;
-import com.w20e.socrates.process.ValidationException;
 import com.w20e.socrates.rendering.Control;
 import com.w20e.socrates.rendering.Group;
 import com.w20e.socrates.rendering.Option;
 import com.w20e.socrates.rendering.RenderOptionsImpl;
 import com.w20e.socrates.rendering.Renderable;
-import com.w20e.socrates.rendering.TextBlock;
-import com.w20e.socrates.rendering.Translatable;
 import com.w20e.socrates.rendering.Vocabulary;
-import com.w20e.socrates.util.FillProcessor;
 import com.w20e.socrates.util.UTF8ResourceBundle;
-import com.w20e.socrates.util.UTF8ResourceBundleImpl;
-import com.w20e.socrates.workflow.ActionResultImpl;
-import com.w20e.socrates.workflow.Failure;
 
 /**
  * Velocity formatter for the Socrates engine. The formatter is configured with
  * a mapping from classes to templates. This formatter is implemented as a
  * singleton.
+ * 
+ * The formatter is thread safe. format may be called by any number of
+ * threads at once, without locking: each call reads the current state
+ * (settings, engine and caches) once, and keeps all per request data to
+ * itself. init, reload and setProperty build a new state, and swap it in
+ * when it's complete; they never change an engine that may be in use.
  */
 public final class VelocityHTMLFormatter implements Formatter {
 
 	/**
-	 * Render debugging info or not.
+	 * Settings, engine and caches. Replaced as a whole, never changed.
 	 */
-	private boolean debug;
+	private volatile FormatterState state;
 
 	/**
-	 * Default render options.
+	 * Serializes reconfiguration; rendering never takes it.
 	 */
-	private Map<String, Object> renderOptions;
+	private final Object reconfigureLock = new Object();
 
 	/**
-	 * Config.
+	 * Runs formatAsync; created on first use, shut down by close.
 	 */
-	private Configuration cfg;
+	private volatile AsyncRenderer asyncRenderer;
 
 	/**
-	 * Hold actual Velocity engine.
+	 * Pool for filling large eager contexts in parallel; created on first
+	 * use, shut down by close.
 	 */
-	private VelocityEngine engine;
+	private volatile ForkJoinPool parallelPool;
+
+	/**
+	 * Evaluations served from the per request cache, over all requests.
+	 */
+	private final AtomicLong savedEvaluations = new AtomicLong();
+
+	/**
+	 * Evaluations done, over all requests.
+	 */
+	private final AtomicLong evaluations = new AtomicLong();
+
+	/**
+	 * Render metrics, over all requests since creation.
+	 */
+	private final RenderMetrics metrics = new RenderMetrics();
+
+	/**
+	 * Number of formatters created, for default MBean names.
+	 */
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+	/**
+	 * Name of the metrics MBean if formatter.metrics.name is not set;
+	 * unique in the VM.
+	 */
+	private final String defaultMetricsName = "formatter-"
+			+ INSTANCES.incrementAndGet();
 
 	/**
 	 * Initialize this class' logging.
@@ -95,93 +128,158 @@ public final class VelocityHTMLFormatter implements Formatter {
 	private static final String TRUE = "true";
 	private static final String FALSE = "false";
 
+	/**
+	 * RunnerContext property the page fingerprint is published in, as hex
+	 * digest. The web layer can send it as ETag.
+	 */
+	public static final String ETAG = "etag";
+
+	/**
+	 * RunnerContext property with the fingerprint the client has, e.g. from
+	 * If-None-Match. If the page has the same fingerprint, nothing is
+	 * written.
+	 */
+	public static final String IF_NONE_MATCH = "ifNoneMatch";
+
+	/**
+	 * RunnerContext property set to Boolean.TRUE when the page was not
+	 * written because it matched IF_NONE_MATCH, so the web layer can answer
+	 * 304 Not Modified; Boolean.FALSE otherwise.
+	 */
+	public static final String NOT_MODIFIED = "notModified";
+
+	/**
+	 * RunnerContext property naming the template formatDelta renders each
+	 * item with, e.g. one that calls #renderItem($item).
+	 */
+	public static final String ITEM_TEMPLATE = "itemTemplate";
+
+	/**
+	 * RunnerContext property with the compression to use for this page,
+	 * "gzip" or "deflate", e.g. from Accept-Encoding. Overrides
+	 * formatter.output.compression; any other value means none.
+	 */
+	public static final String COMPRESSION = "compression";
+
+	/**
+	 * RunnerContext property set to the compression used for the page:
+	 * "gzip", "deflate" or "identity". The web layer sends it as
+	 * Content-Encoding.
+	 */
+	public static final String CONTENT_ENCODING = "contentEncoding";
+
+	/**
+	 * RunnerContext property with the respondent's RenderSession. With a
+	 * session, evaluations and fills of earlier renders are reused as long
+	 * as the nodes they read didn't change. The context of a render with a
+	 * session is filled eagerly, so that, should the instance turn out not
+	 * to be trackable, the page is filled again without the session before
+	 * anything is written.
+	 */
+	public static final String SESSION = "renderSession";
+
+	private static final String IDENTITY = "identity";
+
+	/**
+	 * JMX domain of the render metrics.
+	 */
+	private static final String METRICS_DOMAIN = "com.w20e.socrates.formatting";
+
 	/**
 	 * Create a new formatter for the given rendering and configuration.
 	 * 
 	 * @param config
 	 *            config for formatter
-	 * @todo handle options
 	 */
 	public void init(final Configuration config) {
 
-		this.cfg = config;
-
-		this.renderOptions = new HashMap<String,Object>();
-		final Properties props = new Properties();
-		String key;
-		Object value;
-
-		for (final Iterator<?> i = this.cfg.getKeys(); i.hasNext();) {
-
-			key = (String) i.next();
+		reload(config);
+	}
 
-			if (key.startsWith("formatter.velocity.")) {
+	/**
+	 * Resolve the configuration into new settings, translation cache and
+	 * Velocity engine, and swap these in. Requests in progress finish with
+	 * the settings they started with. The request path never reads the
+	 * configuration itself. Properties set with setProperty are dropped.
+	 * If formatter.async.* changed, the default formatAsync executor is
+	 * shut down after the renders on it finish, and a new one is created on
+	 * next use.
+	 * 
+	 * @param config
+	 *            config for formatter
+	 * @throws IllegalStateException
+	 *             if formatter.warmup.fail_fast is set, and a template
+	 *             fails to load. The previous settings stay in place.
+	 */
+	public void reload(final Configuration config) {
 
-				value = this.cfg.getProperty(key);
+		synchronized (this.reconfigureLock) {
+			this.state = FormatterState.create(config);
 
-				if (value instanceof List<?>) {
+			FormatterSettings settings = this.state.getSettings();
+			AsyncRenderer renderer = this.asyncRenderer;
 
-					String newVal = "";
+			if (renderer != null && !renderer.isCurrent(settings)) {
+				this.asyncRenderer = null;
+				renderer.shutdown();
+			}
 
-					for (final Iterator<?> j = ((List<?>) value).iterator(); j
-							.hasNext();) {
-						newVal = newVal + j.next() + ",";
-					}
-					props.setProperty(key.substring(19), newVal);
-					LOGGER.finest("Setting Velocity property "
-							+ key.substring(19) + " to list "
-							+ this.cfg.getProperty(key).toString());
-				} else {
-					props.setProperty(key.substring(19),
-							this.cfg.getString(key));
-					LOGGER.finest("Setting Velocity property "
-							+ key.substring(19) + " to "
-							+ this.cfg.getProperty(key).toString());
-				}
-			} else if (key.startsWith("formatter.options.")) {
+			if (settings.isMetricsJmx()) {
+				String name = settings.getMetricsName();
 
-				setRenderingProperty(key.substring(18), this.cfg.getString(key));
+				this.metrics.register(METRICS_DOMAIN + ":type="
+						+ VelocityHTMLFormatter.class.getSimpleName()
+						+ ",name="
+						+ (name == null ? this.defaultMetricsName : name));
+			} else {
+				this.metrics.unregister();
 			}
 		}
+	}
 
-		if (TRUE.equals(config.getString("formatter.debug", FALSE))) {
-			this.debug = true;
-			LOGGER.log(Level.WARNING, "Using debug mode in formatting");
-		}
+	/**
+	 * Release what the formatter holds outside itself: the executor
+	 * formatAsync created runs the renders already submitted, and then
+	 * stops, as does the pool for parallel context fills, and the metrics
+	 * MBean is unregistered. Call it when the formatter is no longer used,
+	 * e.g. when the application is undeployed. An executor given with
+	 * setExecutor is left running.
+	 */
+	public void close() {
 
-		try {
-			this.engine = new VelocityEngine();
-			this.engine.setApplicationAttribute("engine", this.engine);
-			this.engine.setApplicationAttribute("cfg", this.cfg);
-			this.engine.init(props);
-		} catch (Exception e) {
-			LOGGER.log(Level.SEVERE, "Can't configure Velocity. This is BAD!",
-					e);
+		synchronized (this.reconfigureLock) {
+			AsyncRenderer renderer = this.asyncRenderer;
+			ForkJoinPool pool = this.parallelPool;
+
+			this.asyncRenderer = null;
+			this.parallelPool = null;
+			if (renderer != null) {
+				renderer.shutdown();
+			}
+			if (pool != null) {
+				pool.shutdown();
+			}
+			this.metrics.unregister();
 		}
 	}
 
-    private void setRenderingProperty(final String pName, final String pValue) {
-
-    	if (pName.startsWith("enable_")) {
-        	this.renderOptions.put(pName, Boolean.valueOf(pValue));    		
-        	this.renderOptions.put(pName.substring(7), Boolean.valueOf(pValue));    		
-    	} else if (pName.startsWith("disable_")) {
-        	this.renderOptions.put(pName, Boolean.valueOf(pValue));
-        	this.renderOptions.put(pName.substring(8), Boolean.valueOf(pValue));    		
-    	} else {
-    		this.renderOptions.put(pName, pValue);
-    	}
-    }
-    
 	/**
-	 * Enable reset of properties after initialization.
+	 * Enable reset of properties after initialization. This creates a new
+	 * engine with the property set, and swaps it in; the engine in use by
+	 * running requests is not touched. Caches are kept, except for rendered
+	 * fragments.
 	 * 
 	 * @param property
 	 * @param value
+	 * @throws IllegalStateException
+	 *             if called before init, or if formatter.warmup.fail_fast is
+	 *             set and a template fails to load with the new engine.
 	 */
 	public void setProperty(final String property, final String value) {
 
-		this.engine.setProperty(property, value);
+		synchronized (this.reconfigureLock) {
+			this.state = current().withVelocityProperty(property, value);
+		}
 	}
 
 	/**
@@ -192,6 +290,13 @@ public final class VelocityHTMLFormatter implements Formatter {
 	 * "formatter.template", this one is used; 3. the template name defaults to
 	 * "main.vm".
 	 * 
+	 * With formatter.etag, or when the context has an IF_NONE_MATCH
+	 * property, the page's fingerprint is published as ETAG. If it equals
+	 * IF_NONE_MATCH, the template is not merged, nothing is written, and
+	 * NOT_MODIFIED is set. The fingerprint covers the filled context, not
+	 * the template source; if templates change at runtime, add a version to
+	 * the ETag sent.
+	 * 
 	 * @param items
 	 *            List of items to use.
 	 * @param out
@@ -205,77 +310,614 @@ public final class VelocityHTMLFormatter implements Formatter {
 			final OutputStream out, final RunnerContext pContext)
 			throws FormatException {
 
-		VelocityContext context = new VelocityContext();
+		render(null, items, out, pContext, null);
+	}
+
+	/**
+	 * Format list of items on another thread, like format. The caller waits
+	 * only when formatter.async.max_pending renders are pending already.
+	 * Cancelling the future stops the render at the next item or write,
+	 * also while the context is filled in parallel; the output is then
+	 * incomplete.
+	 * 
+	 * @param items
+	 *            List of items to use.
+	 * @param out
+	 *            OutputStream to use
+	 * @param pContext
+	 *            Processing context
+	 * @return future of the render; get throws an ExecutionException with a
+	 *         FormatException on errors.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a render to finish
+	 */
+	public Future<Void> formatAsync(final Collection<Renderable> items,
+			final OutputStream out, final RunnerContext pContext)
+			throws InterruptedException {
+
+		final AtomicBoolean cancelled = new AtomicBoolean();
+		Callable<Void> render = new Callable<Void>() {
+			public Void call() throws FormatException {
+				render(null, items, new InterruptibleOutputStream(out,
+						cancelled), pContext, cancelled);
+				return null;
+			}
+		};
+		AsyncRenderer renderer = asyncRenderer();
+
+		try {
+			return renderer.submit(render, cancelled);
+		} catch (RejectedExecutionException e) {
+			AsyncRenderer replaced = asyncRenderer();
+
+			// Shut down by reload or setExecutor while submitting: use the
+			// renderer that replaced it.
+			if (replaced == renderer) {
+				throw e;
+			}
+
+			return replaced.submit(render, cancelled);
+		}
+	}
+
+	/**
+	 * Run formatAsync on the given executor from now on, instead of the
+	 * default one, e.g. the container's. The executor is not shut down by
+	 * the formatter.
+	 * 
+	 * @param executor
+	 *            executor
+	 * @param maxPending
+	 *            maximum number of renders submitted and not yet done
+	 */
+	public void setExecutor(final ExecutorService executor,
+			final int maxPending) {
+
+		synchronized (this.reconfigureLock) {
+			AsyncRenderer previous = this.asyncRenderer;
+			this.asyncRenderer = new AsyncRenderer(executor, false,
+					maxPending);
+			if (previous != null) {
+				previous.shutdown();
+			}
+		}
+	}
+
+	private AsyncRenderer asyncRenderer() {
+
+		AsyncRenderer renderer = this.asyncRenderer;
+
+		if (renderer == null) {
+			synchronized (this.reconfigureLock) {
+				renderer = this.asyncRenderer;
+				if (renderer == null) {
+					renderer = AsyncRenderer.create(current().getSettings());
+					this.asyncRenderer = renderer;
+				}
+			}
+		}
+
+		return renderer;
+	}
+
+	private ForkJoinPool parallelPool() {
+
+		ForkJoinPool pool = this.parallelPool;
+
+		if (pool == null) {
+			synchronized (this.reconfigureLock) {
+				pool = this.parallelPool;
+				if (pool == null) {
+					pool = new ForkJoinPool();
+					this.parallelPool = pool;
+				}
+			}
+		}
+
+		return pool;
+	}
+
+	/**
+	 * Format many pages, e.g. for exports. Settings, resource bundles and
+	 * templates are looked up once for the whole batch, and entries are
+	 * formatted on formatter.batch.threads threads. Entries with a stream of
+	 * their own are written to it; others are written to the sink, one after
+	 * the other in entry order, as soon as they and the ones before are done.
+	 * A failing entry does not stop the batch.
+	 * 
+	 * @param entries
+	 *            pages to format
+	 * @param sink
+	 *            stream for entries without one of their own; may be null
+	 *            if all have one
+	 * @return outcome, with the errors per entry
+	 * @throws IOException
+	 *             if writing to the sink fails
+	 * @throws InterruptedException
+	 *             if interrupted; running entries are cancelled
+	 */
+	public BatchResult formatBatch(final List<BatchEntry> entries,
+			final OutputStream sink) throws IOException, InterruptedException {
+
+		final RenderSetup setup = new RenderSetup(current());
+		int threads = Math.max(1, setup.getState().getSettings()
+				.getBatchThreads());
+		int window = threads * 2;
+		long start = System.nanoTime();
+		Map<Integer, FormatException> errors = new TreeMap<Integer, FormatException>();
+		Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+		int written = 0;
+
+		for (BatchEntry entry : entries) {
+			if (entry.getOut() == null && sink == null) {
+				throw new IllegalArgumentException(
+						"Entry without stream, and no sink");
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+		try {
+			for (final BatchEntry entry : entries) {
+
+				pending.add(pool.submit(new Callable<byte[]>() {
+					public byte[] call() throws FormatException {
+
+						if (entry.getOut() != null) {
+							render(setup, entry.getItems(), entry.getOut(),
+									entry.getContext(), null);
+							return null;
+						}
+
+						ByteArrayOutputStream buf = new ByteArrayOutputStream();
+						render(setup, entry.getItems(), buf,
+								entry.getContext(), null);
+						return buf.toByteArray();
+					}
+				}));
+
+				// Keep the number of buffered pages down.
+				if (pending.size() >= window) {
+					drain(pending.poll(), written++, sink, errors);
+				}
+			}
+
+			while (!pending.isEmpty()) {
+				drain(pending.poll(), written++, sink, errors);
+			}
+
+			if (sink != null) {
+				sink.flush();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		BatchResult result = new BatchResult(entries.size(),
+				(System.nanoTime() - start) / 1000000L, errors);
+
+		LOGGER.info("Formatted batch of " + result.getCount() + " in "
+				+ result.getDurationMillis() + " ms, " + errors.size()
+				+ " errors");
+
+		return result;
+	}
+
+	/**
+	 * Wait for one batch entry, and write it to the sink if it has no stream
+	 * of it's own.
+	 */
+	private static void drain(final Future<byte[]> future, final int index,
+			final OutputStream sink, final Map<Integer, FormatException> errors)
+			throws IOException, InterruptedException {
+
+		try {
+			byte[] page = future.get();
+
+			if (page != null) {
+				sink.write(page);
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof FormatException) {
+				errors.put(Integer.valueOf(index),
+						(FormatException) e.getCause());
+			} else {
+				errors.put(Integer.valueOf(index), new FormatException(
+						String.valueOf(e.getCause())));
+			}
+		}
+	}
+
+	/**
+	 * Compute the state of some items only, e.g. for an AJAX validation
+	 * round-trip. Items are picked from the page by id or bind; only the
+	 * value, alert, required, relevant and readonly of these are computed,
+	 * so the cost depends on the number of items asked for, not on the size
+	 * of the page. If the context has an ITEM_TEMPLATE property, each item
+	 * is also rendered with that template, with $item set to the item and
+	 * the rest of the context as for format.
+	 * 
+	 * @param items
+	 *            all items of the page, so groups and relevance are known
+	 * @param changed
+	 *            ids or binds of the items to compute
+	 * @param pContext
+	 *            Processing context
+	 * @return updates by item id, in page order
+	 * @throws FormatException
+	 *             in case of Velocity errors
+	 */
+	public Map<String, ItemUpdate> formatDelta(
+			final Collection<Renderable> items,
+			final Collection<String> changed, final RunnerContext pContext)
+			throws FormatException {
+
+		RenderSession session = lockSession(pContext);
+
 		try {
-			Writer writer;
-			writer = new OutputStreamWriter(out, this.cfg.getString(
-					"formatter.encoding", "UTF-8"));
+			Map<String, ItemUpdate> updates = null;
+
+			try {
+				updates = delta(items, changed, pContext, session);
+			} catch (FormatException e) {
+				if (session == null || session.isEnabled()) {
+					throw e;
+				}
+			}
+
+			if (session != null && !session.isEnabled()) {
+				LOGGER.warning("Instance can't be tracked, session disabled");
+				updates = delta(items, changed, pContext, null);
+			}
+
+			return updates;
+		} finally {
+			if (session != null) {
+				session.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Compute the updates of formatDelta, with or without session.
+	 */
+	private Map<String, ItemUpdate> delta(final Collection<Renderable> items,
+			final Collection<String> changed, final RunnerContext pContext,
+			final RenderSession session) throws FormatException {
+
+		try {
+			RenderSetup setup = new RenderSetup(current());
+			RenderRequest request = new RenderRequest(pContext,
+					setup.getBundle(pContext.getLocale()), setup.getState(),
+					null, null, session == null ? null : session.getIndex());
+			VelocityContext context = new VelocityContext();
+			Map<String, ItemContext> values = fillContext(items, context,
+					request, true, true, null);
+			String name = (String) pContext.getProperty(ITEM_TEMPLATE);
+			Template template = name == null ? null : setup.getTemplate(name);
+			Set<String> wanted = new HashSet<String>(changed);
+			Map<String, ItemUpdate> updates = new LinkedHashMap<String, ItemUpdate>();
+
+			for (Renderable rItem : ParallelContextFill.flatten(items)) {
+
+				String bind = rItem instanceof Control ? ((Control) rItem)
+						.getBind() : null;
+
+				if (!wanted.contains(rItem.getId())
+						&& (bind == null || !wanted.contains(bind))) {
+					continue;
+				}
+
+				ItemContext itemCtx = values.get(rItem.getId());
+
+				if (itemCtx == null) {
+					continue;
+				}
+
+				String html = null;
+
+				if (template != null) {
+					StringWriter buf = new StringWriter();
+					context.put("item", rItem);
+					template.merge(context, buf);
+					html = buf.toString();
+				}
+
+				updates.put(rItem.getId(), new ItemUpdate(rItem.getId(), bind,
+						itemCtx, html));
+			}
+
+			count(request.getEvaluations());
+
+			return updates;
+		} catch (Exception e) {
+			LOGGER.log(Level.SEVERE, "Error in formatting changed items", e);
+			throw new FormatException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Do the actual formatting.
+	 * 
+	 * @param setup
+	 *            setup shared with other renders, or null for one of it's own
+	 * @param cancelled
+	 *            set when the render is cancelled, or null if it can't be;
+	 *            the render stops on interrupt as well
+	 */
+	private void render(final RenderSetup setup,
+			final Collection<Renderable> items, final OutputStream out,
+			final RunnerContext pContext, final AtomicBoolean cancelled)
+			throws FormatException {
 
+		VelocityContext context = null;
+		RenderArena arena = null;
+		BufferedOutputWriter writer = null;
+		CompressingOutputStream compressed = null;
+		RenderSample sample = null;
+		RenderSession session = null;
+		boolean failed = true;
+		long start = System.nanoTime();
+		try {
+			RenderSetup shared = setup == null ? new RenderSetup(current())
+					: setup;
+			FormatterState rendering = shared.getState();
+			FormatterSettings current = rendering.getSettings();
 			Locale locale = pContext.getLocale();
-			
-			LOGGER.fine("Using locale " + locale + " with prefix "
-					+ this.cfg.getString("formatter.locale.prefix"));
+			String template = (String) pContext.getProperty("template",
+					current.getTemplate());
+
+			if (current.isMetricsEnabled()) {
+				sample = new RenderSample(template, locale);
+			}
 
-			UTF8ResourceBundle bundle = UTF8ResourceBundleImpl.getBundle(
-					this.cfg.getString("formatter.locale.prefix"), locale);
+			if (current.isArena()) {
+				arena = RenderArena.acquire();
+			}
 
-			LOGGER.fine("Found resource locale: " + bundle.getLocale());
+			context = arena == null ? new VelocityContext() : arena
+					.newContext();
 
-			LOGGER.finer("Formatting " + items.size() + " items");
+			long mark = System.nanoTime();
+			LocaleBundle bundle = shared.getBundle(locale);
+			mark = phase(sample, RenderPhase.BUNDLE, mark);
 
-			fillContext(items, context, pContext, bundle);
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Using locale " + locale + " with prefix "
+						+ current.getLocalePrefix());
+				LOGGER.fine("Found resource locale: "
+						+ bundle.getBundle().getLocale());
+				LOGGER.fine("Formatting " + items.size() + " items");
+			}
 
-			this.engine.mergeTemplate((String) pContext.getProperty("template",
-					this.cfg.getString("formatter.template", "main.vm")),
-					this.cfg.getString("formatter.encoding", "UTF-8"), context,
-					writer);
-			writer.flush();
+			session = lockSession(pContext);
+
+			RenderRequest request = new RenderRequest(pContext, bundle,
+					rendering, cancelled, sample, session == null ? null
+							: session.getIndex());
+
+			try {
+				fillContext(items, context, request, current.isLazyContext()
+						&& session == null, false, arena);
+			} catch (RuntimeException e) {
+				if (session == null || session.isEnabled()) {
+					throw e;
+				}
+			}
+
+			if (session != null && !session.isEnabled()) {
+				LOGGER.warning("Instance can't be tracked, session disabled");
+				session.unlock();
+				session = null;
+				request = new RenderRequest(pContext, bundle, rendering,
+						cancelled, sample);
+				context = new VelocityContext();
+				fillContext(items, context, request, current.isLazyContext(),
+						false, null);
+			}
+
+			FragmentCache fragments = rendering.getFragments();
+			Object match = pContext.getProperty(IF_NONE_MATCH);
+			ContextFingerprint fingerprint = null;
+
+			if (fragments.isEnabled() || current.isEtag() || match != null) {
+				fingerprint = new ContextFingerprint(context, template,
+						rendering.getTranslations().getGeneration());
+			}
+
+			if (fragments.isEnabled()) {
+				context.put(FragmentScope.KEY, new FragmentScope(fragments,
+						fingerprint));
+			}
+
+			boolean notModified = false;
+
+			if (current.isEtag() || match != null) {
+				String etag = fingerprint.page(items);
+
+				pContext.setProperty(ETAG, etag);
+				notModified = etag.equals(match);
+				pContext.setProperty(NOT_MODIFIED,
+						Boolean.valueOf(notModified));
+			}
+			mark = phase(sample, RenderPhase.FILL_CONTEXT, mark);
+
+			if (!notModified) {
+				compressed = compress(out, pContext, current);
+				writer = new BufferedOutputWriter(compressed == null ? out
+						: compressed, current.getCharset(),
+						current.getOutputBufferSize(),
+						current.getOutputFlushBytes());
+
+				shared.getTemplate(template).merge(context, writer);
+				mark = phase(sample, RenderPhase.MERGE, mark);
+
+				writer.flush();
+				if (compressed != null) {
+					compressed.finish();
+				}
+				phase(sample, RenderPhase.FLUSH, mark);
+			}
+
+			count(request.getEvaluations());
+
+			failed = false;
 		} catch (Exception e) {
 			LOGGER.log(Level.SEVERE, "Error in formatting items", e);
 			// Print full stack to logging;
-			PrintWriter writer = new PrintWriter(new StringWriter());
-			e.printStackTrace(writer);
-			LOGGER.log(Level.SEVERE, writer.toString());
+			PrintWriter trace = new PrintWriter(new StringWriter());
+			e.printStackTrace(trace);
+			LOGGER.log(Level.SEVERE, trace.toString());
 			throw new FormatException(e.getMessage());
+		} finally {
+			if (sample != null) {
+				phase(sample, RenderPhase.TOTAL, start);
+				sample.finish(writer == null ? 0 : writer.getBytesWritten(),
+						failed);
+				this.metrics.record(sample);
+			}
+			if (writer != null) {
+				writer.release();
+			}
+			if (compressed != null) {
+				compressed.release();
+			}
+			if (arena != null) {
+				arena.release();
+			}
+			if (session != null) {
+				session.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Lock the context's SESSION for this render.
+	 * 
+	 * @return the session, or null if there is none, or another render of
+	 *         the session is using it
+	 */
+	private static RenderSession lockSession(final RunnerContext pContext) {
+
+		Object session = pContext.getProperty(SESSION);
+
+		if (!(session instanceof RenderSession)
+				|| !((RenderSession) session).isEnabled()) {
+			return null;
+		}
+
+		if (!((RenderSession) session).tryLock()) {
+			LOGGER.fine("Session in use, rendering without it");
+			return null;
 		}
+
+		return (RenderSession) session;
+	}
+
+	/**
+	 * Wrap the output in a compressing stream, if the context's COMPRESSION
+	 * property or formatter.output.compression asks for gzip or deflate.
+	 * The encoding used is published as CONTENT_ENCODING.
+	 * 
+	 * @return the compressing stream, or null to write as is
+	 */
+	private static CompressingOutputStream compress(final OutputStream out,
+			final RunnerContext pContext, final FormatterSettings current)
+			throws IOException {
+
+		String encoding = (String) pContext.getProperty(COMPRESSION,
+				current.getCompression());
+
+		if (!CompressingOutputStream.isSupported(encoding)) {
+			pContext.setProperty(CONTENT_ENCODING, IDENTITY);
+			return null;
+		}
+
+		pContext.setProperty(CONTENT_ENCODING, encoding
+				.toLowerCase(Locale.ENGLISH));
+
+		return CompressingOutputStream.create(out, encoding, current
+				.getCompressionLevel());
+	}
+
+	/**
+	 * Add the time since mark to the phase, if measuring.
+	 * 
+	 * @return the time now, as mark for the next phase
+	 */
+	private static long phase(final RenderSample sample,
+			final RenderPhase phase, final long mark) {
+
+		if (sample == null) {
+			return mark;
+		}
+
+		long now = System.nanoTime();
+
+		sample.add(phase, now - mark);
+
+		return now;
 	}
 
 	/**
 	 * For each item in the list, even when nested, we need to add variables for
 	 * required, alert, and item value. These will be made available to the
-	 * velocity context in a hash of hashes.
+	 * velocity context in a hash of hashes. When lazy these are only
+	 * computed when the template asks for them; otherwise pages of at least
+	 * formatter.context.parallel_threshold items are filled in parallel.
 	 * 
 	 * @param items
 	 *            all items to use
 	 * @param context
 	 *            velocity context
-	 * @param pContext
-	 *            processing context
-	 * @param bundle
-	 *            resource bundle
+	 * @param request
+	 *            the request
+	 * @param lazy
+	 *            whether to compute item contexts on demand
+	 * @param partial
+	 *            whether only some items will be asked for, so relevance is
+	 *            evaluated per item instead of for the whole page
+	 * @param arena
+	 *            working structures to use, or null for new ones
+	 * @return the item contexts by id, as put in the context
 	 * @todo we loop over errors, but only add one to the context...
-	 * @todo recursion could be a tad more efficient.
 	 */
-	private void fillContext(final Collection<Renderable> items,
-			final VelocityContext context, final RunnerContext pContext,
-			final UTF8ResourceBundle bundle) {
-
-		// Let's declare variables outside of loop
-		Renderable rItem = null;
-		Model model = pContext.getModel();
-		Instance inst = pContext.getInstance();
-		HashMap<String, HashMap<String, Object>> values = new HashMap<String, HashMap<String, Object>>();
-		List<Renderable> fItems = new ArrayList<Renderable>();
-
-		// Let's loop over renderable items.
-		//
-		for (Iterator<Renderable> i = items.iterator(); i.hasNext();) {
+	private Map<String, ItemContext> fillContext(
+			final Collection<Renderable> items, final VelocityContext context,
+			final RenderRequest request, final boolean lazy,
+			final boolean partial, final RenderArena arena) {
+
+		RunnerContext pContext = request.getContext();
+		FormatterSettings current = request.getSettings();
+		UTF8ResourceBundle bundle = request.getBundle();
+		ItemContextBuilder builder = new ItemContextBuilder(request, items,
+				lazy, partial);
+		Model model = request.getModel();
+		Instance inst = request.getInstance();
+		List<Renderable> fItems = arena == null ? new ArrayList<Renderable>(
+				items) : arena.getItems(items);
+		Map<String, ItemContext> values;
+
+		if (lazy) {
+			values = new LazyContextMap(items, builder);
+		} else {
+			values = arena == null ? new HashMap<String, ItemContext>()
+					: arena.getValues();
 
-			rItem = i.next();
+			List<Renderable> flat = null;
 
-			addItemToContext(rItem, context, pContext, bundle, values);
+			if (current.getParallelThreshold() > 0) {
+				flat = ParallelContextFill.flatten(items);
+			}
 
-			fItems.add(rItem);
+			if (flat != null && flat.size() >= current.getParallelThreshold()) {
+				ParallelContextFill.fill(parallelPool(), flat, builder,
+						values);
+			} else {
+				for (Renderable rItem : items) {
+					addItemToContext(rItem, builder, values);
+				}
+			}
 		}
 
 		// Add meta data, both model and instance.
@@ -301,20 +943,25 @@ public final class VelocityHTMLFormatter implements Formatter {
 			context.put("stateId", "");
 		}
 
-		if (this.debug) {
+		if (current.isDebug()) {
 			context.put("debug", TRUE);
 		} else {
 			context.put("debug", FALSE);
 		}
 
-		LOGGER.finest("Context: " + pContext);
+		if (LOGGER.isLoggable(Level.FINEST)) {
+			LOGGER.finest("Context: " + pContext);
+		}
 
-        RenderOptionsImpl localOptions = new RenderOptionsImpl(this.renderOptions);
+        RenderOptionsImpl localOptions = new RenderOptionsImpl(
+        		current.getRenderOptions());
         
         if (pContext.getProperty("renderOptions") != null) {
         	// Add specific render options
-        	LOGGER.finest("Rendering options: "
-        			+ pContext.getProperty("renderOptions"));
+        	if (LOGGER.isLoggable(Level.FINEST)) {
+        		LOGGER.finest("Rendering options: "
+        				+ pContext.getProperty("renderOptions"));
+        	}
         	
         	try {
             	Map<String, String> contextOptions = (Map<String, String>) pContext.getProperty("renderOptions");
@@ -334,351 +981,228 @@ public final class VelocityHTMLFormatter implements Formatter {
     	context.put("renderOptions", localOptions);
 
 		// Any errors?
-		if (ActionResultImpl.FAIL.equals(pContext.getResult().toString())) {
+		if (request.isFailed()) {
 			context.put("errors", TRUE);
 		} else {
 			context.put("errors", FALSE);
 		}
 
-		LOGGER.fine("Progress: "
-				+ pContext.getStateManager().getProgressPercentage());
+		int progress = pContext.getStateManager().getProgressPercentage();
+
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Progress: " + progress);
+		}
 
 		// add progress
-		context.put("percentage_done", Integer.valueOf(pContext
-				.getStateManager().getProgressPercentage()));
+		context.put("percentage_done", Integer.valueOf(progress));
 
 		LOGGER.finest("Context filled");
+
+		return values;
 	}
 
 	/**
-	 * Add single item to context, or, if it's a group, add it's controls.
+	 * Add single item to context, or, if it's a group, add the group and it's
+	 * items.
 	 * 
 	 * @param rItem
-	 * @param context
-	 * @param pContext
-	 * @param bundle
+	 * @param builder
+	 * @param values
 	 */
 	private void addItemToContext(final Renderable rItem,
-			final VelocityContext context, final RunnerContext pContext,
-			final UTF8ResourceBundle bundle,
-			final Map<String, HashMap<String, Object>> values) {
-
-		/**
-		 * If it's a group, just add it's controls to the context.
-		 */
-		if (rItem instanceof Group) {
-
-			addGroupToContext((Group) rItem, pContext, values);
-
-			for (Iterator<Renderable> i = ((Group) rItem).getItems().iterator(); i
-					.hasNext();) {
-
-				addItemToContext(i.next(), context, pContext, bundle, values);
-			}
-			return;
-		}
-
-		HashMap<String, Object> itemCtx = new HashMap<String, Object>();
-		Model model = pContext.getModel();
-		Instance inst = pContext.getInstance();
-
-		if (rItem instanceof TextBlock) {
-			
-			LOGGER.fine("Adding text block to context: " + rItem.getId());
-			
-			String text = this.translate(((TextBlock) rItem).getText(), pContext.getLocale());
-
-			LOGGER.finest("Found translation: " + text);
-
-			text = FillProcessor.processFills(text, inst, model,
-					pContext.getRenderConfig(), pContext.getLocale());
-			
-			LOGGER.finest("Fills processed: " + text);
+			final ItemContextBuilder builder,
+			final Map<String, ItemContext> values) {
 
-			itemCtx.put("text", text);
+		ItemContext itemCtx = builder.build(rItem);
 
+		if (itemCtx != null) {
 			values.put(rItem.getId(), itemCtx);
-						
-			return;
 		}
-		
-		if (!(rItem instanceof Control)) {
-			return;
-		}
-
-		Control control = (Control) rItem;
-		String bind = control.getBind();
-		Node node;
-
-		try {
-			node = inst.getNode(bind);
-		} catch (InvalidPathExpression e1) {
-			return;
-		}
-
-		ItemProperties props = model.getItemProperties(bind);
-
-		if (props == null) {
-			props = new ItemPropertiesImpl(bind);
-		}
-
-		try {
-			LOGGER.fine("do we have calculations: " + props.getCalculate());
-
-			LOGGER.fine("Raw node value: " + node.getValue());
-
-			Object val = NodeValidator.getValue(node, props, model, inst);
-			
-			LOGGER.fine("Adding item "
-					+ control.getId()
-					+ " to context with value "
-					+ val
-					+ " and lexical value "
-					+ control.getDisplayValue(val, props.getDatatype(),
-							pContext.getLocale()));
-
-			if (val == null) {
-				itemCtx.put("value", "");
-			} else {
-				itemCtx.put("value", val);			
-			}
-			
-			itemCtx.put(
-					"lexical_value",
-					control.getDisplayValue(val, props.getDatatype(),
-							pContext.getLocale()));
-
-		} catch (Exception e) {
-			itemCtx.put("value", "");
-			itemCtx.put("lexical_value", "");
-		}
-		
-		String label = this.translate(control.getLabel(), pContext.getLocale());
-
-		label = FillProcessor.processFills(label, inst, model,
-				pContext.getRenderConfig(), pContext.getLocale());
-
-		itemCtx.put("label", label);
-
-		String hint = this.translate(control.getHint(), pContext.getLocale());
-
-		hint = FillProcessor.processFills(hint, inst,
-				model, pContext.getRenderConfig(), pContext.getLocale());
-
-		itemCtx.put("hint", hint);
-
-		itemCtx.put("required",
-				Boolean.valueOf(NodeValidator.isRequired(props, inst, model))
-						.toString());
-
-		itemCtx.put("relevant",
-				Boolean.valueOf(NodeValidator.isRelevant(props, inst, model))
-						.toString());
-
-		itemCtx.put("readonly",
-				Boolean.valueOf(NodeValidator.isReadOnly(props, inst, model))
-						.toString());
-
-		// To debug or not to debug...
-		if (this.debug) {
-			itemCtx.put("required_expr", props.getRequired().toString());
-			itemCtx.put("relevant_expr", props.getRelevant().toString());
-			itemCtx.put("constraint_expr", props.getConstraint().toString());
-			itemCtx.put("readonly_expr", props.getReadOnly().toString());
-			itemCtx.put("required_expr_resolved",
-					XRefSolver.resolve(model, inst, props.getRequired(), node));
-			itemCtx.put("relevant_expr_resolved",
-					XRefSolver.resolve(model, inst, props.getRelevant(), node));
-			itemCtx.put("constraint_expr_resolved",
-					XRefSolver.resolve(model, inst, props.getConstraint(), node));
-			itemCtx.put("readonly_expr_resolved",
-					XRefSolver.resolve(model, inst, props.getReadOnly(), node));
-		}
-
-		if (control instanceof Vocabulary) {
 
-			ArrayList<Option> options = new ArrayList<Option>();
-			
-			for (Option opt:((Vocabulary) rItem).getOptions()) {
-				options.add(new Option(opt.getValue(), this.translate(opt.getLabel(), pContext.getLocale())));
-			}
-			
-			itemCtx.put("options", options);
-		}
-
-		// Check for error conditions. Put empty alert first.
-		//
-		itemCtx.put("alert", "");
-
-		if (ActionResultImpl.FAIL.equals(pContext.getResult().toString())) {
-
-			// Is it the data?
-			Exception error = ((Failure) pContext.getResult()).getException();
-
-			if (error instanceof ValidationException) {
-
-				Map<String, Exception> errors = ((ValidationException) error)
-						.getErrors();
-
-				if (errors.containsKey(((Control) rItem).getBind())) {
-
-					if ("".equals(((Control) rItem).getAlert())) {
-						itemCtx.put(
-								"alert",
-								translateError(((ConstraintViolation) errors
-										.get(((Control) rItem).getBind()))
-										.getMessage(), bundle));
-					} else {
-						String alert = this.translate(((Control) rItem).getAlert(), pContext.getLocale());
-
-						alert = FillProcessor.processFills(
-								alert, inst, model,
-								pContext.getRenderConfig(),
-								pContext.getLocale());
-
-						itemCtx.put("alert", alert);
-					}
-				}
+		if (rItem instanceof Group) {
+			for (Renderable child : ((Group) rItem).getItems()) {
+				addItemToContext(child, builder, values);
 			}
 		}
-
-		values.put(rItem.getId(), itemCtx);
 	}
 
 	/**
-	 * Add single item to context, or, if it's a group, add it's controls.
+	 * Get the current state. Package private, for tests.
 	 * 
-	 * @param rItem
-	 * @param context
-	 * @param pContext
-	 * @param bundle
+	 * @throws IllegalStateException
+	 *             if the formatter is not initialized.
 	 */
-	private void addGroupToContext(final Group group,
-			final RunnerContext pContext,
-			final Map<String, HashMap<String, Object>> values) {
+	FormatterState current() {
 
-		HashMap<String, Object> itemCtx = new HashMap<String, Object>();
+		FormatterState current = this.state;
 
-		if (isRelevant(group, pContext)) {
-			itemCtx.put("relevant", TRUE);
-		} else {
-			itemCtx.put("relevant", FALSE);
+		if (current == null) {
+			throw new IllegalStateException("Formatter not initialized");
 		}
 
-		Model model = pContext.getModel();
-		Instance inst = pContext.getInstance();
+		return current;
+	}
 
-		String label = this.translate(group.getLabel(), pContext.getLocale());
-		
-		label = FillProcessor.processFills(label, inst, model,
-				pContext.getRenderConfig(), pContext.getLocale());
+	/**
+	 * Offer access to the formatter's current settings.
+	 * 
+	 * @return the settings, or null before init
+	 */
+	public FormatterSettings getSettings() {
+		FormatterState current = this.state;
+		return current == null ? null : current.getSettings();
+	}
 
-		itemCtx.put("label", label);
-		
-		String hint = this.translate(group.getHint(), pContext.getLocale());
+	/**
+	 * Offer access to the outcome of loading the templates at init: the
+	 * number of templates, time taken and errors.
+	 * 
+	 * @return the warmup report
+	 */
+	public WarmupReport getWarmupReport() {
+		FormatterState current = this.state;
+		return current == null ? WarmupReport.EMPTY : current
+				.getWarmupReport();
+	}
 
-		hint = FillProcessor.processFills(hint, inst, model,
-				pContext.getRenderConfig(), pContext.getLocale());
+	/**
+	 * Offer access to the formatter's translation cache, e.g. for it's hit
+	 * and miss counters.
+	 * 
+	 * @return the translation cache, or null before init
+	 */
+	public TranslationCache getTranslationCache() {
+		FormatterState current = this.state;
+		return current == null ? null : current.getTranslations();
+	}
 
-		itemCtx.put("hint", hint);
+	/**
+	 * Offer access to the cache of rendered #fragment blocks, e.g. for it's
+	 * hit and miss counters.
+	 * 
+	 * @return the fragment cache, or null before init
+	 */
+	public FragmentCache getFragmentCache() {
+		FormatterState current = this.state;
+		return current == null ? null : current.getFragments();
+	}
 
-		values.put(group.getId(), itemCtx);
-		
-		if (group instanceof Vocabulary) {
+	/**
+	 * Look up options of a vocabulary by their translated labels, for
+	 * server side type-ahead: an option matches if each word of the query
+	 * starts a word of it's label, ignoring case and accents. The index
+	 * over the labels is built on first lookup, per vocabulary and locale.
+	 * 
+	 * @param vocab
+	 *            the vocabulary, e.g. a select control
+	 * @param locale
+	 *            locale of the labels
+	 * @param query
+	 *            what the user typed; empty matches all options
+	 * @param offset
+	 *            number of matches to skip
+	 * @param limit
+	 *            maximum number of options
+	 * @return matching options with translated labels, in vocabulary order
+	 */
+	public List<Option> lookupOptions(final Vocabulary vocab,
+			final Locale locale, final String query, final int offset,
+			final int limit) {
 
-			itemCtx.put("options", ((Vocabulary) group).getOptions());
-		}
+		return current().getOptionLists().lookup(vocab, locale, query,
+				offset, limit);
 	}
-	
+
 	/**
-	 * Translate given translatable, nut only if message id is not empty.
+	 * Drop the cached resource bundles, so the next requests read them
+	 * again. Use formatter.locale.reload_check to have changed bundles
+	 * picked up without this.
 	 */
-	private String translate(Translatable str, Locale locale) {
-		
-		if ("".equals(str.getMsgid())) {
-			return "";
-		}
-		
-		String baseName = this.cfg.getString("formatter.locale.basename", "Messages");
+	public void reloadBundles() {
 
-		I18n i18n = I18nFactory.getI18n(this.getClass(), baseName, locale);
+		FormatterState current = this.state;
 
-		if (!"".equals(str.getMsgctx()) && str.getMsgctx() != null) {
-			return i18n.trc(str.getMsgid(), str.getMsgctx());
-		} else {			
-			return i18n.tr(str.getMsgid());
+		if (current != null) {
+			current.getBundles().clear();
 		}
-
 	}
 
 	/**
-	 * Determine whether group should actually be shown or not.
+	 * Number of bind evaluations (values, properties, required, relevant and
+	 * readonly) that were served from the per request cache instead of being
+	 * evaluated again, since creation of the formatter.
 	 * 
-	 * @param group
-	 * @param pContext
-	 * @return
+	 * @return saved evaluations
 	 */
-	private boolean isRelevant(final Group group, final RunnerContext pContext) {
+	public long getSavedEvaluations() {
+		return this.savedEvaluations.get();
+	}
 
-		for (Renderable r : group.getItems()) {
+	/**
+	 * Number of bind evaluations done by format and formatDelta, since
+	 * creation of the formatter.
+	 * 
+	 * @return evaluations
+	 */
+	public long getEvaluations() {
+		return this.evaluations.get();
+	}
 
-			if (r instanceof Control) {
-				Control control = (Control) r;
-				String bind = control.getBind();
-				Model model = pContext.getModel();
-				Instance inst = pContext.getInstance();
-				ItemProperties props = model.getItemProperties(bind);
+	/**
+	 * Add the evaluations of a request to the totals.
+	 */
+	private void count(final EvaluationCache cache) {
 
-				if (props == null) {
-					props = new ItemPropertiesImpl(bind);
-				}
+		this.evaluations.addAndGet(cache.getEvaluations());
+		this.savedEvaluations.addAndGet(cache.getSaved());
 
-				if (NodeValidator.isRelevant(props, inst, model)) {
-					return true;
-				}
-			} else if (r instanceof TextBlock) {
-				return true;
-			} else if (r instanceof Group && isRelevant((Group) r, pContext)) {
-				return true;
-			}
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Evaluations: " + cache.getEvaluations()
+					+ ", saved: " + cache.getSaved());
 		}
+	}
 
-		return false;
+	/**
+	 * Offer access to the render metrics: time per phase, renders per
+	 * template and locale, output and allocation. Only renders done with
+	 * formatter.metrics.enabled are counted. With formatter.metrics.jmx the
+	 * metrics are also registered as MXBean until close, named after
+	 * formatter.metrics.name, or after the formatter if that is not set.
+	 * 
+	 * @return the metrics
+	 */
+	public RenderMetrics getMetrics() {
+		return this.metrics;
 	}
 
 	/**
-	 * Return the translated alert message.
+	 * Add listener, called with the measurements of every render.
 	 * 
-	 * @param msg
-	 *            original message.
-	 * @param bundle
-	 *            locale bindle
-	 * @return the translated message.
+	 * @param listener
+	 *            the listener
 	 */
-	private String translateError(final String msg,
-			final UTF8ResourceBundle bundle) {
+	public void addMetricsListener(final RenderMetricsListener listener) {
+		this.metrics.addListener(listener);
+	}
 
-		try {
-			if (ConstraintViolation.REQUIRED.equals(msg)) {
-				return bundle.getString("alert.required");
-			} else if (ConstraintViolation.TYPE.equals(msg)) {
-				return bundle.getString("alert.type");
-			} else if (ConstraintViolation.FALSE.equals(msg)) {
-				return bundle.getString("alert.constraint");
-			} else {
-				return bundle.getString("alert.unknown");
-			}
-		} catch (Exception e) {
-			return "Erroneous input";
-		}
+	/**
+	 * Remove listener.
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	public void removeMetricsListener(final RenderMetricsListener listener) {
+		this.metrics.removeListener(listener);
 	}
 
 	/**
-	 * Offer access to the formatter's engine.
+	 * Offer access to the formatter's engine. This is the engine new
+	 * requests will use; don't change it, use setProperty instead.
 	 * 
-	 * @return the Velocity engine
+	 * @return the Velocity engine, or null before init
 	 */
 	public VelocityEngine getEngine() {
-		return this.engine;
+		FormatterState current = this.state;
+		return current == null ? null : current.getEngine();
 	}
 }
@@ -10,7 +10,9 @@ import org.apache.velocity.runtime.log.LogChute;
 
 /**
  * This wrapper is needed to enable velocity logging to java.util.logging
- * system.
+ * system. Messages below the level of this class' logger are skipped, and
+ * Velocity is told so, so it doesn't even build them. To keep logging off
+ * the rendering threads, configure an AsyncLogHandler for this logger.
  * 
  * @author dokter
  * 
@@ -44,21 +46,29 @@ public class VelocityLoggingWrapper implements LogChute {
     }
 
     @Override
-    public boolean isLevelEnabled(int arg0) {
+    public boolean isLevelEnabled(int level) {
 
-        return true;
+        return LOGGER.isLoggable(mapIntToLevel(level));
     }
 
     @Override
     public void log(int level, String message) {
 
-        LOGGER.log(mapIntToLevel(level), message);
+        Level julLevel = mapIntToLevel(level);
+
+        if (LOGGER.isLoggable(julLevel)) {
+            LOGGER.log(julLevel, message);
+        }
     }
 
     @Override
     public void log(int level, String message, Throwable throwable) {
 
-        LOGGER.log(mapIntToLevel(level), message, throwable);
+        Level julLevel = mapIntToLevel(level);
+
+        if (LOGGER.isLoggable(julLevel)) {
+            LOGGER.log(julLevel, message, throwable);
+        }
     }
     
     private Level mapIntToLevel(final int level) {
@@ -0,0 +1,69 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.formatting;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Outcome of loading the templates at init.
+ */
+public final class WarmupReport {
+
+	/**
+	 * Report for when nothing was warmed.
+	 */
+	static final WarmupReport EMPTY = new WarmupReport(0, 0,
+			Collections.<String, String> emptyMap());
+
+	private final int templateCount;
+
+	private final long durationMillis;
+
+	private final Map<String, String> errors;
+
+	WarmupReport(final int templateCount, final long durationMillis,
+			final Map<String, String> errors) {
+
+		this.templateCount = templateCount;
+		this.durationMillis = durationMillis;
+		this.errors = Collections.unmodifiableMap(errors);
+	}
+
+	/**
+	 * @return number of templates and macro libraries loaded.
+	 */
+	public int getTemplateCount() {
+		return this.templateCount;
+	}
+
+	/**
+	 * @return wall clock time of the warmup.
+	 */
+	public long getDurationMillis() {
+		return this.durationMillis;
+	}
+
+	/**
+	 * @return error message per template that failed to load.
+	 */
+	public Map<String, String> getErrors() {
+		return this.errors;
+	}
+
+	/**
+	 * @return whether all templates loaded.
+	 */
+	public boolean isOk() {
+		return this.errors.isEmpty();
+	}
+}
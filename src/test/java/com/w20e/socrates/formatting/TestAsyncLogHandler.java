@@ -0,0 +1,76 @@
+package com.w20e.socrates.formatting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+public class TestAsyncLogHandler extends TestCase {
+
+	public TestAsyncLogHandler(String name) {
+		super(name);
+	}
+
+	public void testPublish() {
+
+		final List<String> messages = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		Handler target = new Handler() {
+			public void publish(LogRecord record) {
+				messages.add(record.getMessage());
+			}
+
+			public void flush() {
+			}
+
+			public void close() {
+			}
+		};
+
+		AsyncLogHandler handler = new AsyncLogHandler(target, 1000);
+		handler.setLevel(Level.INFO);
+
+		for (int i = 0; i < 100; i++) {
+			handler.publish(new LogRecord(Level.INFO, "msg " + i));
+			handler.publish(new LogRecord(Level.FINE, "skipped " + i));
+		}
+
+		handler.close();
+
+		assertEquals(100, messages.size());
+		assertEquals("msg 0", messages.get(0));
+		assertEquals("msg 99", messages.get(99));
+		assertEquals(0, handler.getDropped());
+
+		// Closed handlers take nothing.
+		handler.publish(new LogRecord(Level.INFO, "late"));
+		assertEquals(100, messages.size());
+	}
+
+	public void testLevelEnabled() {
+
+		Logger logger = Logger.getLogger(VelocityLoggingWrapper.class
+				.getName());
+		Level old = logger.getLevel();
+
+		try {
+			logger.setLevel(Level.WARNING);
+
+			VelocityLoggingWrapper wrapper = new VelocityLoggingWrapper();
+
+			assertFalse(wrapper.isLevelEnabled(-1));
+			assertFalse(wrapper.isLevelEnabled(0));
+			assertFalse(wrapper.isLevelEnabled(1));
+			assertTrue(wrapper.isLevelEnabled(2));
+			assertTrue(wrapper.isLevelEnabled(3));
+		} finally {
+			logger.setLevel(old);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.w20e.socrates.formatting;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.configuration.BaseConfiguration;
+
+public class TestAsyncRenderer extends TestCase {
+
+	public TestAsyncRenderer(String name) {
+		super(name);
+	}
+
+	public void testBackpressure() throws Exception {
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		final AsyncRenderer renderer = new AsyncRenderer(executor, true, 2);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		Callable<String> blocked = new Callable<String>() {
+			public String call() throws Exception {
+				release.await();
+				return "done";
+			}
+		};
+
+		Future<String> first = renderer.submit(blocked);
+		renderer.submit(blocked);
+
+		assertEquals(2, renderer.getPending());
+
+		final CountDownLatch submitted = new CountDownLatch(1);
+
+		Thread third = new Thread() {
+			public void run() {
+				try {
+					renderer.submit(new Callable<String>() {
+						public String call() {
+							return "third";
+						}
+					});
+					submitted.countDown();
+				} catch (InterruptedException e) {
+					// test fails on the latch
+				}
+			}
+		};
+		third.start();
+
+		// Third waits for a free slot.
+		assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+
+		assertTrue(submitted.await(5, TimeUnit.SECONDS));
+		assertEquals("done", first.get());
+
+		renderer.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	public void testCancel() throws Exception {
+
+		AsyncRenderer renderer = new AsyncRenderer(
+				Executors.newSingleThreadExecutor(), true, 1);
+		final CountDownLatch started = new CountDownLatch(1);
+
+		Future<String> future = renderer.submit(new Callable<String>() {
+			public String call() throws Exception {
+				started.countDown();
+				Thread.sleep(60000);
+				return "not cancelled";
+			}
+		});
+
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertTrue(future.cancel(true));
+
+		try {
+			future.get();
+			fail("Should be cancelled");
+		} catch (CancellationException e) {
+			// expected
+		}
+
+		// Slot is free again.
+		assertEquals("next", renderer.submit(new Callable<String>() {
+			public String call() {
+				return "next";
+			}
+		}).get(5, TimeUnit.SECONDS));
+
+		renderer.shutdown();
+	}
+
+	public void testCancelFlag() throws Exception {
+
+		AsyncRenderer renderer = new AsyncRenderer(
+				Executors.newSingleThreadExecutor(), true, 1);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicBoolean cancelled = new AtomicBoolean();
+
+		// Ignores interrupts, like a thread waiting in ForkJoinPool.invoke.
+		Future<String> future = renderer.submit(new Callable<String>() {
+			public String call() throws Exception {
+				started.countDown();
+				while (!cancelled.get()) {
+					Thread.yield();
+				}
+				while (release.getCount() > 0) {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						// keep running
+					}
+				}
+				return "cancelled";
+			}
+		}, cancelled);
+
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertTrue(future.cancel(true));
+		assertTrue(cancelled.get());
+
+		// The render still runs, so it still holds the slot.
+		Thread.sleep(100);
+		assertEquals(1, renderer.getPending());
+
+		release.countDown();
+
+		assertEquals("next", renderer.submit(new Callable<String>() {
+			public String call() {
+				return "next";
+			}
+		}).get(5, TimeUnit.SECONDS));
+
+		renderer.shutdown();
+	}
+
+	public void testSettingsChanged() throws Exception {
+
+		BaseConfiguration cfg = new BaseConfiguration();
+		cfg.setProperty("formatter.async.virtual_threads", "false");
+		cfg.setProperty("formatter.async.threads", "2");
+
+		AsyncRenderer renderer = AsyncRenderer.create(FormatterSettings
+				.fromConfiguration(cfg));
+
+		assertTrue(renderer.isCurrent(FormatterSettings.fromConfiguration(cfg)));
+
+		cfg.setProperty("formatter.async.threads", "3");
+
+		assertFalse(renderer.isCurrent(FormatterSettings
+				.fromConfiguration(cfg)));
+
+		renderer.shutdown();
+
+		// The user's executor is kept whatever the settings.
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		assertTrue(new AsyncRenderer(executor, false, 2)
+				.isCurrent(FormatterSettings.fromConfiguration(cfg)));
+
+		executor.shutdown();
+	}
+}
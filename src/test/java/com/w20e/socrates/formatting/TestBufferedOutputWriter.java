@@ -0,0 +1,112 @@
+package com.w20e.socrates.formatting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+public class TestBufferedOutputWriter extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	public TestBufferedOutputWriter(String name) {
+		super(name);
+	}
+
+	public void testUtf8() throws IOException {
+
+		// Surrogate pair straddles the 16 char buffer boundary
+		String text = "abcdefghijklmn\u00e9\ud83d\ude00 gr\u00fc\u00dfe \u20ac 100";
+
+		assertEquals(text, new String(write(text, UTF8, 16, 0), UTF8));
+	}
+
+	public void testCharset() throws IOException {
+
+		String text = "Gr\u00fc\u00dfe, caf\u00e9 \u20ac";
+
+		assertEquals(new String(text.getBytes(LATIN1), LATIN1), new String(
+				write(text, LATIN1, 16, 0), LATIN1));
+	}
+
+	public void testLargeOutput() throws IOException {
+
+		StringBuilder text = new StringBuilder();
+
+		for (int i = 0; i < 10000; i++) {
+			text.append("<option value=\"").append(i).append("\">\u00e9</option>");
+		}
+
+		assertEquals(text.toString(), new String(write(text.toString(), UTF8,
+				512, 1024), UTF8));
+	}
+
+	public void testFlushPolicy() throws IOException {
+
+		CountingStream out = new CountingStream();
+		BufferedOutputWriter writer = new BufferedOutputWriter(out, UTF8, 16, 32);
+
+		for (int i = 0; i < 10; i++) {
+			writer.write("0123456789");
+		}
+		assertTrue(out.flushes > 0);
+		assertTrue(out.size() < 100);
+
+		writer.flush();
+		assertEquals(100, out.size());
+		assertEquals(100, writer.getBytesWritten());
+
+		writer.release();
+
+		try {
+			writer.write("x");
+			fail("Released writer should not accept output");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testFlushAtEnd() throws IOException {
+
+		CountingStream out = new CountingStream();
+		BufferedOutputWriter writer = new BufferedOutputWriter(out, UTF8, 16, 0);
+
+		for (int i = 0; i < 10; i++) {
+			writer.write("0123456789");
+		}
+		assertEquals(0, out.flushes);
+
+		writer.close();
+		assertEquals(1, out.flushes);
+		assertEquals(100, out.size());
+	}
+
+	private static byte[] write(final String text, final Charset charset,
+			final int size, final int flushBytes) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BufferedOutputWriter writer = new BufferedOutputWriter(out, charset,
+				size, flushBytes);
+
+		for (int i = 0; i < text.length(); i += 7) {
+			writer.write(text, i, Math.min(7, text.length() - i));
+		}
+		writer.flush();
+		writer.release();
+
+		return out.toByteArray();
+	}
+
+	private static final class CountingStream extends ByteArrayOutputStream {
+
+		private int flushes;
+
+		@Override
+		public void flush() {
+			this.flushes++;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.w20e.socrates.formatting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+import junit.framework.TestCase;
+
+public class TestBundleCache extends TestCase {
+
+	public TestBundleCache(String name) {
+		super(name);
+	}
+
+	public void testGet() {
+
+		BundleCache cache = new BundleCache("socratesimpl", 0);
+		LocaleBundle de = cache.get(new Locale("de", "DE"));
+
+		assertEquals("Ja", de.getString("yes"));
+		assertEquals("Answering this question is required", de
+				.getString("alert.required"));
+		assertEquals("Yes", cache.get(new Locale("en", "GB")).getString("yes"));
+
+		assertSame(de, cache.get(new Locale("de", "DE")));
+		assertEquals(2, cache.getLoads());
+
+		cache.clear();
+
+		assertNotSame(de, cache.get(new Locale("de", "DE")));
+		assertEquals(3, cache.getLoads());
+	}
+
+	public void testNullLocale() {
+
+		BundleCache cache = new BundleCache("socratesimpl", 0);
+
+		assertSame(cache.get(null), cache.get(null));
+		assertSame(cache.get(null), cache.get(Locale.getDefault()));
+		assertEquals(1, cache.getLoads());
+	}
+
+	public void testFallback() {
+
+		BundleCache cache = new BundleCache("socratesimpl", 0);
+
+		// de_AT has no file of it's own.
+		LocaleBundle at = cache.get(new Locale("de", "AT"));
+
+		assertEquals(0, at.size());
+
+		// de_DE_x falls back to de_DE.
+		assertEquals("Ja", cache.get(new Locale("de", "DE", "x")).getString(
+				"yes"));
+	}
+
+	public void testReloadCheck() throws Exception {
+
+		File dir = File.createTempFile("bundles", "");
+		dir.delete();
+		dir.mkdir();
+
+		File file = new File(dir, "test_en.properties");
+		write(file, "yes = Yes");
+
+		ClassLoader old = Thread.currentThread().getContextClassLoader();
+		ClassLoader loader = new URLClassLoader(new URL[] { dir.toURI()
+				.toURL() });
+		Thread.currentThread().setContextClassLoader(loader);
+
+		try {
+			BundleCache cache = new BundleCache("test", 1);
+
+			assertEquals("Yes", cache.get(Locale.ENGLISH).getString("yes"));
+			assertEquals("Yes", ResourceBundle.getBundle("test",
+					Locale.ENGLISH, loader).getString("yes"));
+
+			write(file, "yes = Yes!");
+			file.setLastModified(file.lastModified() + 2000);
+			Thread.sleep(5);
+
+			assertEquals("Yes!", cache.get(Locale.ENGLISH).getString("yes"));
+			assertEquals(2, cache.getLoads());
+
+			// Bundles of ResourceBundle are read again as well.
+			assertEquals("Yes!", ResourceBundle.getBundle("test",
+					Locale.ENGLISH, loader).getString("yes"));
+		} finally {
+			Thread.currentThread().setContextClassLoader(old);
+			file.delete();
+			dir.delete();
+		}
+	}
+
+	private static void write(File file, String text) throws Exception {
+
+		FileOutputStream out = new FileOutputStream(file);
+
+		try {
+			out.write(text.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+}
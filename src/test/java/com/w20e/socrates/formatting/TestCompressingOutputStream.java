@@ -0,0 +1,110 @@
+package com.w20e.socrates.formatting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import junit.framework.TestCase;
+
+public class TestCompressingOutputStream extends TestCase {
+
+	public TestCompressingOutputStream(String name) {
+		super(name);
+	}
+
+	public void testGzip() throws Exception {
+
+		String page = page();
+
+		// Twice, so the second one reuses the deflater.
+		for (int i = 0; i < 2; i++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			CompressingOutputStream gzip = CompressingOutputStream.create(out,
+					"gzip", 6);
+
+			gzip.write(page.getBytes(StandardCharsets.UTF_8));
+			gzip.finish();
+			gzip.release();
+
+			assertTrue(out.size() < page.length() / 10);
+			assertEquals(page, read(new GZIPInputStream(
+					new ByteArrayInputStream(out.toByteArray()))));
+		}
+	}
+
+	public void testDeflate() throws Exception {
+
+		String page = page();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompressingOutputStream deflate = CompressingOutputStream.create(out,
+				"Deflate", 1);
+
+		deflate.write(page.getBytes(StandardCharsets.UTF_8));
+		deflate.close();
+		deflate.release();
+
+		assertEquals(page, read(new InflaterInputStream(
+				new ByteArrayInputStream(out.toByteArray()))));
+	}
+
+	public void testSyncFlush() throws Exception {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompressingOutputStream gzip = CompressingOutputStream.create(out,
+				"gzip", 6);
+
+		gzip.write("<html>".getBytes(StandardCharsets.UTF_8));
+		gzip.flush();
+
+		// What is flushed can be decoded before the end.
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(out
+				.toByteArray()));
+		byte[] start = new byte[6];
+		int read = 0;
+
+		while (read < start.length) {
+			read += in.read(start, read, start.length - read);
+		}
+
+		assertEquals("<html>", new String(start, StandardCharsets.UTF_8));
+
+		gzip.finish();
+		gzip.release();
+	}
+
+	public void testSupported() {
+
+		assertTrue(CompressingOutputStream.isSupported("GZIP"));
+		assertFalse(CompressingOutputStream.isSupported("br"));
+		assertFalse(CompressingOutputStream.isSupported(null));
+	}
+
+	private static String page() {
+
+		StringBuilder page = new StringBuilder();
+
+		for (int i = 0; i < 2000; i++) {
+			page.append("<div class=\"control\"><label>Label ").append(i)
+					.append("</label><input name=\"c").append(i)
+					.append("\"/></div>\n");
+		}
+
+		return page.toString();
+	}
+
+	private static String read(InputStream in) throws Exception {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int len;
+
+		while ((len = in.read(buf)) != -1) {
+			out.write(buf, 0, len);
+		}
+
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,175 @@
+package com.w20e.socrates.formatting;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.NodeImpl;
+
+public class TestDependencyIndex extends TestCase {
+
+	private InstanceImpl instance;
+
+	private NodeImpl a;
+
+	public TestDependencyIndex(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() {
+
+		this.instance = new InstanceImpl();
+		this.a = new NodeImpl("A", "a");
+		this.instance.addNode(this.a);
+		this.instance.addNode(new NodeImpl("B", "b"));
+	}
+
+	public void testReuse() throws Exception {
+
+		DependencyIndex index = new DependencyIndex();
+		Instance tracked = index.begin(null, this.instance);
+
+		compute(index, tracked, "x", "A");
+		compute(index, tracked, "y", "B");
+
+		assertEquals(2, index.size());
+		assertEquals("a", index.get("x"));
+
+		// Nothing changed.
+		index.begin(null, this.instance);
+		assertEquals("a", index.get("x"));
+		assertEquals("b", index.get("y"));
+
+		// Only what read A is dropped.
+		this.a.setValue("c");
+		index.begin(null, this.instance);
+		assertSame(DependencyIndex.MISSING, index.get("x"));
+		assertEquals("b", index.get("y"));
+		assertEquals(4, index.getReused());
+		assertEquals(2, index.getComputed());
+	}
+
+	public void testNested() throws Exception {
+
+		DependencyIndex index = new DependencyIndex();
+		Instance tracked = index.begin(null, this.instance);
+
+		DependencyIndex.Recording outer = index.start();
+		compute(index, tracked, "inner", "A");
+		index.finish(outer, "outer", true, "done");
+
+		this.a.setValue("c");
+		index.begin(null, this.instance);
+
+		// The outer result read A through the inner one.
+		assertSame(DependencyIndex.MISSING, index.get("outer"));
+	}
+
+	public void testUntracked() throws Exception {
+
+		DependencyIndex index = new DependencyIndex();
+		Instance tracked = index.begin(null, this.instance);
+
+		DependencyIndex.Recording recording = index.start();
+		tracked.getNode("A");
+		tracked.getMetaData();
+		index.finish(recording, "x", true, "a");
+
+		assertSame(DependencyIndex.MISSING, index.get("x"));
+
+		// Nor are failures kept.
+		recording = index.start();
+		index.finish(recording, "y", false, null);
+
+		assertSame(DependencyIndex.MISSING, index.get("y"));
+		assertEquals(0, index.size());
+	}
+
+	public void testChangedInPlace() throws Exception {
+
+		StringBuilder value = new StringBuilder("a");
+		this.a.setValue(value);
+
+		DependencyIndex index = new DependencyIndex();
+		Instance tracked = index.begin(null, this.instance);
+
+		compute(index, tracked, "x", "A");
+
+		index.begin(null, this.instance);
+		assertNotSame(DependencyIndex.MISSING, index.get("x"));
+
+		// Same node value, but not the same text.
+		value.append('b');
+		index.begin(null, this.instance);
+		assertSame(DependencyIndex.MISSING, index.get("x"));
+	}
+
+	public void testConfigId() {
+
+		DependencyIndex index = new DependencyIndex();
+		Object config = new Object();
+
+		assertEquals(index.configId(config), index.configId(config));
+		assertFalse(index.configId(config) == index.configId(new Object()));
+		assertFalse(index.configId(config) == index.configId(null));
+
+		// Equal configs are the same config.
+		assertEquals(index.configId(Arrays.asList("a", "b")), index
+				.configId(Arrays.asList("a", "b")));
+	}
+
+	public void testFreshConfigs() throws Exception {
+
+		DependencyIndex index = new DependencyIndex(4);
+
+		// A session rendered with a new config object each time.
+		for (int i = 0; i < 100; i++) {
+			Instance tracked = index.begin(null, this.instance);
+			String key = "f:en:" + index.configId(new Object()) + ":${A}";
+
+			assertSame(DependencyIndex.MISSING, index.get(key));
+			compute(index, tracked, key, i % 2 == 0 ? "A" : "B");
+			assertTrue(index.size() <= 4);
+		}
+
+		assertEquals(4, index.size());
+
+		// The oldest results are dropped, and what only they read.
+		this.a.setValue("c");
+		index.begin(null, this.instance);
+
+		assertEquals(2, index.size());
+	}
+
+	public void testFailed() throws Exception {
+
+		DependencyIndex index = new DependencyIndex();
+		Instance tracked = index.begin(null, this.instance);
+
+		compute(index, tracked, "x", "A");
+		index.failed(new IllegalStateException("other"));
+
+		assertTrue(index.isUsable());
+		assertEquals(1, index.size());
+
+		// Code that wants the instance's own class.
+		index.failed(new RuntimeException(new ClassCastException("InstanceImpl")));
+
+		assertFalse(index.isUsable());
+		assertEquals(0, index.size());
+
+		compute(index, tracked, "y", "B");
+		assertEquals(0, index.size());
+	}
+
+	private static void compute(DependencyIndex index, Instance tracked,
+			String key, String path) throws Exception {
+
+		DependencyIndex.Recording recording = index.start();
+		Object value = tracked.getNode(path).getValue();
+		index.finish(recording, key, true, value);
+	}
+}
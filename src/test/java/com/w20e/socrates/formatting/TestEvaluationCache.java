@@ -0,0 +1,45 @@
+package com.w20e.socrates.formatting;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.ModelImpl;
+import com.w20e.socrates.model.NodeImpl;
+
+public class TestEvaluationCache extends TestCase {
+
+	public TestEvaluationCache(String name) {
+		super(name);
+	}
+
+	public void testSaved() throws Exception {
+
+		InstanceImpl inst = new InstanceImpl();
+		ModelImpl model = new ModelImpl();
+
+		inst.addNode(new NodeImpl("A01", "SOME VALUE"));
+
+		EvaluationCache cache = new EvaluationCache(model, inst);
+
+		assertEquals("SOME VALUE", cache.getValue("A01"));
+		assertTrue(cache.isRelevant("A01"));
+		assertEquals(0, cache.getSaved());
+
+		int evaluations = cache.getEvaluations();
+
+		// Second control on the same bind
+		assertEquals("SOME VALUE", cache.getValue("A01"));
+		assertTrue(cache.isRelevant("A01"));
+		assertSame(cache.getProperties("A01"), cache.getProperties("A01"));
+
+		assertEquals(evaluations, cache.getEvaluations());
+		assertEquals(4, cache.getSaved());
+
+		// A new request starts afresh
+		InstanceImpl other = new InstanceImpl();
+		other.addNode(new NodeImpl("A01", "OTHER VALUE"));
+
+		assertEquals("OTHER VALUE",
+				new EvaluationCache(model, other).getValue("A01"));
+	}
+}
@@ -0,0 +1,109 @@
+package com.w20e.socrates.formatting;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.ModelImpl;
+import com.w20e.socrates.model.NodeImpl;
+import com.w20e.socrates.util.FillProcessor;
+
+public class TestFillPlan extends TestCase {
+
+	public TestFillPlan(String name) {
+		super(name);
+	}
+
+	public void testCompile() {
+
+		FillPlan plan = FillPlan.compile("No fills here");
+
+		assertTrue(plan.isLiteral());
+		assertEquals("No fills here", plan.render(null));
+
+		plan = FillPlan.compile("Hi ${name}, you are ${age}${unit}. }");
+
+		assertFalse(plan.isLiteral());
+		assertFalse(plan.isWhole());
+		assertEquals(3, plan.getFills().length);
+		assertEquals("${name}", plan.getFills()[0]);
+
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("${name}", "Pipo");
+		values.put("${age}", "42");
+		values.put("${unit}", "y");
+
+		assertEquals("Hi Pipo, you are 42y. }", plan.render(values));
+
+		// Left to FillProcessor.
+		assertTrue(FillPlan.compile("Hi ${name}. ${broken").isWhole());
+		assertTrue(FillPlan.compile("Hi ${na{me}}").isWhole());
+		assertTrue(FillPlan.compile("Hi ${na${me}}").isWhole());
+		assertFalse(FillPlan.compile("Hi ${name}. ${broken").isLiteral());
+
+		plan = FillPlan.compile("${only}");
+
+		assertEquals(1, plan.getFills().length);
+		assertEquals("Pipo", plan.render(Collections.singletonMap(
+				"${only}", "Pipo")));
+	}
+
+	public void testSameAsFillProcessor() throws Exception {
+
+		InstanceImpl inst = new InstanceImpl();
+		ModelImpl model = new ModelImpl();
+		Locale en = new Locale("en", "GB");
+
+		inst.addNode(new NodeImpl("A01", "Pipo"));
+		inst.addNode(new NodeImpl("A02", "42"));
+		inst.addNode(new NodeImpl("locale", "en_GB"));
+
+		String[] texts = { "No fills here", "", "{ $ } {}", "${A01}",
+				"Hi ${A01}, you are ${A02}${A02}.", "a } b ${A01} {c}",
+				"${A01}}", "$${A01}", "Unclosed ${A01", "Hi ${A01}. ${A02",
+				"Braces ${A{01}}", "Nested ${A${A01}}", "${}",
+				"Unknown ${A03}", "Foo! <a href='http://la.la/la/${locale}/'>lala</a>" };
+
+		for (String text : texts) {
+
+			FillPlan plan = FillPlan.compile(text);
+			String planned;
+
+			if (plan.isLiteral()) {
+				planned = text;
+			} else if (plan.isWhole()) {
+				planned = FillProcessor.processFills(text, inst, model, null, en);
+			} else {
+				Map<String, String> values = new HashMap<String, String>();
+
+				for (String fill : plan.getFills()) {
+					values.put(fill, FillProcessor.processFills(fill, inst, model, null, en));
+				}
+				planned = plan.render(values);
+			}
+
+			assertEquals(text, FillProcessor.processFills(text, inst, model, null, en),
+					planned);
+		}
+	}
+
+	public void testCache() {
+
+		FillPlanCache cache = new FillPlanCache(1);
+		Locale en = new Locale("en", "GB");
+
+		FillPlan plan = cache.get("Hi ${name}", en);
+
+		assertSame(plan, cache.get("Hi ${name}", en));
+		assertNotSame(plan, cache.get("Hi ${name}", Locale.GERMANY));
+
+		// Full; compiled, but not kept.
+		assertNotSame(cache.get("Bye ${name}", en), cache.get("Bye ${name}",
+				en));
+		assertEquals(2, cache.size());
+	}
+}
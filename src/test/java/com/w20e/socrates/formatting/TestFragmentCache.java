@@ -0,0 +1,102 @@
+package com.w20e.socrates.formatting;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+
+import com.w20e.socrates.rendering.Input;
+
+public class TestFragmentCache extends TestCase {
+
+	public TestFragmentCache(String name) {
+		super(name);
+	}
+
+	public void testEviction() {
+
+		FragmentCache cache = new FragmentCache(10);
+
+		cache.put("a", "1234");
+		cache.put("b", "1234");
+		assertEquals("1234", cache.get("a"));
+
+		cache.put("c", "1234");
+
+		assertNull(cache.get("b"));
+		assertEquals("1234", cache.get("a"));
+		assertEquals(8, cache.getChars());
+
+		cache.put("d", "too large");
+
+		assertNull(cache.get("d"));
+		assertEquals(2, cache.size());
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+		cache.clear();
+
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getChars());
+	}
+
+	public void testDirective() throws Exception {
+
+		VelocityEngine engine = new VelocityEngine();
+		engine.setProperty("userdirective", FragmentDirective.class.getName());
+		engine.init();
+
+		FragmentCache cache = new FragmentCache(1024);
+		Input item = new Input("c0");
+		ItemContext ctx = new ItemContext();
+		ctx.setLabel("Name");
+
+		Map<String, ItemContext> values = new HashMap<String, ItemContext>();
+		values.put(item.getId(), ctx);
+
+		AtomicInteger renders = new AtomicInteger();
+		String template = "#fragment($item)$ctx.label $renders.incrementAndGet()#end";
+
+		assertEquals("Name 1", render(engine, template, cache, item, ctx,
+				values, renders));
+		assertEquals("Name 1", render(engine, template, cache, item, ctx,
+				values, renders));
+		assertEquals(1, cache.getHits());
+
+		ctx.setLabel("Naam");
+
+		assertEquals("Naam 2", render(engine, template, cache, item, ctx,
+				values, renders));
+
+		// No cache: just render.
+		assertEquals("Naam 3", render(engine, template, null, item, ctx,
+				values, renders));
+	}
+
+	private String render(VelocityEngine engine, String template,
+			FragmentCache cache, Input item, ItemContext ctx,
+			Map<String, ItemContext> values, AtomicInteger renders)
+			throws Exception {
+
+		VelocityContext context = new VelocityContext();
+		context.put("item", item);
+		context.put("ctx", ctx);
+		context.put("context", values);
+		context.put("renders", renders);
+
+		if (cache != null) {
+			context.put(FragmentScope.KEY, new FragmentScope(cache,
+					new ContextFingerprint(context, "main.vm", 0)));
+		}
+
+		StringWriter out = new StringWriter();
+		engine.evaluate(context, out, "test", template);
+
+		return out.toString();
+	}
+}
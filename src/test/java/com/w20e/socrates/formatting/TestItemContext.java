@@ -0,0 +1,97 @@
+package com.w20e.socrates.formatting;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+
+public class TestItemContext extends TestCase {
+
+	public TestItemContext(String name) {
+		super(name);
+	}
+
+	public void testFields() {
+
+		ItemContext ctx = new ItemContext();
+
+		assertEquals(0, ctx.size());
+		assertNull(ctx.get("label"));
+		assertFalse(ctx.containsKey("label"));
+
+		ctx.setLabel("Label");
+		ctx.setRelevant(true);
+		ctx.put("readonly", "false");
+		ctx.put("required_expr", "true()");
+
+		assertEquals("Label", ctx.get("label"));
+		assertEquals(Boolean.TRUE, ctx.get("relevant"));
+		assertEquals(Boolean.FALSE, ctx.get("readonly"));
+		assertEquals("true()", ctx.get("required_expr"));
+		assertEquals(4, ctx.size());
+
+		Map<String, Object> copy = new HashMap<String, Object>(ctx);
+
+		assertEquals(4, copy.size());
+		assertEquals(copy, ctx);
+	}
+
+	public void testTemplateAccess() throws Exception {
+
+		ItemContext ctx = new ItemContext();
+		ctx.setLabel("Yo dude");
+		ctx.setRelevant(false);
+		ctx.setRequired(true);
+
+		Map<String, ItemContext> values = new HashMap<String, ItemContext>();
+		values.put("c0", ctx);
+
+		VelocityContext context = new VelocityContext();
+		context.put("context", values);
+
+		VelocityEngine engine = new VelocityEngine();
+		engine.init();
+
+		StringWriter out = new StringWriter();
+		engine.evaluate(context, out, "test",
+				"$context.get('c0').get('label')"
+				+ "#if ($context.get('c0').get('relevant') == 'false') irrelevant#end"
+				+ "#if ($context.get('c0').get('required') == 'true') required#end"
+				+ " $context.get('c0').get('required')");
+
+		assertEquals("Yo dude irrelevant required true", out.toString());
+	}
+
+	public void testDeferred() {
+
+		final int[] loads = new int[1];
+
+		ItemContext ctx = new ItemContext();
+		ctx.defer(new ItemContext.Loader() {
+			public void load(ItemContext itemCtx, int field) {
+				loads[0]++;
+				if (field == ItemContext.F_LABEL) {
+					itemCtx.setLabel("Loaded");
+				}
+			}
+		}, 1 << ItemContext.F_LABEL | 1 << ItemContext.F_HINT);
+
+		assertEquals(2, ctx.size());
+		assertTrue(ctx.containsKey("label"));
+		assertEquals(0, loads[0]);
+
+		assertEquals("Loaded", ctx.get("label"));
+		assertEquals("Loaded", ctx.getLabel());
+		assertEquals(1, loads[0]);
+
+		// Loader didn't set the hint; asked once only.
+		assertNull(ctx.get("hint"));
+		assertNull(ctx.get("hint"));
+		assertEquals(2, loads[0]);
+		assertEquals(1, ctx.size());
+	}
+}
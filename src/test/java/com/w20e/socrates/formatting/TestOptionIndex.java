@@ -0,0 +1,69 @@
+package com.w20e.socrates.formatting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.rendering.Option;
+
+public class TestOptionIndex extends TestCase {
+
+	private static final String[] LABELS = { "Nurse", "Registered nurse",
+			"Caf\u00e9 owner", "Cafeteria cook", "Bus driver" };
+
+	public TestOptionIndex(String name) {
+		super(name);
+	}
+
+	public void testFind() {
+
+		OptionIndex index = new OptionIndex(LABELS, Locale.ENGLISH);
+
+		assertTrue(Arrays.equals(new int[] { 0, 1 }, index.find("nur", 0, 10)));
+		assertTrue(Arrays.equals(new int[] { 1 }, index.find("REG nurse", 0,
+				10)));
+
+		// Accents are ignored.
+		assertTrue(Arrays.equals(new int[] { 2, 3 }, index.find("cafe", 0, 10)));
+		assertTrue(Arrays.equals(new int[] { 2 }, index.find("caf\u00e9 ow", 0, 10)));
+
+		// Words must start with the term.
+		assertEquals(0, index.find("urse", 0, 10).length);
+		assertEquals(0, index.find("nurse bus", 0, 10).length);
+	}
+
+	public void testPaging() {
+
+		OptionIndex index = new OptionIndex(LABELS, Locale.ENGLISH);
+
+		assertTrue(Arrays.equals(new int[] { 0, 1 }, index.find("", 0, 2)));
+		assertTrue(Arrays.equals(new int[] { 4 }, index.find(null, 4, 2)));
+		assertTrue(Arrays.equals(new int[] { 3 }, index.find("caf", 1, 5)));
+		assertEquals(0, index.find("caf", 2, 5).length);
+	}
+
+	public void testPage() {
+
+		List<Option> all = new ArrayList<Option>();
+
+		for (int i = 0; i < 10; i++) {
+			all.add(new Option("v" + i, "Option " + i));
+		}
+
+		OptionPage page = new OptionPage(all, 3, Arrays.asList("v1", "v7"));
+
+		// First page, plus the selected option beyond it.
+		assertEquals(4, page.size());
+		assertEquals("v7", page.get(3).getValue());
+		assertEquals(10, page.getTotal());
+		assertFalse(page.isComplete());
+		assertEquals(2, page.page(8, 5).size());
+
+		assertTrue(new OptionPage(all, 20, Collections.<String> emptySet())
+				.isComplete());
+	}
+}
@@ -0,0 +1,105 @@
+package com.w20e.socrates.formatting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.rendering.Option;
+import com.w20e.socrates.rendering.Select;
+
+public class TestOptionListCache extends TestCase {
+
+	private static final String BASENAME = "com.w20e.socrates.formatting.Messages";
+
+	private static final Locale DE = new Locale("de", "DE");
+
+	private static final Locale GB = new Locale("en", "GB");
+
+	private TranslationCache translations;
+
+	private OptionListCache cache;
+
+	private TestSelect select;
+
+	public TestOptionListCache(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() {
+
+		this.translations = new TranslationCache(getClass(), BASENAME, 10);
+		this.cache = new OptionListCache(this.translations);
+		this.select = new TestSelect("s0");
+		this.select.options.add(new Option("1", "Yo dude"));
+		this.select.options.add(new Option("2", "Other"));
+	}
+
+	public void testReuse() {
+
+		List<Option> first = this.cache.get(this.select, DE);
+
+		assertEquals(2, first.size());
+
+		// A later request gets the same list.
+		assertSame(first, this.cache.get(this.select, DE));
+		assertEquals(1, this.cache.getHits());
+		assertEquals(1, this.cache.getMisses());
+
+		// Per locale.
+		assertNotSame(first, this.cache.get(this.select, GB));
+		assertEquals(2, this.cache.getMisses());
+	}
+
+	public void testOptionsReplaced() {
+
+		List<Option> first = this.cache.get(this.select, DE);
+
+		this.select.options = new ArrayList<Option>(this.select.options);
+
+		assertNotSame(first, this.cache.get(this.select, DE));
+		assertEquals(2, this.cache.getMisses());
+	}
+
+	public void testOptionCountChanged() {
+
+		List<Option> first = this.cache.get(this.select, DE);
+
+		this.select.options.add(new Option("3", "Third"));
+
+		List<Option> second = this.cache.get(this.select, DE);
+
+		assertNotSame(first, second);
+		assertEquals(3, second.size());
+		assertEquals(2, this.cache.getMisses());
+	}
+
+	public void testTranslationsCleared() {
+
+		List<Option> first = this.cache.get(this.select, DE);
+
+		this.translations.clear();
+
+		assertNotSame(first, this.cache.get(this.select, DE));
+		assertEquals(2, this.cache.getMisses());
+	}
+
+	/**
+	 * Select whose option list can be replaced.
+	 */
+	private static final class TestSelect extends Select {
+
+		private List<Option> options = new ArrayList<Option>();
+
+		TestSelect(String id) {
+			super(id);
+		}
+
+		@Override
+		public List<Option> getOptions() {
+			return this.options;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.w20e.socrates.formatting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.ModelImpl;
+import com.w20e.socrates.model.NodeImpl;
+import com.w20e.socrates.rendering.ControlImpl;
+import com.w20e.socrates.rendering.FlowGroup;
+import com.w20e.socrates.rendering.Group;
+import com.w20e.socrates.rendering.Input;
+import com.w20e.socrates.rendering.Renderable;
+import com.w20e.socrates.rendering.TextBlock;
+
+public class TestRelevanceIndex extends TestCase {
+
+	private EvaluationCache cache;
+
+	private List<Renderable> items;
+
+	private List<Renderable> all;
+
+	public TestRelevanceIndex(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() {
+
+		InstanceImpl inst = new InstanceImpl();
+
+		for (int i = 0; i < 4; i++) {
+			inst.addNode(new NodeImpl("A" + i, "VALUE " + i));
+		}
+
+		this.cache = new EvaluationCache(new ModelImpl(), inst);
+		this.items = new ArrayList<Renderable>();
+		this.all = new ArrayList<Renderable>();
+
+		// g0 { c0, g1 { c1, g2 { c2, t0 } } }, g3 { g4 { } }, c3
+		Group g0 = group("g0", null);
+		control("c0", "A0", g0);
+		Group g1 = group("g1", g0);
+		control("c1", "A1", g1);
+		Group g2 = group("g2", g1);
+		control("c2", "A2", g2);
+		TextBlock t0 = new TextBlock("t0");
+		t0.setText("Text");
+		add(t0, g2);
+		group("g4", group("g3", null));
+		control("c3", "A3", null);
+	}
+
+	public void testSinglePass() {
+
+		RelevanceIndex index = new RelevanceIndex(this.items, this.cache);
+
+		// Properties and relevance of each of the four controls, once.
+		assertEquals(8, this.cache.getEvaluations());
+		assertEquals(0, this.cache.getSaved());
+
+		for (Renderable rItem : this.all) {
+			index.isRelevant(rItem);
+		}
+
+		// Everything is served from the index.
+		assertEquals(8, this.cache.getEvaluations());
+		assertEquals(0, this.cache.getSaved());
+	}
+
+	public void testNesting() {
+
+		RelevanceIndex index = new RelevanceIndex(this.items, this.cache);
+
+		// Relevance of the innermost items carries through every level.
+		assertTrue(index.isRelevant(get("g2")));
+		assertTrue(index.isRelevant(get("g1")));
+		assertTrue(index.isRelevant(get("g0")));
+
+		// And so do the controls inside them.
+		assertTrue(index.isRelevant(get("c2")));
+		assertTrue(index.isRelevant(get("c1")));
+
+		// A group with nothing to show is not relevant, nor is what holds
+		// only such a group.
+		assertFalse(index.isRelevant(get("g4")));
+		assertFalse(index.isRelevant(get("g3")));
+	}
+
+	private Renderable get(String id) {
+
+		for (Renderable rItem : this.all) {
+			if (id.equals(rItem.getId())) {
+				return rItem;
+			}
+		}
+
+		throw new IllegalArgumentException(id);
+	}
+
+	/**
+	 * Add a group to the parent, or to the top level if null.
+	 */
+	private Group group(String id, Group parent) {
+
+		Group group = new FlowGroup(id);
+		add(group, parent);
+
+		return group;
+	}
+
+	private void control(String id, String bind, Group parent) {
+
+		ControlImpl control = new Input(id);
+		control.setBind(bind);
+		add(control, parent);
+	}
+
+	private void add(Renderable rItem, Group parent) {
+
+		if (parent == null) {
+			this.items.add(rItem);
+		} else {
+			parent.addItem(rItem);
+		}
+		this.all.add(rItem);
+	}
+}
@@ -0,0 +1,65 @@
+package com.w20e.socrates.formatting;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.velocity.VelocityContext;
+
+import com.w20e.socrates.rendering.Input;
+import com.w20e.socrates.rendering.Renderable;
+
+public class TestRenderArena extends TestCase {
+
+	public TestRenderArena(String name) {
+		super(name);
+	}
+
+	public void testReuse() {
+
+		RenderArena arena = RenderArena.acquire();
+
+		assertNotNull(arena);
+
+		// In use: a nested render gets none.
+		assertNull(RenderArena.acquire());
+
+		VelocityContext context = arena.newContext();
+		Map<String, ItemContext> values = arena.getValues();
+		List<Renderable> items = arena.getItems(Collections
+				.<Renderable> singletonList(new Input("c0")));
+
+		context.put("locale", "en");
+		values.put("c0", new ItemContext());
+
+		assertEquals(1, items.size());
+
+		arena.release();
+
+		assertSame(arena, RenderArena.acquire());
+		assertSame(values, arena.getValues());
+		assertTrue(values.isEmpty());
+		assertTrue(items.isEmpty());
+		assertNull(arena.newContext().get("locale"));
+
+		arena.release();
+	}
+
+	public void testDropLarge() {
+
+		RenderArena arena = RenderArena.acquire();
+		Map<String, ItemContext> values = arena.getValues();
+
+		for (int i = 0; i <= RenderArena.MAX_RETAINED; i++) {
+			values.put("c" + i, new ItemContext());
+		}
+
+		arena.release();
+
+		assertNotSame(values, RenderArena.acquire().getValues());
+
+		arena.release();
+	}
+}
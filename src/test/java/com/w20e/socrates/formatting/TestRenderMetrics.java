@@ -0,0 +1,106 @@
+package com.w20e.socrates.formatting;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+public class TestRenderMetrics extends TestCase {
+
+	public TestRenderMetrics(String name) {
+		super(name);
+	}
+
+	public void testHistogram() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		assertEquals(0, histogram.getPercentile(50));
+
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(50, histogram.getMean());
+		assertEquals(100, histogram.getMax());
+		assertEquals(63, histogram.getPercentile(50));
+		assertEquals(100, histogram.getPercentile(99));
+
+		histogram.reset();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+	}
+
+	public void testRecord() {
+
+		RenderMetrics metrics = new RenderMetrics();
+		final List<RenderSample> seen = new ArrayList<RenderSample>();
+
+		metrics.addListener(new RenderMetricsListener() {
+			public void rendered(RenderSample sample) {
+				seen.add(sample);
+			}
+		});
+
+		RenderSample sample = new RenderSample("main.vm", Locale.ENGLISH);
+
+		sample.add(RenderPhase.MERGE, 3000000L);
+		sample.add(RenderPhase.MERGE, 1000000L);
+		sample.addItem();
+		sample.addItem();
+		sample.finish(1234, false);
+
+		metrics.record(sample);
+
+		sample = new RenderSample("main.vm", Locale.GERMAN);
+		sample.finish(0, true);
+
+		metrics.record(sample);
+
+		assertEquals(2, seen.size());
+		assertEquals(4000000L, seen.get(0).getNanos(RenderPhase.MERGE));
+		assertEquals(2, metrics.getRequests());
+		assertEquals(1, metrics.getFailures());
+		assertEquals(2, metrics.getItems());
+		assertEquals(1234, metrics.getOutputBytes());
+		assertEquals(Long.valueOf(2), metrics.getTemplateCounts().get("main.vm"));
+		assertEquals(Long.valueOf(1), metrics.getLocaleCounts().get("de"));
+		assertEquals(Long.valueOf(4000), metrics.getPhaseMaxMicros().get(
+				"MERGE"));
+
+		metrics.reset();
+
+		assertEquals(0, metrics.getRequests());
+		assertTrue(metrics.getTemplateCounts().isEmpty());
+	}
+
+	public void testRegister() throws Exception {
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		String name = "com.w20e.socrates.formatting:type=Test,name=register";
+		RenderMetrics metrics = new RenderMetrics();
+
+		metrics.register(name);
+
+		assertTrue(server.isRegistered(new ObjectName(name)));
+		assertEquals(new ObjectName(name), metrics.getRegisteredName());
+
+		// A second bean can't take the name, but doesn't fail either.
+		RenderMetrics other = new RenderMetrics();
+		other.register(name);
+
+		assertNull(other.getRegisteredName());
+
+		metrics.unregister();
+
+		assertFalse(server.isRegistered(new ObjectName(name)));
+		assertNull(metrics.getRegisteredName());
+	}
+}
@@ -0,0 +1,115 @@
+package com.w20e.socrates.formatting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.rendering.TranslatableImpl;
+
+public class TestTranslationCache extends TestCase {
+
+	private static final String BASENAME = "com.w20e.socrates.formatting.Messages";
+
+	private static final Locale DE = new Locale("de", "DE");
+
+	private static final Locale GB = new Locale("en", "GB");
+
+	public TestTranslationCache(String name) {
+		super(name);
+	}
+
+	public void testTranslate() {
+
+		TranslationCache cache = new TranslationCache(getClass(), BASENAME, 10);
+
+		assertEquals("He du!", cache.translate(new TranslatableImpl("Yo dude"), DE));
+		assertEquals("Yo dude", cache.translate(new TranslatableImpl("Yo dude"), GB));
+		assertEquals("", cache.translate(new TranslatableImpl(""), GB));
+
+		assertEquals(0, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+		assertEquals("He du!", cache.translate(new TranslatableImpl("Yo dude"), DE));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.size());
+	}
+
+	public void testEviction() {
+
+		TranslationCache cache = new TranslationCache(getClass(), BASENAME, 2);
+
+		cache.translate(new TranslatableImpl("Yo dude"), DE);
+		cache.translate(new TranslatableImpl("Foo!"), DE);
+		cache.translate(new TranslatableImpl("Yo dude"), DE);
+		cache.translate(new TranslatableImpl("Unknown"), DE);
+
+		assertEquals(2, cache.size());
+
+		// Least recently used one is gone
+		cache.translate(new TranslatableImpl("Foo!"), DE);
+		assertEquals(1, cache.getHits());
+		assertEquals(4, cache.getMisses());
+	}
+
+	public void testWarm() {
+
+		TranslationCache cache = new TranslationCache(getClass(), BASENAME, 10);
+
+		assertEquals(4, cache.warm(Arrays.asList(new Locale[] {GB, DE})));
+
+		assertEquals("Fuu!", cache.translate(new TranslatableImpl("Foo!"), DE));
+		assertEquals(1, cache.getHits());
+		assertEquals(0, cache.getMisses());
+	}
+
+	public void testConcurrent() throws Exception {
+
+		final TranslationCache cache = new TranslationCache(getClass(), BASENAME, 16);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+		try {
+			for (int t = 0; t < 4; t++) {
+				results.add(pool.submit(new Callable<Boolean>() {
+					public Boolean call() {
+						for (int i = 0; i < 1000; i++) {
+							if (!"He du!".equals(cache.translate(new TranslatableImpl("Yo dude"), DE))
+									|| !("Id " + i % 50).equals(cache.translate(
+											new TranslatableImpl("Id " + i % 50), GB))) {
+								return Boolean.FALSE;
+							}
+						}
+						return Boolean.TRUE;
+					}
+				}));
+			}
+
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get().booleanValue());
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		assertTrue(cache.size() <= 16);
+		assertEquals(8000, cache.getHits() + cache.getMisses());
+	}
+
+	public void testNoCaching() {
+
+		TranslationCache cache = new TranslationCache(getClass(), BASENAME, 0);
+
+		assertEquals("He du!", cache.translate(new TranslatableImpl("Yo dude"), DE));
+		assertEquals("He du!", cache.translate(new TranslatableImpl("Yo dude"), DE));
+		assertEquals(0, cache.size());
+		assertEquals(2, cache.getMisses());
+	}
+}
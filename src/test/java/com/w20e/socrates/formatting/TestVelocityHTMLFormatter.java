@@ -11,13 +11,29 @@
 package com.w20e.socrates.formatting;
 
 import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.ObjectName;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.commons.configuration.Configuration;
 
 import com.w20e.socrates.config.ConfigurationResource;
@@ -42,6 +58,8 @@ public class TestVelocityHTMLFormatter extends TestCase {
 
 	private Formatter formatter;
 
+	private Configuration cfg;
+
 	public TestVelocityHTMLFormatter(String name) {
 		super(name);
 	}
@@ -51,16 +69,59 @@ public class TestVelocityHTMLFormatter extends TestCase {
 		try {
 			System.setProperty("socrates.config.url",
 					"file:./target/test-classes/test-config.xml");
-			Configuration cfg = ConfigurationResource.getInstance()
+			this.cfg = ConfigurationResource.getInstance()
 					.getConfiguration();
 			this.formatter = new VelocityHTMLFormatter();
-			this.formatter.init(cfg);
+			this.formatter.init(this.cfg);
 		} catch (Exception e) {
 			fail(e.getMessage());
 		}
 	}
 
+	public void tearDown() {
+
+		((VelocityHTMLFormatter) this.formatter).close();
+	}
+
+	public void testWarmup() {
+
+		WarmupReport report = ((VelocityHTMLFormatter) this.formatter)
+				.getWarmupReport();
+
+		// main.vm and the Macros library
+		assertEquals(2, report.getTemplateCount());
+		assertTrue(report.isOk());
+	}
 	
+	public void testWarmedTemplate() throws Exception {
+
+		FormatterState state = ((VelocityHTMLFormatter) this.formatter)
+				.current();
+
+		InstanceImpl inst = new InstanceImpl();
+		ArrayList<Renderable> testItems = new ArrayList<Renderable>();
+
+		inst.addNode(new NodeImpl("A01", "SOME VALUE"));
+
+		ControlImpl item = new Input("c0");
+		item.setBind("A01");
+		item.setLabel("Yo dude");
+		testItems.add(item);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RunnerContextImpl ctx = new RunnerContextImpl(out, this.formatter,
+				new TestStateManager(), new ModelImpl(), inst, null);
+		ctx.setLocale(new Locale("en", "GB"));
+
+		// main.vm was parsed at warmup: the first format doesn't parse it.
+		this.formatter.format(testItems, out, ctx);
+
+		assertTrue(out.toString().indexOf("Yo dude") != -1);
+		assertEquals(0, state.getTemplatesParsed());
+		assertSame(state.getTemplate("main.vm"), new RenderSetup(state)
+				.getTemplate("main.vm"));
+	}
+
 	public void testFormat() {
 
 		InstanceImpl inst = new InstanceImpl();
@@ -143,6 +204,547 @@ public class TestVelocityHTMLFormatter extends TestCase {
 		}
 	}
 
+	public void testParallelFormat() throws Exception {
+
+		InstanceImpl inst = new InstanceImpl();
+		ModelImpl model = new ModelImpl();
+		ArrayList<Renderable> testItems = new ArrayList<Renderable>();
+
+		for (int i = 0; i < 100; i++) {
+			inst.addNode(new NodeImpl("A" + i, "VALUE " + i));
+
+			ControlImpl item = new Input("c" + i);
+			item.setBind("A" + i);
+			item.setLabel("Label " + i);
+			testItems.add(item);
+		}
+
+		BaseConfiguration overrides = new BaseConfiguration();
+		overrides.setProperty("formatter.context.lazy", "false");
+		overrides.setProperty("formatter.context.parallel_threshold", "10");
+
+		CompositeConfiguration parallelCfg = new CompositeConfiguration();
+		parallelCfg.addConfiguration(overrides);
+		parallelCfg.addConfiguration(this.cfg);
+
+		VelocityHTMLFormatter parallel = new VelocityHTMLFormatter();
+		parallel.init(parallelCfg);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RunnerContextImpl ctx = new RunnerContextImpl(out, this.formatter,
+				new TestStateManager(), model, inst, null);
+		ctx.setLocale(new Locale("en", "GB"));
+
+		this.formatter.format(testItems, out, ctx);
+		String expected = out.toString();
+
+		for (int run = 0; run < 5; run++) {
+			out.reset();
+			parallel.format(testItems, out, ctx);
+			assertEquals(expected, out.toString());
+		}
+
+		parallel.close();
+
+		assertTrue(expected.indexOf("Label 99") != -1);
+	}
+
+	public void testFormatAsync() throws Exception {
+
+		InstanceImpl inst = new InstanceImpl();
+		ModelImpl model = new ModelImpl();
+		ArrayList<Renderable> testItems = new ArrayList<Renderable>();
+
+		inst.addNode(new NodeImpl("A01", "SOME VALUE"));
+
+		ControlImpl item = new Input("c0");
+		item.setBind("A01");
+		item.setLabel("Yo dude");
+		testItems.add(item);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RunnerContextImpl ctx = new RunnerContextImpl(out, this.formatter,
+				new TestStateManager(), model, inst, null);
+		ctx.setLocale(new Locale("en", "GB"));
+
+		this.formatter.format(testItems, out, ctx);
+
+		String expected = out.toString();
+		ByteArrayOutputStream asyncOut = new ByteArrayOutputStream();
+
+		((VelocityHTMLFormatter) this.formatter)
+				.formatAsync(testItems, asyncOut, ctx)
+				.get(30, TimeUnit.SECONDS);
+
+		assertEquals(expected, asyncOut.toString());
+	}
+
+	public void testFormatAsyncReplaced() throws Exception {
+
+		final VelocityHTMLFormatter velocity = (VelocityHTMLFormatter) this.formatter;
+		final ExecutorService next = Executors.newSingleThreadExecutor();
+
+		// Replaced, and shut down, while the render is submitted to it.
+		velocity.setExecutor(new ThreadPoolExecutor(1, 1, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+			@Override
+			public void execute(Runnable command) {
+				velocity.setExecutor(next, 2);
+				throw new RejectedExecutionException("Shut down");
+			}
+		}, 2);
+
+		InstanceImpl inst = new InstanceImpl();
+		ArrayList<Renderable> testItems = new ArrayList<Renderable>();
+
+		inst.addNode(new NodeImpl("A01", "SOME VALUE"));
+
+		ControlImpl item = new Input("c0");
+		item.setBind("A01");
+		item.setLabel("Yo dude");
+		testItems.add(item);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RunnerContextImpl ctx = new RunnerContextImpl(out, this.formatter,
+				new TestStateManager(), new ModelImpl(), inst, null);
+		ctx.setLocale(new Locale("en", "GB"));
+
+		velocity.formatAsync(testItems, out, ctx).get(30, TimeUnit.SECONDS);
+
+		assertTrue(out.toString().indexOf("Yo dude") != -1);
+
+		next.shutdown();
+	}
+
+	public void testEtag() throws Exception {
+
+		InstanceImpl inst = new InstanceImpl();
+		ModelImpl model = new ModelImpl();
+		ArrayList<Renderable> testItems = new ArrayList<Renderable>();
+
+		NodeImpl node = new NodeImpl("A01", "SOME VALUE");
+
+		inst.addNode(node);
+
+		ControlImpl item = new Input("c0");
+		item.setBind("A01");
+		item.setLabel("Yo dude");
+		testItems.add(item);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RunnerContextImpl ctx = new RunnerContextImpl(out, this.formatter,
+				new TestStateManager(), model, inst, null);
+		ctx.setLocale(new Locale("en", "GB"));
+		ctx.setProperty(VelocityHTMLFormatter.IF_NONE_MATCH, "none");
+
+		this.formatter.format(testItems, out, ctx);
+
+		String etag = (String) ctx.getProperty(VelocityHTMLFormatter.ETAG);
+
+		assertNotNull(etag);
+		assertEquals(Boolean.FALSE, ctx
+				.getProperty(VelocityHTMLFormatter.NOT_MODIFIED));
+		assertTrue(out.size() > 0);
+
+		// Same page: nothing written.
+		out = new ByteArrayOutputStream();
+		ctx.setProperty(VelocityHTMLFormatter.IF_NONE_MATCH, etag);
+
+		this.formatter.format(testItems, out, ctx);
+
+		assertEquals(Boolean.TRUE, ctx
+				.getProperty(VelocityHTMLFormatter.NOT_MODIFIED));
+		assertEquals(0, out.size());
+
+		// Changed value: new fingerprint, and a page.
+		node.setValue("OTHER VALUE");
+
+		this.formatter.format(testItems, out, ctx);
+
+		assertFalse(etag.equals(ctx.getProperty(VelocityHTMLFormatter.ETAG)));
+		assertTrue(out.size() > 0);
+	}
+
+	public void testSession() throws Exception {
+
+		InstanceImpl inst = new InstanceImpl();
+		ModelImpl model = new ModelImpl();
+		ArrayList<Renderable> testItems = new ArrayList<Renderable>();
+
+		NodeImpl a = new NodeImpl("A01", "SOME VALUE");
+		NodeImpl b = new NodeImpl("A02", "OTHER VALUE");
+
+		inst.addNode(a);
+		inst.addNode(b);
+
+		ControlImpl item = new Input("c0");
+		item.setBind("A01");
+		item.setLabel("Yo dude");
+		testItems.add(item);
+
+		ControlImpl item2 = new Input("c1");
+		item2.setBind("A02");
+		item2.setLabel("Yo dude2");
+		testItems.add(item2);
+
+		RenderSession session = new RenderSession();
+		RunnerContextImpl ctx = new RunnerContextImpl(
+				new ByteArrayOutputStream(), this.formatter,
+				new TestStateManager(), model, inst, null);
+		ctx.setLocale(new Locale("en", "GB"));
+		ctx.setProperty(VelocityHTMLFormatter.SESSION, session);
+
+		render(testItems, ctx);
+		long first = session.getComputed();
+
+		assertTrue(first > 0);
+
+		// Nothing changed: all served from the session.
+		render(testItems, ctx);
+		assertEquals(first, session.getComputed());
+
+		// Only what depends on the changed node is computed.
+		a.setValue("NEW VALUE");
+		String out = render(testItems, ctx);
+		long onlyA = session.getComputed() - first;
+
+		assertTrue(out.indexOf("NEW VALUE") != -1);
+		assertTrue(out.indexOf("OTHER VALUE") != -1);
+		assertTrue(onlyA > 0);
+		assertTrue(onlyA < first);
+
+		// The other control costs the same.
+		b.setValue("NEWER VALUE");
+		long computed = session.getComputed();
+		out = render(testItems, ctx);
+
+		assertTrue(out.indexOf("NEWER VALUE") != -1);
+		assertEquals(onlyA, session.getComputed() - computed);
+	}
+
+	public void testSessionUntrackable() throws Exception {
+
+		final RenderSession session = new RenderSession();
+		InstanceImpl inst = new InstanceImpl();
+		ArrayList<Renderable> testItems = new ArrayList<Renderable>();
+
+		// Fails like code casting the instance would, with the session only.
+		inst.addNode(new NodeImpl("A01", "SOME VALUE") {
+			@Override
+			public Object getValue() {
+				if (session.isEnabled()) {
+					throw new ClassCastException("Not an InstanceImpl");
+				}
+				return super.getValue();
+			}
+		});
+
+		ControlImpl item = new Input("c0");
+		item.setBind("A01");
+		item.setLabel("Yo dude");
+		testItems.add(item);
+
+		RunnerContextImpl ctx = new RunnerContextImpl(
+				new ByteArrayOutputStream(), this.formatter,
+				new TestStateManager(), new ModelImpl(), inst, null);
+		ctx.setLocale(new Locale("en", "GB"));
+		ctx.setProperty(VelocityHTMLFormatter.SESSION, session);
+
+		// Filled again without the session, before writing.
+		assertTrue(render(testItems, ctx).indexOf("SOME VALUE") != -1);
+		assertFalse(session.isEnabled());
+		assertEquals(0, session.size());
+
+		assertTrue(render(testItems, ctx).indexOf("SOME VALUE") != -1);
+
+		Map<String, ItemUpdate> updates = ((VelocityHTMLFormatter) this.formatter)
+				.formatDelta(testItems, Collections.singleton("c0"), ctx);
+
+		assertEquals("SOME VALUE", updates.get("c0").getValue());
+	}
+
+	private String render(List<Renderable> items, RunnerContextImpl ctx)
+			throws Exception {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		this.formatter.format(items, out, ctx);
+
+		return out.toString();
+	}
+
+	public void testFormatDelta() throws Exception {
+
+		InstanceImpl inst = new InstanceImpl();
+		ModelImpl model = new ModelImpl();
+		ArrayList<Renderable> testItems = new ArrayList<Renderable>();
+
+		inst.addNode(new NodeImpl("A01", "SOME VALUE"));
+		inst.addNode(new NodeImpl("A02", "OTHER VALUE"));
+
+		ControlImpl item = new Input("c0");
+		item.setBind("A01");
+		item.setLabel("Yo dude");
+		testItems.add(item);
+
+		ControlImpl item2 = new Input("c1");
+		item2.setBind("A02");
+		item2.setLabel("Other");
+		testItems.add(item2);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RunnerContextImpl ctx = new RunnerContextImpl(out, this.formatter,
+				new TestStateManager(), model, inst, null);
+		ctx.setLocale(new Locale("en", "GB"));
+
+		Map<String, ItemUpdate> updates = ((VelocityHTMLFormatter) this.formatter)
+				.formatDelta(testItems, Collections.singleton("A02"), ctx);
+
+		assertEquals(1, updates.size());
+
+		ItemUpdate update = updates.get("c1");
+
+		assertEquals("A02", update.getBind());
+		assertEquals("OTHER VALUE", update.getValue());
+		assertTrue(update.isRelevant());
+		assertNull(update.getHtml());
+
+		ctx.setProperty(VelocityHTMLFormatter.ITEM_TEMPLATE, "input.vm");
+
+		updates = ((VelocityHTMLFormatter) this.formatter).formatDelta(
+				testItems, Collections.singleton("c0"), ctx);
+
+		assertNotNull(updates.get("c0").getHtml());
+		assertEquals(0, out.size());
+	}
+
+	public void testFormatDeltaCost() throws Exception {
+
+		// A one item delta costs as much on a large page as on a small one.
+		assertEquals(deltaEvaluations(1), deltaEvaluations(20));
+	}
+
+	/**
+	 * Evaluations done by a delta of the first control of a page.
+	 */
+	private long deltaEvaluations(int size) throws Exception {
+
+		InstanceImpl inst = new InstanceImpl();
+		ModelImpl model = new ModelImpl();
+		ArrayList<Renderable> testItems = new ArrayList<Renderable>();
+
+		for (int i = 0; i < size; i++) {
+			inst.addNode(new NodeImpl("A" + i, "VALUE " + i));
+
+			ControlImpl item = new Input("c" + i);
+			item.setBind("A" + i);
+			item.setLabel("Label " + i);
+			testItems.add(item);
+		}
+
+		RunnerContextImpl ctx = new RunnerContextImpl(
+				new ByteArrayOutputStream(), this.formatter,
+				new TestStateManager(), model, inst, null);
+		ctx.setLocale(new Locale("en", "GB"));
+
+		VelocityHTMLFormatter velocity = (VelocityHTMLFormatter) this.formatter;
+		long before = velocity.getEvaluations();
+
+		Map<String, ItemUpdate> updates = velocity.formatDelta(testItems,
+				Collections.singleton("c0"), ctx);
+
+		assertEquals(1, updates.size());
+		assertTrue(updates.get("c0").isRelevant());
+
+		return velocity.getEvaluations() - before;
+	}
+
+	public void testFormatBatch() throws Exception {
+
+		ModelImpl model = new ModelImpl();
+		List<BatchEntry> entries = new ArrayList<BatchEntry>();
+		StringBuilder expected = new StringBuilder();
+		ByteArrayOutputStream own = new ByteArrayOutputStream();
+
+		for (int i = 0; i < 10; i++) {
+			InstanceImpl inst = new InstanceImpl();
+			inst.addNode(new NodeImpl("A01", "VALUE " + i));
+
+			ControlImpl item = new Input("c0");
+			item.setBind("A01");
+			item.setLabel("Respondent " + i);
+
+			ArrayList<Renderable> testItems = new ArrayList<Renderable>();
+			testItems.add(item);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			RunnerContextImpl ctx = new RunnerContextImpl(out,
+					this.formatter, new TestStateManager(), model, inst, null);
+			ctx.setLocale(new Locale("en", "GB"));
+
+			this.formatter.format(testItems, out, ctx);
+
+			if (i == 3) {
+				entries.add(new BatchEntry(testItems, ctx, own));
+				assertTrue(out.toString().indexOf("Respondent 3") != -1);
+			} else {
+				entries.add(new BatchEntry(testItems, ctx));
+				expected.append(out.toString());
+			}
+		}
+
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		BatchResult result = ((VelocityHTMLFormatter) this.formatter)
+				.formatBatch(entries, sink);
+
+		assertTrue(result.isOk());
+		assertEquals(10, result.getCount());
+		assertEquals(expected.toString(), sink.toString());
+		assertTrue(own.toString().indexOf("Respondent 3") != -1);
+	}
+
+	public void testMetricsJmx() throws Exception {
+
+		// Off unless asked for.
+		assertNull(((VelocityHTMLFormatter) this.formatter).getMetrics()
+				.getRegisteredName());
+
+		BaseConfiguration overrides = new BaseConfiguration();
+		overrides.setProperty("formatter.metrics.jmx", "true");
+
+		CompositeConfiguration jmxCfg = new CompositeConfiguration();
+		jmxCfg.addConfiguration(overrides);
+		jmxCfg.addConfiguration(this.cfg);
+
+		VelocityHTMLFormatter first = new VelocityHTMLFormatter();
+		VelocityHTMLFormatter second = new VelocityHTMLFormatter();
+
+		first.init(jmxCfg);
+		second.init(jmxCfg);
+
+		ObjectName name = first.getMetrics().getRegisteredName();
+
+		// Every formatter gets a name of it's own.
+		assertNotNull(name);
+		assertNotNull(second.getMetrics().getRegisteredName());
+		assertFalse(name.equals(second.getMetrics().getRegisteredName()));
+
+		first.close();
+		second.close();
+
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+				name));
+	}
+
+	public void testConcurrentFormat() throws Exception {
+
+		assertRendersWhile(new Runnable() {
+			public void run() {
+				((VelocityHTMLFormatter) TestVelocityHTMLFormatter.this.formatter)
+						.setProperty("resource.manager.logwhenfound", "false");
+			}
+		});
+	}
+
+	public void testReloadWhileRendering() throws Exception {
+
+		assertRendersWhile(new Runnable() {
+			public void run() {
+				((VelocityHTMLFormatter) TestVelocityHTMLFormatter.this.formatter)
+						.reload(TestVelocityHTMLFormatter.this.cfg);
+			}
+		});
+	}
+
+	/**
+	 * Render on several threads while reconfiguring all the while; every
+	 * page must come out as it does without reconfiguration.
+	 */
+	private void assertRendersWhile(final Runnable reconfigure)
+			throws Exception {
+
+		final InstanceImpl inst = new InstanceImpl();
+		final ModelImpl model = new ModelImpl();
+		final ArrayList<Renderable> testItems = new ArrayList<Renderable>();
+
+		for (int i = 0; i < 20; i++) {
+			inst.addNode(new NodeImpl("A" + i, "VALUE " + i));
+
+			ControlImpl item = new Input("c" + i);
+			item.setBind("A" + i);
+			item.setLabel("Label " + i);
+			testItems.add(item);
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RunnerContextImpl ctx = new RunnerContextImpl(out, this.formatter,
+				new TestStateManager(), model, inst, null);
+		ctx.setLocale(new Locale("en", "GB"));
+
+		this.formatter.format(testItems, out, ctx);
+
+		final String expected = out.toString();
+		final int threads = 8;
+		final int runs = 50;
+		final AtomicBoolean done = new AtomicBoolean();
+		final List<Throwable> errors = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+
+		List<Future<?>> results = new ArrayList<Future<?>>();
+
+		for (int t = 0; t < threads; t++) {
+			results.add(pool.submit(new Runnable() {
+				public void run() {
+					ByteArrayOutputStream threadOut = new ByteArrayOutputStream();
+					RunnerContextImpl threadCtx = new RunnerContextImpl(
+							threadOut, TestVelocityHTMLFormatter.this.formatter,
+							new TestStateManager(), model, inst, null);
+					threadCtx.setLocale(new Locale("en", "GB"));
+
+					try {
+						start.await();
+						for (int i = 0; i < runs; i++) {
+							threadOut.reset();
+							TestVelocityHTMLFormatter.this.formatter.format(
+									testItems, threadOut, threadCtx);
+							assertEquals(expected, threadOut.toString());
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			}));
+		}
+
+		// Reconfigure all the while.
+		results.add(pool.submit(new Runnable() {
+			public void run() {
+				try {
+					start.await();
+					while (!done.get()) {
+						reconfigure.run();
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}
+		}));
+
+		start.countDown();
+
+		for (int t = 0; t < threads; t++) {
+			results.get(t).get(60, TimeUnit.SECONDS);
+		}
+
+		done.set(true);
+		results.get(threads).get(60, TimeUnit.SECONDS);
+		pool.shutdown();
+
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+
 	private static final class TestStateManager implements StateManager {
 
 		public RenderState current() {